@@ -0,0 +1,79 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the arithmetic of value wrappers, performed by many threads at
+ * once, as it is by the scripts of concurrent requests. Every benchmark checks
+ * its result, so an interference between the threads fails the run.
+ * 
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ValueWrapperBenchmark {
+
+	// operands as the scripts give them, which are parsed from strings
+	private String start = "0";
+	private String end = "99";
+	private String step = "1";
+	private String half = "0.5";
+
+	private Integer three = Integer.valueOf(3); // boxed integer operand
+	private Double two = Double.valueOf(2.0); // boxed decimal operand
+
+	/**
+	 * Counts from 0 to 99 by adding 1, as a for loop of a script does.
+	 * 
+	 * @return number of the iterations
+	 */
+	@Benchmark
+	public int forLoop() {
+		ValueWrapper counter = new ValueWrapper(start);
+		int iterations = 0;
+		while (counter.numCompare(end) <= 0) {
+			counter.add(step);
+			iterations++;
+		}
+		if (iterations != 100) {
+			throw new IllegalStateException("Counted " + iterations);
+		}
+		return iterations;
+	}
+
+	/**
+	 * Performs each of the operations, mixing integers and decimal values.
+	 * 
+	 * @return the result
+	 */
+	@Benchmark
+	public Object mixedOperations() {
+		ValueWrapper v = new ValueWrapper(three);
+		v.add(step);
+		v.multiply(three);
+		v.subtract(half);
+		v.divide(two);
+		Object result = v.getValue();
+		if (!result.equals(5.75)) {
+			throw new IllegalStateException("Computed " + result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,33 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.OutputStream;
+
+/**
+ * Output stream which discards everything written to it, counting only the
+ * number of written bytes, so that benchmarks measure the generation of the
+ * response instead of its transfer.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class DiscardingOutputStream extends OutputStream {
+
+	private long count; // number of bytes written so far
+
+	@Override
+	public void write(int b) {
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		count += len;
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	public long getCount() {
+		return count;
+	}
+}
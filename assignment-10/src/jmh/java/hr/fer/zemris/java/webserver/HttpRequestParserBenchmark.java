@@ -0,0 +1,85 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of recognizing and parsing the request headers, as done for every
+ * request the server receives.
+ * 
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+	// request of a command line client
+	private static final String MINIMAL = "GET /index.html HTTP/1.1\r\n"
+			+ "Host: localhost:5721\r\n"
+			+ "User-Agent: curl/8.0.1\r\n"
+			+ "Accept: */*\r\n"
+			+ "\r\n";
+
+	// request of a browser, with a query and a session cookie
+	private static final String BROWSER =
+			"GET /calc?a=20&b=22 HTTP/1.1\r\n"
+					+ "Host: www.localhost.com:5721\r\n"
+					+ "Connection: keep-alive\r\n"
+					+ "Upgrade-Insecure-Requests: 1\r\n"
+					+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) "
+					+ "AppleWebKit/537.36 (KHTML, like Gecko) "
+					+ "Chrome/120.0.0.0 Safari/537.36\r\n"
+					+ "Accept: text/html,application/xhtml+xml,"
+					+ "application/xml;q=0.9,image/avif,image/webp,"
+					+ "*/*;q=0.8\r\n"
+					+ "Accept-Encoding: gzip, deflate, br\r\n"
+					+ "Accept-Language: hr-HR,hr;q=0.9,en-US;q=0.8,en;q=0.7\r\n"
+					+ "Cookie: theme=dark; sid=\"QWERTYUIOPASDFGHJKLZ\"; "
+					+ "lang=hr\r\n"
+					+ "If-None-Match: \"5f3a-17d2c\"\r\n"
+					+ "\r\n";
+
+	@Param({ "minimal", "browser" })
+	private String request;
+
+	private byte[] data; // encoded request
+	private HttpRequestParser parser; // parser which is measured
+
+	/**
+	 * Encodes the request and creates the parser.
+	 */
+	@Setup
+	public void setUp() {
+		data = (request.equals("minimal") ? MINIMAL : BROWSER)
+				.getBytes(StandardCharsets.ISO_8859_1);
+		parser = new HttpRequestParser(16384, 100);
+	}
+
+	/**
+	 * Finds the end of the header, and parses it.
+	 * 
+	 * @return the parsed request
+	 */
+	@Benchmark
+	public HttpRequest parse() {
+		int headerEnd = HttpRequestParser.findHeaderEnd(data, 0, data.length);
+		return parser.parse(data, 0, headerEnd);
+	}
+}
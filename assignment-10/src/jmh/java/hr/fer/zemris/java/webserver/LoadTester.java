@@ -0,0 +1,184 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Program that compares the request latency of the server execution modes. For
+ * every mode, a server is started on a free port, and a number of concurrent
+ * clients send requests to it. Every fifth request goes to a slow worker, while
+ * the others request a small static file. Percentiles of the latency are
+ * printed for every mode, separately for the fast requests, which show how much
+ * the slow ones delay the rest of the traffic.
+ * <p>
+ * Program accepts two optional arguments - the number of concurrent clients,
+ * and the number of requests sent by each client. It is expected to be started
+ * from the project root directory.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class LoadTester {
+
+	// modes that are compared
+	private static final String[] EXECUTION_MODES = { "pool", "virtual" };
+
+	// how long the slow worker takes to respond, in milliseconds
+	private static final int SLOW_WORKER_DELAY = 100;
+
+	/**
+	 * Main method of the program.
+	 * 
+	 * @param  args        number of clients and number of requests per client,
+	 *                     both optional
+	 * @throws Exception   if the servers cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+
+		Path workersConfig = Files.createTempFile("workers", ".properties");
+		Files.writeString(workersConfig,
+				"/slow = " + SlowWorker.class.getName() + "\n");
+
+		System.out.printf("%d clients, %d requests each%n", clients, requests);
+		System.out.printf("%-10s %-6s %10s %10s %10s%n", "mode", "type",
+				"p50 [ms]", "p99 [ms]", "max [ms]");
+
+		for (int i = 0; i < EXECUTION_MODES.length; i++) {
+			Properties config = TestServer.config();
+			config.setProperty("server.executionMode", EXECUTION_MODES[i]);
+			config.setProperty("server.workers", workersConfig.toString());
+
+			SmartHttpServer server = TestServer.start(config);
+			long[][] latencies =
+					runLoad(server.getPort(), clients, requests);
+			server.stop();
+			print(EXECUTION_MODES[i], "fast", latencies[0]);
+			print(EXECUTION_MODES[i], "slow", latencies[1]);
+		}
+
+		Files.delete(workersConfig);
+		System.exit(0);
+	}
+
+	/**
+	 * Sends the requests to the server from the given number of concurrent
+	 * clients, and measures how long each request took.
+	 * 
+	 * @param  port                 port of the server
+	 * @param  clients              number of concurrent clients
+	 * @param  requests             number of requests each client sends
+	 * @return                      latencies of the fast requests and of the
+	 *                              slow requests, in nanoseconds
+	 * @throws InterruptedException if interrupted while waiting for the
+	 *                              clients
+	 */
+	private static long[][] runLoad(int port, int clients, int requests)
+			throws InterruptedException {
+		long[][] fast = new long[clients][];
+		long[][] slow = new long[clients][];
+		CountDownLatch done = new CountDownLatch(clients);
+
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			new Thread(() -> {
+				long[] fastLatencies = new long[requests];
+				long[] slowLatencies = new long[requests];
+				int f = 0, s = 0;
+				for (int r = 0; r < requests; r++) {
+					boolean isSlow = (r + client) % 5 == 0;
+					long start = System.nanoTime();
+					sendRequest(port, isSlow ? "/slow?ms=" + SLOW_WORKER_DELAY
+							: "/sample.txt");
+					long latency = System.nanoTime() - start;
+					if (isSlow) {
+						slowLatencies[s++] = latency;
+					} else {
+						fastLatencies[f++] = latency;
+					}
+				}
+				fast[client] = Arrays.copyOf(fastLatencies, f);
+				slow[client] = Arrays.copyOf(slowLatencies, s);
+				done.countDown();
+			}).start();
+		}
+		done.await();
+
+		return new long[][] { flatten(fast), flatten(slow) };
+	}
+
+	/**
+	 * Sends a single request and reads the whole response.
+	 * 
+	 * @param port port of the server
+	 * @param path requested path
+	 */
+	private static void sendRequest(int port, String path) {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress("127.0.0.1", port));
+			OutputStream os = socket.getOutputStream();
+			os.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+					+ "Connection: close\r\n\r\n")
+							.getBytes(StandardCharsets.ISO_8859_1));
+			os.flush();
+			InputStream is = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			while (is.read(buffer) != -1) {
+				// discard the response
+			}
+		} catch (IOException e) {
+			System.out.println("Request failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Joins the latencies of all clients into a single sorted array.
+	 * 
+	 * @param  latencies latencies of every client
+	 * @return           sorted latencies
+	 */
+	static long[] flatten(long[][] latencies) {
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream)
+				.toArray();
+		Arrays.sort(all);
+		return all;
+	}
+
+	/**
+	 * Prints the percentiles of the given latencies.
+	 * 
+	 * @param mode      execution mode of the server
+	 * @param type      type of the requests
+	 * @param latencies sorted latencies, in nanoseconds
+	 */
+	private static void print(String mode, String type, long[] latencies) {
+		if (latencies.length == 0) {
+			return;
+		}
+		System.out.printf("%-10s %-6s %10.2f %10.2f %10.2f%n", mode, type,
+				percentile(latencies, 0.50), percentile(latencies, 0.99),
+				latencies[latencies.length - 1] / 1e6);
+	}
+
+	/**
+	 * Calculates the given percentile of sorted latencies.
+	 * 
+	 * @param  latencies sorted latencies, in nanoseconds
+	 * @param  p         percentile, between 0 and 1
+	 * @return           latency at the percentile, in milliseconds
+	 */
+	static double percentile(long[] latencies, double p) {
+		int index = (int) Math.ceil(p * latencies.length) - 1;
+		return latencies[Math.max(0, index)] / 1e6;
+	}
+}
@@ -0,0 +1,235 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Load driver which measures the whole request pipeline of the server over
+ * the loopback interface. Server is started in the given connection mode, and
+ * a number of concurrent clients send requests over persistent connections,
+ * each client waiting for its response before sending the next request.
+ * Requested paths are taken in turns. After a warm-up, the throughput and
+ * the percentiles of the latency are printed.
+ * <p>
+ * Program accepts optional arguments - the connection mode, the number of
+ * clients, the duration of the measurement in seconds, and the requested
+ * paths. It is expected to be started from the project root directory.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class LoopbackDriver {
+
+	// how long the server is warmed up before measuring, in milliseconds
+	private static final long WARMUP = 3000;
+	// maximum number of latencies recorded by a single client
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	/**
+	 * Main method of the program.
+	 * 
+	 * @param  args      connection mode, number of clients, duration in
+	 *                   seconds and requested paths, all optional
+	 * @throws Exception if the server cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "nio";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		long duration =
+				(args.length > 2 ? Long.parseLong(args[2]) : 10) * 1000;
+		String[] paths = args.length > 3
+				? Arrays.copyOfRange(args, 3, args.length)
+				: new String[] { "/index.html", "/scripts/osnovni.smscr",
+						"/hello" };
+
+		Properties config = TestServer.config();
+		config.setProperty("server.mode", mode);
+		config.setProperty("server.maxKeepAliveRequests",
+				Integer.toString(Integer.MAX_VALUE));
+		config.setProperty("server.maxConnections",
+				Integer.toString(clients * 2));
+		config.setProperty("server.workQueueSize",
+				Integer.toString(clients * 2));
+		// every client connects from the same address
+		config.setProperty("server.clientRateLimit", "0");
+		config.setProperty("server.sessionRateLimit", "0");
+
+		SmartHttpServer server = TestServer.start(config);
+		int port = server.getPort();
+
+		System.out.printf("%s mode, %d clients, %d s, paths %s%n", mode,
+				clients, duration / 1000, Arrays.toString(paths));
+		long[][] latencies = new long[clients][];
+		long[] failures = new long[clients];
+		CountDownLatch done = new CountDownLatch(clients);
+		long measureFrom = System.nanoTime() + WARMUP * 1_000_000;
+		long measureTo = measureFrom + duration * 1_000_000;
+
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			new Thread(() -> {
+				long[] samples = new long[MAX_SAMPLES];
+				int count = 0;
+				int next = client;
+				Socket socket = null;
+				InputStream input = null;
+				while (System.nanoTime() < measureTo) {
+					String path = paths[next++ % paths.length];
+					long start = System.nanoTime();
+					try {
+						if (socket == null) {
+							socket = new Socket();
+							socket.setTcpNoDelay(true);
+							socket.connect(
+									new InetSocketAddress("127.0.0.1", port));
+							input = new BufferedInputStream(
+									socket.getInputStream());
+						}
+						if (!exchange(socket.getOutputStream(), input,
+								path)) {
+							socket.close();
+							socket = null;
+						}
+					} catch (IOException e) {
+						close(socket);
+						socket = null;
+						if (start >= measureFrom) {
+							failures[client]++;
+						}
+						continue;
+					}
+					if (start >= measureFrom && count < MAX_SAMPLES) {
+						samples[count++] = System.nanoTime() - start;
+					}
+				}
+				latencies[client] = Arrays.copyOf(samples, count);
+				done.countDown();
+			}).start();
+		}
+		done.await();
+		server.stop();
+
+		long[] all = LoadTester.flatten(latencies);
+		long failed = Arrays.stream(failures).sum();
+		System.out.printf(Locale.ROOT, "requests: %d, failed: %d, "
+				+ "throughput: %.0f req/s%n", all.length, failed,
+				all.length * 1000.0 / duration);
+		if (all.length > 0) {
+			System.out.printf(Locale.ROOT,
+					"latency [ms] p50: %.3f, p90: %.3f, p99: %.3f, "
+							+ "p99.9: %.3f, max: %.3f%n",
+					LoadTester.percentile(all, 0.50),
+					LoadTester.percentile(all, 0.90),
+					LoadTester.percentile(all, 0.99),
+					LoadTester.percentile(all, 0.999),
+					all[all.length - 1] / 1e6);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Sends a single request over the persistent connection, and reads its
+	 * whole response.
+	 * 
+	 * @param  os          stream of the requests
+	 * @param  is          stream of the responses
+	 * @param  path        requested path
+	 * @return             <code>true</code> if the connection can be used for
+	 *                     the next request, <code>false</code> otherwise
+	 * @throws IOException if the request fails
+	 */
+	private static boolean exchange(OutputStream os, InputStream is,
+			String path) throws IOException {
+		os.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+				+ "Accept-Encoding: gzip\r\n\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1));
+		os.flush();
+
+		String header = readLine(is);
+		if (header == null) {
+			throw new IOException("Connection closed.");
+		}
+		long contentLength = -1;
+		boolean chunked = false;
+		boolean keepAlive = true;
+		String line;
+		while ((line = readLine(is)) != null && !line.isEmpty()) {
+			String lower = line.toLowerCase(Locale.ROOT);
+			if (lower.startsWith("content-length:")) {
+				contentLength = Long.parseLong(line.substring(15).trim());
+			} else if (lower.startsWith("transfer-encoding:")) {
+				chunked = lower.contains("chunked");
+			} else if (lower.startsWith("connection:")) {
+				keepAlive = !lower.contains("close");
+			}
+		}
+
+		if (chunked) {
+			long size;
+			while ((size = Long.parseLong(readLine(is).trim(), 16)) > 0) {
+				is.skipNBytes(size + 2);
+			}
+			readLine(is); // end of the last chunk
+		} else if (contentLength >= 0) {
+			is.skipNBytes(contentLength);
+		} else if (!header.contains(" 304 ")) { // delimited by closing
+			while (is.read() != -1) {
+				// discard the content
+			}
+			return false;
+		}
+		if (is.available() > 0) {
+			throw new IOException("Unexpected bytes after the response.");
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Reads a single line of the response header.
+	 * 
+	 * @param  is          stream of the response
+	 * @return             the line, without its terminator, or
+	 *                     <code>null</code> if the stream has ended
+	 * @throws IOException if the line cannot be read
+	 */
+	private static String readLine(InputStream is) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = is.read()) != -1) {
+			if (b == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			sb.append((char) b);
+		}
+		return sb.length() == 0 ? null : sb.toString();
+	}
+
+	/**
+	 * Closes the given connection, ignoring the errors.
+	 * 
+	 * @param socket connection to close, or <code>null</code>
+	 */
+	private static void close(Socket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException ignorable) {
+			// connection is unusable anyway
+		}
+	}
+}
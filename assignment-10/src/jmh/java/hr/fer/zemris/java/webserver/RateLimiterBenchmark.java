@@ -0,0 +1,87 @@
+package hr.fer.zemris.java.webserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of checking the rate limit of a client, as done for every request
+ * the server receives. Several threads check the limits at once, either of
+ * the same client, so that they compete for its bucket, or of many clients.
+ *
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+	@Param({ "1", "4096" })
+	private int clients;
+
+	// "allowed" never runs out of tokens, "limited" has run out of them
+	@Param({ "allowed", "limited" })
+	private String limit;
+
+	private InetAddress[] addresses; // addresses of the clients
+	private RateLimiter<InetAddress> limiter; // limiter which is measured
+
+	/**
+	 * Creates the addresses of the clients, and the limiter.
+	 *
+	 * @throws UnknownHostException never, since the addresses are numeric
+	 */
+	@Setup
+	public void setUp() throws UnknownHostException {
+		addresses = new InetAddress[clients];
+		for (int i = 0; i < clients; i++) {
+			addresses[i] = InetAddress.getByAddress(
+					new byte[] { 10, 0, (byte) (i >> 8), (byte) i });
+		}
+		limiter = limit.equals("allowed")
+				? new RateLimiter<InetAddress>(1e12, 1000)
+				: new RateLimiter<InetAddress>(1e-3, 1);
+	}
+
+	/**
+	 * Index of the next client checked by a thread.
+	 *
+	 * @author jankovidakovic
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next; // index of the next client
+	}
+
+	/**
+	 * Takes a token from the bucket of the next client.
+	 *
+	 * @param  cursor index of the next client
+	 * @return        time to wait for a token, 0 if the token was taken
+	 */
+	@Benchmark
+	public long acquire(Cursor cursor) {
+		int index = cursor.next;
+		cursor.next = index + 1 == clients ? 0 : index + 1;
+		return limiter.acquire(addresses[index], System.nanoTime());
+	}
+}
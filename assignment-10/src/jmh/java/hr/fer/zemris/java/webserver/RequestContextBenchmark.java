@@ -0,0 +1,115 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+/**
+ * Benchmark of generating the responses through the request context - the
+ * header alone, and the header with text content of the given size, which is
+ * buffered, and compressed if requested.
+ * 
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestContextBenchmark {
+
+	private DiscardingOutputStream output = new DiscardingOutputStream();
+
+	/**
+	 * Content of the dynamic responses.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class Content {
+
+		@Param({ "100", "10000" })
+		private int contentSize;
+
+		@Param({ "identity", "gzip" })
+		private String encoding;
+
+		private String text; // text that is written
+		private Compression compression; // settings of compression
+
+		/**
+		 * Creates the written text, and the settings of compression.
+		 */
+		@Setup
+		public void setUp() {
+			StringBuilder sb = new StringBuilder(contentSize);
+			while (sb.length() < contentSize) {
+				sb.append("<p>Line number ").append(sb.length())
+						.append(" of the generated page.</p>\n");
+			}
+			text = sb.substring(0, contentSize);
+			compression = new Compression(true, 1024, "text/html");
+		}
+	}
+
+	/**
+	 * Generates a response which consists only of the header, as sent for
+	 * the refused requests and the unmodified files.
+	 * 
+	 * @return number of bytes written so far
+	 * @throws IOException never, since nothing is really written
+	 */
+	@Benchmark
+	public long header() throws IOException {
+		RequestContext rc = new RequestContext(output, null, null, null);
+		rc.setStatusCode(304);
+		rc.setStatusText("Not Modified");
+		rc.setETag("\"5f3a-17d2c\"");
+		rc.setKeepAlive(true);
+		rc.finish();
+		return output.getCount();
+	}
+
+	/**
+	 * Generates a dynamic response, the way the server does for the workers
+	 * and the scripts - buffered, with a session cookie.
+	 * 
+	 * @param  content     content of the response
+	 * @return             number of bytes written so far
+	 * @throws IOException never, since nothing is really written
+	 */
+	@Benchmark
+	public long bufferedWrite(Content content) throws IOException {
+		ArrayList<RCCookie> cookies = new ArrayList<RCCookie>();
+		cookies.add(new RCCookie("sid", "QWERTYUIOPASDFGHJKLZ", null,
+				"www.localhost.com", "/"));
+		RequestContext rc = new RequestContext(output,
+				new HashMap<String, String>(), new HashMap<String, String>(),
+				new HashMap<String, String>(), cookies, null, null);
+		rc.setBuffered(true);
+		rc.setKeepAlive(true);
+		rc.setCompression(content.compression,
+				content.encoding.equals("identity") ? null : content.encoding);
+		rc.write(content.text);
+		rc.finish();
+		return output.getCount();
+	}
+}
@@ -0,0 +1,63 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of generating session identifiers from several threads at once.
+ * The generator used by the server is compared to the previous approach, in
+ * which all threads shared a single <code>Random</code>, reseeded it with the
+ * current time, and built the identifier by string concatenation. The number
+ * of threads can be changed with the <code>-t</code> option of JMH.
+ * 
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SessionIdBenchmark {
+
+	private SessionIdGenerator generator = new SessionIdGenerator();
+	private Random shared = new Random(); // shared by all threads
+
+	/**
+	 * Generates an identifier with the generator used by the server.
+	 * 
+	 * @return the identifier
+	 */
+	@Benchmark
+	public String generator() {
+		return generator.nextId();
+	}
+
+	/**
+	 * Generates an identifier as it was generated before.
+	 * 
+	 * @return the identifier
+	 */
+	@Benchmark
+	public String legacy() {
+		shared.setSeed(System.currentTimeMillis());
+		String sid = "";
+		for (int i = 0; i < 20; i++) {
+			sid += Character.toString(shared.nextInt(26) + 65);
+		}
+		return sid;
+	}
+}
@@ -0,0 +1,148 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptCompiler;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.exec.Template;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+/**
+ * Benchmark of parsing and executing the smart scripts bundled in the
+ * <code>webroot/scripts</code> directory. Benchmark is expected to be started
+ * from the project root directory.
+ * 
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartScriptBenchmark {
+
+	@Param({ "osnovni.smscr", "fibonacci.smscr", "fibonaccih.smscr",
+			"zbrajanje.smscr", "brojPoziva.smscr" })
+	private String script;
+
+	private String text; // source of the script
+	private DocumentNode document; // parsed script
+	private Template template; // compiled script
+	private Map<String, String> parameters; // parameters of the request
+	private Map<String, String> persistentParameters; // of the session
+	private DiscardingOutputStream output = new DiscardingOutputStream();
+
+	/**
+	 * Reads, parses and compiles the script.
+	 * 
+	 * @throws IOException if the script cannot be read
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		text = Files.readString(Paths.get("webroot/scripts", script));
+		document = new SmartScriptParser(text).getDocumentNode();
+		template = SmartScriptCompiler.compile(document);
+		parameters = new HashMap<String, String>();
+		parameters.put("a", "20");
+		parameters.put("b", "22");
+		persistentParameters = new HashMap<String, String>();
+	}
+
+	/**
+	 * Parses the script.
+	 * 
+	 * @return the parsed script
+	 */
+	@Benchmark
+	public DocumentNode parse() {
+		return new SmartScriptParser(text).getDocumentNode();
+	}
+
+	/**
+	 * Executes the already parsed script, as done for the scripts found in
+	 * the script cache.
+	 * 
+	 * @return number of bytes written so far
+	 * @throws IOException never, since nothing is really written
+	 */
+	@Benchmark
+	public long execute() throws IOException {
+		return run(document);
+	}
+
+	/**
+	 * Executes the compiled script, as done for the scripts found in the
+	 * script cache when compiling is enabled.
+	 * 
+	 * @return number of bytes written so far
+	 * @throws IOException never, since nothing is really written
+	 */
+	@Benchmark
+	public long executeCompiled() throws IOException {
+		RequestContext rc = context();
+		template.execute(rc);
+		rc.finish();
+		return output.getCount();
+	}
+
+	/**
+	 * Parses and executes the script, as done for the scripts which are not
+	 * cached.
+	 * 
+	 * @return number of bytes written so far
+	 * @throws IOException never, since nothing is really written
+	 */
+	@Benchmark
+	public long parseAndExecute() throws IOException {
+		return run(new SmartScriptParser(text).getDocumentNode());
+	}
+
+	/**
+	 * Executes the given script, writing the buffered response.
+	 * 
+	 * @param  document    parsed script
+	 * @return             number of bytes written so far
+	 * @throws IOException never, since nothing is really written
+	 */
+	private long run(DocumentNode document) throws IOException {
+		RequestContext rc = context();
+		new SmartScriptEngine(document, rc).execute();
+		rc.finish();
+		return output.getCount();
+	}
+
+	/**
+	 * Creates the context of a request, whose response is buffered.
+	 * 
+	 * @return the context
+	 */
+	private RequestContext context() {
+		RequestContext rc = new RequestContext(output, parameters,
+				new HashMap<String, String>(), persistentParameters,
+				new ArrayList<RCCookie>(), null, null);
+		rc.setBuffered(true);
+		return rc;
+	}
+}
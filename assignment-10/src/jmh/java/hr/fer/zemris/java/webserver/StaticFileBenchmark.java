@@ -0,0 +1,97 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.fer.zemris.java.webserver.StaticFileCache.CachedFile;
+
+/**
+ * Benchmark of serving the static files from the <code>webroot</code>
+ * directory - looking the file up in the cache of static files, and writing
+ * the response with its content, compressed if requested. Benchmark is
+ * expected to be started from the project root directory.
+ * 
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StaticFileBenchmark {
+
+	@Param({ "index.html", "sample.txt", "fruits.png" })
+	private String file;
+
+	@Param({ "identity", "gzip" })
+	private String encoding;
+
+	@Param({ "65536", "0" })
+	private long maxCachedFileSize;
+
+	private Path path; // path of the served file
+	private StaticFileCache cache; // cache of the static files
+	private DiscardingOutputStream output = new DiscardingOutputStream();
+
+	/**
+	 * Creates the cache of the static files.
+	 */
+	@Setup
+	public void setUp() {
+		path = Paths.get("webroot", file).toAbsolutePath();
+		cache = new StaticFileCache(16 * 1024 * 1024, maxCachedFileSize);
+	}
+
+	/**
+	 * Serves the file, the way the server serves the static files.
+	 * 
+	 * @return number of bytes written so far
+	 * @throws IOException if the file cannot be read
+	 */
+	@Benchmark
+	public long serve() throws IOException {
+		CachedFile cached = cache.get(path);
+		RequestContext rc = new RequestContext(output, null, null, null);
+		rc.setMimeType(file.endsWith(".png") ? "image/png" : "text/html");
+		rc.setKeepAlive(true);
+
+		byte[] content = cached.getContent();
+		String eTag = cached.getETag();
+		if (!encoding.equals("identity") && content != null) {
+			byte[] compressed = cached.getContent(encoding);
+			if (compressed.length < content.length) {
+				content = compressed;
+				eTag = cached.getETag(encoding);
+				rc.setContentEncoding(encoding);
+			}
+		}
+		rc.setETag(eTag);
+		rc.setLastModified(cached.getLastModified());
+
+		if (content != null) {
+			rc.setContentLength((long) content.length);
+			rc.write(content);
+		} else {
+			rc.setContentLength(cached.getSize());
+			rc.writeFile(path, 0, cached.getSize());
+		}
+		rc.finish();
+		return output.getCount();
+	}
+}
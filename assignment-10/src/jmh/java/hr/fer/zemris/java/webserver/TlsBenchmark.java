@@ -0,0 +1,239 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the HTTPS listener against a client over the loopback
+ * interface - the handshake of a new connection, either complete or resuming
+ * an earlier session, and requests sent over an established connection. The
+ * same is measured over plain HTTP, where a new connection costs only its
+ * TCP handshake, to show what TLS adds.
+ * <p>
+ * Key store of the server is generated by <code>keytool</code> for every run.
+ * Benchmark is expected to be started from the project root directory.
+ *
+ * @author jankovidakovic
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+
+	// port of the HTTPS listener, which cannot be chosen by the system
+	private static final int HTTPS_PORT = 5742;
+	// password of the generated key store
+	private static final String PASSWORD = "benchmark";
+	// request for a small static file
+	private static final byte[] REQUEST =
+			"GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+					.getBytes(StandardCharsets.ISO_8859_1);
+
+	@Param({ "blocking", "nio" })
+	private String mode;
+
+	@Param({ "plain", "tls" })
+	private String transport;
+
+	private Path keyStore; // generated key store of the server
+	private SmartHttpServer server; // measured server
+	private int port; // port of the measured listener
+	private SSLContext client; // context of the client, which keeps the
+								// sessions to resume
+	private Socket socket; // established connection
+	private InputStream input; // responses over the established connection
+
+	/**
+	 * Generates the key store, starts the server, and establishes the
+	 * connection for the requests.
+	 *
+	 * @throws Exception if the server cannot be started
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		keyStore = Files.createTempDirectory("tls-benchmark")
+				.resolve("keystore.p12");
+		Process keytool = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "keytool")
+						.toString(),
+				"-genkeypair", "-alias", "server", "-keyalg", "EC", "-dname",
+				"CN=localhost", "-storetype", "PKCS12", "-keystore",
+				keyStore.toString(), "-storepass", PASSWORD)
+						.inheritIO().start();
+		if (keytool.waitFor() != 0) {
+			throw new IOException("Cannot generate the key store.");
+		}
+
+		Properties config = TestServer.config();
+		config.setProperty("server.httpsPort", Integer.toString(HTTPS_PORT));
+		config.setProperty("server.keyStore", keyStore.toString());
+		config.setProperty("server.keyStorePassword", PASSWORD);
+		config.setProperty("server.mode", mode);
+		config.setProperty("server.maxKeepAliveRequests",
+				Integer.toString(Integer.MAX_VALUE));
+		config.setProperty("server.clientRateLimit", "0");
+		config.setProperty("server.sessionRateLimit", "0");
+
+		server = TestServer.start(config);
+		port = transport.equals("tls") ? HTTPS_PORT : server.getPort();
+
+		// client trusts the certificate from the key store
+		KeyStore trusted = KeyStore.getInstance("PKCS12");
+		try (InputStream is = Files.newInputStream(keyStore)) {
+			trusted.load(is, PASSWORD.toCharArray());
+		}
+		TrustManagerFactory trust = TrustManagerFactory
+				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(trusted);
+		client = SSLContext.getInstance("TLS");
+		client.init(null, trust.getTrustManagers(), null);
+
+		socket = connect();
+		input = new BufferedInputStream(socket.getInputStream());
+	}
+
+	/**
+	 * Closes the connection, stops the server and deletes the key store.
+	 *
+	 * @throws IOException if the key store cannot be deleted
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		socket.close();
+		server.stop();
+		Files.delete(keyStore);
+		Files.delete(keyStore.getParent());
+	}
+
+	/**
+	 * Opens a new connection, performing the whole handshake, and sends a
+	 * single request over it.
+	 *
+	 * @return             size of the response
+	 * @throws IOException if the request fails
+	 */
+	@Benchmark
+	public int handshake() throws IOException {
+		try (Socket connection = connect()) {
+			int size = exchange(connection,
+					new BufferedInputStream(connection.getInputStream()));
+			if (connection instanceof SSLSocket) { // not to be resumed
+				((SSLSocket) connection).getSession().invalidate();
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Opens a new connection, resuming the session of an earlier one, and
+	 * sends a single request over it.
+	 *
+	 * @return             size of the response
+	 * @throws IOException if the request fails
+	 */
+	@Benchmark
+	public int resumedHandshake() throws IOException {
+		try (Socket connection = connect()) {
+			return exchange(connection,
+					new BufferedInputStream(connection.getInputStream()));
+		}
+	}
+
+	/**
+	 * Sends a single request over the established connection.
+	 *
+	 * @return             size of the response
+	 * @throws IOException if the request fails
+	 */
+	@Benchmark
+	public int request() throws IOException {
+		return exchange(socket, input);
+	}
+
+	/**
+	 * Opens a new connection to the measured listener.
+	 *
+	 * @return             the connection, with its handshake done
+	 * @throws IOException if unable to connect
+	 */
+	private Socket connect() throws IOException {
+		Socket connection = new Socket();
+		connection.setTcpNoDelay(true);
+		connection.connect(new InetSocketAddress("127.0.0.1", port));
+		if (!transport.equals("tls")) {
+			return connection;
+		}
+		SSLSocket secure = (SSLSocket) client.getSocketFactory()
+				.createSocket(connection, "localhost", port, true);
+		secure.startHandshake();
+		return secure;
+	}
+
+	/**
+	 * Sends the request, and reads its whole response.
+	 *
+	 * @param  connection  connection to send the request over
+	 * @param  is          stream of the responses
+	 * @return             size of the response content
+	 * @throws IOException if the request fails
+	 */
+	private static int exchange(Socket connection, InputStream is)
+			throws IOException {
+		OutputStream os = connection.getOutputStream();
+		os.write(REQUEST);
+		os.flush();
+
+		int contentLength = -1;
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = is.read()) != -1) {
+			if (b != '\n') {
+				line.append((char) b);
+				continue;
+			}
+			if (line.length() <= 1) { // end of the header
+				is.skipNBytes(contentLength);
+				return contentLength;
+			}
+			String field = line.toString();
+			if (field.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				contentLength = Integer.parseInt(field.substring(15).trim());
+			}
+			line.setLength(0);
+		}
+		throw new IOException("Connection closed.");
+	}
+}
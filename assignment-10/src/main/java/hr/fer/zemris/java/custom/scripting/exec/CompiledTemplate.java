@@ -0,0 +1,245 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Base class of the templates generated by {@link SmartScriptCompiler}. The
+ * generated code only arranges the calls of the operations provided here,
+ * which behave exactly as the corresponding operations of
+ * {@link SmartScriptEngine}, so a compiled script writes the same result as
+ * the interpreted one.
+ * <p>
+ * Generated classes are defined by their own class loaders, so they can only
+ * use the public and protected members of this class.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public abstract class CompiledTemplate implements Template {
+
+	/**
+	 * Writes the text of a text node. Text is written as the given bytes if
+	 * the context encodes its output in UTF-8, which is the usual case, so
+	 * the text is not encoded again for every request.
+	 * 
+	 * @param  context          request to write to
+	 * @param  encoded          text encoded in UTF-8
+	 * @param  text             the text itself
+	 * @throws RuntimeException if unable to write the text
+	 */
+	protected static void text(RequestContext context, byte[] encoded,
+			String text) {
+		try {
+			if (StandardCharsets.UTF_8.equals(context.getCharset())) {
+				context.write(encoded);
+			} else {
+				context.write(text);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Cannot execute text node.");
+		}
+	}
+
+	/**
+	 * Writes a value which remained on the stack of an echo node.
+	 * 
+	 * @param  context          request to write to
+	 * @param  value            value to write
+	 * @throws RuntimeException if unable to write the value
+	 */
+	protected static void echo(RequestContext context, Object value) {
+		try {
+			context.write(value.toString());
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to write to request context.");
+		}
+	}
+
+	/**
+	 * Applies the <code>+</code> operator.
+	 * 
+	 * @param  first  first operand
+	 * @param  second second operand
+	 * @return        the result
+	 */
+	protected static Object add(Object first, Object second) {
+		ValueWrapper result = new ValueWrapper(first);
+		result.add(second);
+		return result.getValue();
+	}
+
+	/**
+	 * Applies the <code>-</code> operator.
+	 * 
+	 * @param  first  first operand
+	 * @param  second second operand
+	 * @return        the result
+	 */
+	protected static Object subtract(Object first, Object second) {
+		ValueWrapper result = new ValueWrapper(first);
+		result.subtract(second);
+		return result.getValue();
+	}
+
+	/**
+	 * Applies the <code>*</code> operator.
+	 * 
+	 * @param  first  first operand
+	 * @param  second second operand
+	 * @return        the result
+	 */
+	protected static Object multiply(Object first, Object second) {
+		ValueWrapper result = new ValueWrapper(first);
+		result.multiply(second);
+		return result.getValue();
+	}
+
+	/**
+	 * Applies the <code>/</code> operator.
+	 * 
+	 * @param  first  first operand
+	 * @param  second second operand
+	 * @return        the result
+	 */
+	protected static Object divide(Object first, Object second) {
+		ValueWrapper result = new ValueWrapper(first);
+		result.divide(second);
+		return result.getValue();
+	}
+
+	/**
+	 * Calculates the sine of the given number.
+	 * 
+	 * @param  arg              an integer or a decimal number
+	 * @return                  sine of the number
+	 * @throws RuntimeException if the argument is not a number
+	 */
+	protected static Object sin(Object arg) {
+		if (arg instanceof Integer) {
+			return Math.sin((Integer) arg);
+		} else if (arg instanceof Double) {
+			return Math.sin((Double) arg);
+		} else {
+			throw new RuntimeException("Invalid function argument.");
+		}
+	}
+
+	/**
+	 * Formats the given number with the given format, which is compatible
+	 * with <code>DecimalFormat</code>.
+	 * 
+	 * @param  x      number to format
+	 * @param  format format of the number
+	 * @return        the formatted number
+	 */
+	protected static Object decfmt(Object x, Object format) {
+		DecimalFormat f = new DecimalFormat((String) format);
+		return f.format(x);
+	}
+
+	/**
+	 * Sets the mime type of the request.
+	 * 
+	 * @param context  request whose mime type is set
+	 * @param mimeType the mime type
+	 */
+	protected static void setMimeType(RequestContext context,
+			Object mimeType) {
+		context.setMimeType((String) mimeType);
+	}
+
+	/**
+	 * Retrieves a parameter of the request.
+	 * 
+	 * @param  context      request whose parameter is retrieved
+	 * @param  name         name of the parameter
+	 * @param  defaultValue value which is returned if there is no such
+	 *                      parameter
+	 * @return              value of the parameter
+	 */
+	protected static Object paramGet(RequestContext context, Object name,
+			Object defaultValue) {
+		String value = context.getParameter((String) name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Retrieves a persistent parameter of the request.
+	 * 
+	 * @param  context      request whose parameter is retrieved
+	 * @param  name         name of the parameter
+	 * @param  defaultValue value which is returned if there is no such
+	 *                      parameter
+	 * @return              value of the parameter
+	 */
+	protected static Object pparamGet(RequestContext context, Object name,
+			Object defaultValue) {
+		String value = context.getPersistentParameter((String) name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Stores a persistent parameter of the request.
+	 * 
+	 * @param context request whose parameter is stored
+	 * @param name    name of the parameter
+	 * @param value   value of the parameter
+	 */
+	protected static void pparamSet(RequestContext context, Object name,
+			Object value) {
+		String nameText = name.toString();
+		context.setPersistentParameter(nameText, value.toString());
+	}
+
+	/**
+	 * Removes a persistent parameter of the request.
+	 * 
+	 * @param context request whose parameter is removed
+	 * @param name    name of the parameter
+	 */
+	protected static void pparamDel(RequestContext context, Object name) {
+		context.removePersistentParameter((String) name);
+	}
+
+	/**
+	 * Retrieves a temporary parameter of the request.
+	 * 
+	 * @param  context      request whose parameter is retrieved
+	 * @param  name         name of the parameter
+	 * @param  defaultValue value which is returned if there is no such
+	 *                      parameter
+	 * @return              value of the parameter
+	 */
+	protected static Object tparamGet(RequestContext context, Object name,
+			Object defaultValue) {
+		String value = context.getTemporaryParameter((String) name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Stores a temporary parameter of the request.
+	 * 
+	 * @param context request whose parameter is stored
+	 * @param name    name of the parameter
+	 * @param value   value of the parameter
+	 */
+	protected static void tparamSet(RequestContext context, Object name,
+			Object value) {
+		String nameText = name.toString();
+		context.setTemporaryParameter(nameText, value.toString());
+	}
+
+	/**
+	 * Removes a temporary parameter of the request.
+	 * 
+	 * @param context request whose parameter is removed
+	 * @param name    name of the parameter
+	 */
+	protected static void tparamDel(RequestContext context, Object name) {
+		context.removeTemporaryParameter((String) name);
+	}
+}
@@ -0,0 +1,615 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import hr.fer.zemris.java.custom.scripting.elems.Element;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantDouble;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
+import hr.fer.zemris.java.custom.scripting.elems.ElementFunction;
+import hr.fer.zemris.java.custom.scripting.elems.ElementOperator;
+import hr.fer.zemris.java.custom.scripting.elems.ElementString;
+import hr.fer.zemris.java.custom.scripting.elems.ElementVariable;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
+import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
+import hr.fer.zemris.java.custom.scripting.nodes.INodeVisitor;
+import hr.fer.zemris.java.custom.scripting.nodes.TextNode;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Compiler of smart scripts into Java classes. Instead of walking the document
+ * tree and deciding what every element means each time the script is
+ * executed, as {@link SmartScriptEngine} does, the compiler makes those
+ * decisions once, and writes them down as the source of a
+ * {@link CompiledTemplate}:
+ * <ul>
+ * <li>text nodes write bytes which were encoded in advance,</li>
+ * <li>the stack of an echo node becomes a set of local variables, since its
+ * depth at every element is known,</li>
+ * <li>loop variables are resolved to the local variables of their loops,
+ * and loops whose bounds and step are integer constants count in an
+ * <code>int</code>.</li>
+ * </ul>
+ * The source is compiled in memory by the compiler of the running JDK, and
+ * every compiled class is defined by its own class loader, so it can be
+ * unloaded once its script is no longer used.
+ * <p>
+ * Scripts that cannot be compiled are interpreted instead. These are scripts
+ * with elements that would fail the interpreter, such as unknown functions or
+ * variables outside of their loops, which are left to fail just as they
+ * would, and all scripts if the JVM provides no compiler.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class SmartScriptCompiler {
+
+	// package of the generated classes
+	private static final String PACKAGE =
+			CompiledTemplate.class.getPackageName();
+	// numbers the generated classes
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/**
+	 * Creates a template which executes the given script. The template is
+	 * compiled if possible, and interprets the script otherwise.
+	 * 
+	 * @param  document root node of the parsed script
+	 * @return          template of the script
+	 */
+	public static Template compile(DocumentNode document) {
+		Template template = null;
+		try {
+			Generator generator = new Generator(
+					"CompiledScript" + COUNTER.incrementAndGet());
+			document.accept(generator);
+			template = generator.define();
+		} catch (UnsupportedScriptException e) {
+			// interpreted below
+		}
+		if (template == null) {
+			template = context -> new SmartScriptEngine(document, context)
+					.execute();
+		}
+		return template;
+	}
+
+	/**
+	 * Visitor which generates the source of a template class.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class Generator implements INodeVisitor {
+
+		private String className; // simple name of the generated class
+		private StringBuilder body = new StringBuilder(); // of execute()
+		private String indent = "\t\t"; // indentation of the body
+		private List<Object> constants = new ArrayList<>(); // of the script
+		// expressions which retrieve the values of the visible variables
+		private Map<String, String> variables = new HashMap<>();
+		private int loops; // number of generated loops
+
+		/**
+		 * Creates a generator of the class with the given name.
+		 * 
+		 * @param className simple name of the generated class
+		 */
+		Generator(String className) {
+			this.className = className;
+		}
+
+		@Override
+		public void visitDocumentNode(DocumentNode node) {
+			for (int i = 0; i < node.numberOfChildren(); i++) {
+				node.getChild(i).accept(this);
+			}
+		}
+
+		@Override
+		public void visitTextNode(TextNode node) {
+			String text = node.getText();
+			if (text.isEmpty()) { // the interpreter writes nothing as well
+				return;
+			}
+			line("text(context, " + constant(text.getBytes(
+					StandardCharsets.UTF_8)) + ", " + constant(text) + ");");
+		}
+
+		@Override
+		public void visitForLoopNode(ForLoopNode node) {
+			if (node.getStepExpression() == null) {
+				throw new UnsupportedScriptException("Loop without a step.");
+			}
+			String name = node.getVariable().asText();
+			int loop = ++loops;
+
+			String outer = variables.get(name);
+			if (node.getStartExpression() instanceof ElementConstantInteger
+					&& node.getEndExpression() instanceof ElementConstantInteger
+					&& node.getStepExpression()
+							instanceof ElementConstantInteger) {
+				// counted in an int, and compared as the wrapper compares
+				// integers. Until the first step, the variable is the text of
+				// the start expression, as in the interpreter.
+				String i = "i" + loop;
+				String v = "v" + loop;
+				line("Object " + v + " = "
+						+ constant(node.getStartExpression().asText()) + ";");
+				line("for (int " + i + " = "
+						+ intOf(node.getStartExpression()) + "; " + i + " - "
+						+ intOf(node.getEndExpression()) + " <= 0; " + i
+						+ " += " + intOf(node.getStepExpression()) + ", " + v
+						+ " = null) {");
+				variables.put(name, v + " != null ? " + v
+						+ " : Integer.valueOf(" + i + ")");
+				children(node);
+				line("}");
+			} else {
+				String w = "w" + loop;
+				line("ValueWrapper " + w + " = new ValueWrapper("
+						+ constant(node.getStartExpression().asText()) + ");");
+				line("while (" + w + ".numCompare("
+						+ constant(node.getEndExpression().asText())
+						+ ") <= 0) {");
+				variables.put(name, w + ".getValue()");
+				children(node);
+				line("\t" + w + ".add("
+						+ constant(node.getStepExpression().asText()) + ");");
+				line("}");
+			}
+
+			if (outer == null) {
+				variables.remove(name);
+			} else {
+				variables.put(name, outer);
+			}
+		}
+
+		@Override
+		public void visitEchoNode(EchoNode node) {
+			StringBuilder echo = new StringBuilder();
+			int depth = 0; // of the stack after the current element
+			int maxDepth = 0;
+
+			for (Element element : node.getElements()) {
+				if (element instanceof ElementVariable) {
+					String value = variables.get(element.asText());
+					if (value == null) {
+						throw new UnsupportedScriptException(
+								"Undefined variable " + element.asText());
+					}
+					push(echo, depth++, value);
+				} else if (element instanceof ElementOperator) {
+					String operation = switch (element.asText()) {
+					case "+" -> "add";
+					case "-" -> "subtract";
+					case "*" -> "multiply";
+					case "/" -> "divide";
+					default -> throw new UnsupportedScriptException(
+							"Unsupported operation " + element.asText());
+					};
+					require(depth, 2);
+					push(echo, depth - 2, operation + "(" + slot(depth - 2)
+							+ ", " + slot(depth - 1) + ")");
+					depth--;
+				} else if (element instanceof ElementFunction) {
+					depth = function(echo, element.asText(), depth);
+				} else if (element instanceof ElementConstantInteger) {
+					push(echo, depth++, constant(
+							((ElementConstantInteger) element).getValue()));
+				} else if (element instanceof ElementConstantDouble) {
+					push(echo, depth++, constant(
+							((ElementConstantDouble) element).getValue()));
+				} else if (element instanceof ElementString) {
+					push(echo, depth++,
+							constant(((ElementString) element).getValue()));
+				} else {
+					throw new UnsupportedScriptException("Undefined entity.");
+				}
+				maxDepth = Math.max(maxDepth, depth);
+			}
+
+			// remaining values are written from the bottom of the stack
+			for (int i = 0; i < depth; i++) {
+				echo.append(indent).append("\techo(context, ").append(slot(i))
+						.append(");\n");
+			}
+			if (echo.length() == 0) {
+				return;
+			}
+
+			line("{");
+			StringBuilder slots = new StringBuilder();
+			for (int i = 0; i < maxDepth; i++) {
+				slots.append(i == 0 ? "" : ", ").append(slot(i));
+			}
+			if (maxDepth > 0) {
+				line("\tObject " + slots + ";");
+			}
+			body.append(echo);
+			line("}");
+		}
+
+		/**
+		 * Generates the call of a function of an echo node.
+		 * 
+		 * @param  echo                       generated code of the echo node
+		 * @param  name                       name of the function
+		 * @param  depth                      depth of the stack before the
+		 *                                    call
+		 * @return                            depth of the stack after the
+		 *                                    call
+		 * @throws UnsupportedScriptException if the function is unknown, or
+		 *                                    there are not enough arguments
+		 */
+		private int function(StringBuilder echo, String name, int depth) {
+			String top = depth > 0 ? slot(depth - 1) : null;
+			String below = depth > 1 ? slot(depth - 2) : null;
+			switch (name) {
+			case "sin":
+				require(depth, 1);
+				push(echo, depth - 1, "sin(" + top + ")");
+				return depth;
+			case "decfmt":
+				require(depth, 2);
+				push(echo, depth - 2, "decfmt(" + below + ", " + top + ")");
+				return depth - 1;
+			case "dup":
+				require(depth, 1);
+				push(echo, depth, top);
+				return depth + 1;
+			case "swap":
+				require(depth, 2);
+				statement(echo, "{ Object t = " + top + "; " + top + " = "
+						+ below + "; " + below + " = t; }");
+				return depth;
+			case "setMimeType":
+			case "pparamDel":
+			case "tparamDel":
+				require(depth, 1);
+				statement(echo, name + "(context, " + top + ");");
+				return depth - 1;
+			case "paramGet":
+			case "pparamGet":
+			case "tparamGet":
+				require(depth, 2);
+				push(echo, depth - 2,
+						name + "(context, " + below + ", " + top + ")");
+				return depth - 1;
+			case "pparamSet":
+			case "tparamSet":
+				require(depth, 2);
+				statement(echo,
+						name + "(context, " + top + ", " + below + ");");
+				return depth - 2;
+			default:
+				throw new UnsupportedScriptException(
+						"Undefined function " + name);
+			}
+		}
+
+		/**
+		 * Compiles the generated source, and creates an instance of the
+		 * generated class.
+		 * 
+		 * @return the compiled template, or <code>null</code> if the source
+		 *         cannot be compiled
+		 */
+		Template define() {
+			JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+			if (javac == null) {
+				return null;
+			}
+
+			String name = PACKAGE + "." + className;
+			Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+			StringWriter messages = new StringWriter();
+			JavaFileObject source = new SimpleJavaFileObject(
+					URI.create("string:///" + name.replace('.', '/')
+							+ Kind.SOURCE.extension),
+					Kind.SOURCE) {
+
+				@Override
+				public CharSequence getCharContent(
+						boolean ignoreEncodingErrors) {
+					return source();
+				}
+			};
+
+			try (StandardJavaFileManager standard = javac
+					.getStandardFileManager(null, null, null);
+					JavaFileManager memory =
+							new ForwardingJavaFileManager<JavaFileManager>(
+									standard) {
+
+								@Override
+								public JavaFileObject getJavaFileForOutput(
+										Location location, String outputName,
+										Kind kind, FileObject sibling) {
+									return new SimpleJavaFileObject(
+											URI.create("mem:///"
+													+ outputName.replace('.',
+															'/')
+													+ kind.extension),
+											kind) {
+
+										@Override
+										public OutputStream openOutputStream() {
+											ByteArrayOutputStream bytes =
+													new ByteArrayOutputStream();
+											classes.put(outputName, bytes);
+											return bytes;
+										}
+									};
+								}
+							}) {
+				boolean compiled = javac.getTask(messages, memory, null,
+						List.of("-classpath", classPath(), "-proc:none"),
+						null, List.of(source)).call();
+				if (!compiled) {
+					System.err.println("Cannot compile script, interpreting it"
+							+ " instead: " + messages);
+					return null;
+				}
+			} catch (IOException e) {
+				return null;
+			}
+
+			try {
+				Class<?> templateClass = new TemplateClassLoader(classes)
+						.loadClass(name);
+				return (Template) templateClass.getConstructor(Object[].class)
+						.newInstance((Object) constants.toArray());
+			} catch (ReflectiveOperationException e) {
+				System.err.println("Cannot load compiled script: " + e);
+				return null;
+			}
+		}
+
+		/**
+		 * Assembles the source of the generated class.
+		 * 
+		 * @return the source
+		 */
+		String source() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("package ").append(PACKAGE).append(";\n\n");
+			sb.append("import ").append(RequestContext.class.getName())
+					.append(";\n\n");
+			sb.append("public final class ").append(className)
+					.append(" extends ")
+					.append(CompiledTemplate.class.getSimpleName())
+					.append(" {\n\n");
+
+			// constants are given to the constructor, so texts of any length
+			// are passed as they are
+			for (int i = 0; i < constants.size(); i++) {
+				sb.append("\tprivate final ").append(typeOf(i)).append(" c")
+						.append(i).append(";\n");
+			}
+			sb.append("\n\tpublic ").append(className)
+					.append("(Object[] constants) {\n");
+			for (int i = 0; i < constants.size(); i++) {
+				sb.append("\t\tc").append(i).append(" = (").append(typeOf(i))
+						.append(") constants[").append(i).append("];\n");
+			}
+			sb.append("\t}\n\n");
+
+			sb.append("\t@Override\n");
+			sb.append("\tpublic void execute(RequestContext context) {\n");
+			sb.append(body);
+			sb.append("\t}\n}\n");
+			return sb.toString();
+		}
+
+		/**
+		 * Generates the code of the children of the given loop, indented by
+		 * one more level.
+		 * 
+		 * @param node the loop
+		 */
+		private void children(ForLoopNode node) {
+			String outerIndent = indent;
+			indent += "\t";
+			for (int i = 0; i < node.numberOfChildren(); i++) {
+				node.getChild(i).accept(this);
+			}
+			indent = outerIndent;
+		}
+
+		/**
+		 * Appends a line of the body.
+		 * 
+		 * @param line line to append
+		 */
+		private void line(String line) {
+			body.append(indent).append(line).append('\n');
+		}
+
+		/**
+		 * Appends a statement of an echo node.
+		 * 
+		 * @param echo      generated code of the echo node
+		 * @param statement statement to append
+		 */
+		private void statement(StringBuilder echo, String statement) {
+			echo.append(indent).append('\t').append(statement).append('\n');
+		}
+
+		/**
+		 * Appends the assignment of a value to a slot of the stack.
+		 * 
+		 * @param echo  generated code of the echo node
+		 * @param slot  index of the slot
+		 * @param value expression which calculates the value
+		 */
+		private void push(StringBuilder echo, int slot, String value) {
+			statement(echo, slot(slot) + " = " + value + ";");
+		}
+
+		/**
+		 * Adds a constant of the script.
+		 * 
+		 * @param  value value of the constant
+		 * @return       name of the field which holds the constant
+		 */
+		private String constant(Object value) {
+			constants.add(value);
+			return "c" + (constants.size() - 1);
+		}
+
+		/**
+		 * Determines the type of the field which holds the given constant.
+		 * 
+		 * @param  index index of the constant
+		 * @return       name of the type
+		 */
+		private String typeOf(int index) {
+			Object value = constants.get(index);
+			if (value instanceof byte[]) {
+				return "byte[]";
+			}
+			return value instanceof String ? "String" : "Object";
+		}
+
+		/**
+		 * Returns the name of the local variable which holds a slot of the
+		 * stack of an echo node.
+		 * 
+		 * @param  slot index of the slot
+		 * @return      name of the variable
+		 */
+		private static String slot(int slot) {
+			return "s" + slot;
+		}
+
+		/**
+		 * Writes the value of an integer constant as a Java literal.
+		 * 
+		 * @param  element the constant
+		 * @return         the literal
+		 */
+		private static String intOf(Element element) {
+			int value = ((ElementConstantInteger) element).getValue();
+			return value < 0 ? "(" + value + ")" : Integer.toString(value);
+		}
+
+		/**
+		 * Checks whether the stack holds enough values for an operation.
+		 * 
+		 * @param  depth                      depth of the stack
+		 * @param  required                   number of values needed
+		 * @throws UnsupportedScriptException if there are not enough values,
+		 *                                    which fails the interpreter
+		 */
+		private static void require(int depth, int required) {
+			if (depth < required) {
+				throw new UnsupportedScriptException("Stack underflow.");
+			}
+		}
+
+		/**
+		 * Determines the class path with which the generated source is
+		 * compiled, which must contain the classes used by the generated
+		 * classes.
+		 * 
+		 * @return the class path
+		 */
+		private static String classPath() {
+			Set<String> paths = new LinkedHashSet<>();
+			for (Class<?> used : List.of(CompiledTemplate.class,
+					RequestContext.class)) {
+				try {
+					CodeSource code =
+							used.getProtectionDomain().getCodeSource();
+					if (code != null) {
+						paths.add(Paths.get(code.getLocation().toURI())
+								.toString());
+					}
+				} catch (Exception e) {
+					// not a file, so it can only be found on the class path
+				}
+			}
+			paths.add(System.getProperty("java.class.path"));
+			return String.join(File.pathSeparator, paths);
+		}
+	}
+
+	/**
+	 * Class loader of a single compiled template.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class TemplateClassLoader extends ClassLoader {
+
+		private Map<String, ByteArrayOutputStream> classes; // compiled classes
+
+		/**
+		 * Creates a loader of the given compiled classes.
+		 * 
+		 * @param classes bytecode of the classes, by their names
+		 */
+		TemplateClassLoader(Map<String, ByteArrayOutputStream> classes) {
+			super(CompiledTemplate.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name)
+				throws ClassNotFoundException {
+			ByteArrayOutputStream bytes = classes.get(name);
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+			byte[] code = bytes.toByteArray();
+			return defineClass(name, code, 0, code.length);
+		}
+	}
+
+	/**
+	 * Thrown when a script contains something that is not compiled.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class UnsupportedScriptException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates an exception with the given message.
+		 * 
+		 * @param message description of the construct
+		 */
+		UnsupportedScriptException(String message) {
+			super(message);
+		}
+	}
+}
@@ -50,22 +50,25 @@ public class SmartScriptEngine {
 
 		@Override
 		public void visitForLoopNode(ForLoopNode node) {
+			// texts of the expressions are created once, not per iteration
+			String variable = node.getVariable().asText();
+			String end = node.getEndExpression().asText();
+			String step = node.getStepExpression().asText();
+
 			// initialize the for loop variable to start expression
-			multistack.push(node.getVariable().asText(),
+			multistack.push(variable,
 					new ValueWrapper(node.getStartExpression().asText()));
 			// execute the for loop
-			while (multistack.peek(node.getVariable().asText()).numCompare(
-					node.getEndExpression().asText()) <= 0) {
+			while (multistack.peek(variable).numCompare(end) <= 0) {
 				// single iteration - call accept on children
 				for (int i = 0; i < node.numberOfChildren(); i++) {
 					node.getChild(i).accept(this);
 				}
 				// increment the variable by the step expression
-				multistack.peek(node.getVariable().asText()).add(
-						node.getStepExpression().asText());
+				multistack.peek(variable).add(step);
 			}
 			// remove the variable from the stack
-			multistack.pop(node.getVariable().asText());
+			multistack.pop(variable);
 
 			// done
 		}
@@ -90,16 +93,16 @@ public class SmartScriptEngine {
 					// TODO - maybe refactor into helper methods
 
 					// retrieve operators from the temp stack
-					ValueWrapper op2 = new ValueWrapper(tempStack.pop());
+					Object op2 = tempStack.pop();
 					ValueWrapper op1 = new ValueWrapper(tempStack.pop());
 
 					// apply operation
 					// supported are only +, -, *, /
 					switch (currElem.asText()) {
-						case "+" -> op1.add(op2.getValue());
-						case "-" -> op1.subtract(op2.getValue());
-						case "*" -> op1.multiply(op2.getValue());
-						case "/" -> op1.divide(op2.getValue());
+						case "+" -> op1.add(op2);
+						case "-" -> op1.subtract(op2);
+						case "*" -> op1.multiply(op2);
+						case "/" -> op1.divide(op2);
 						default -> throw new UnsupportedOperationException(
 								"Unsupported operation");
 					}
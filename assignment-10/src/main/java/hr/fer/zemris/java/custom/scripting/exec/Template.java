@@ -0,0 +1,23 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Smart script which is ready to be executed. Templates keep no state of their
+ * own between executions, so the same template can be executed by many
+ * requests at once.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public interface Template {
+
+	/**
+	 * Executes the script, writing its result to the given request context.
+	 * 
+	 * @param  context          request to which the result is written
+	 * @throws RuntimeException if the script cannot be executed, or its result
+	 *                          cannot be written
+	 */
+	public void execute(RequestContext context);
+}
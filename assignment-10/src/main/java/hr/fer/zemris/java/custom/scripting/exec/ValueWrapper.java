@@ -1,22 +1,47 @@
 package hr.fer.zemris.java.custom.scripting.exec;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Implementation of an object that serves as a weak wrapper of some values.
  * Wrapper provides arithmetic operations, however the value type is checked at
  * runtime upon performing such operations, and the only supported values in
  * that case are <code>null</code>, and instances of <code>Integer</code>,
  * <code>String</code> and <code>Double</code>.
- * 
+ * <p>
+ * Results of the operations are kept as primitive values, and are boxed only
+ * once {@link #getValue()} asks for them, so a loop which keeps adding to the
+ * wrapper does not create an object per step. Numbers parsed from strings are
+ * remembered, since scripts use the same strings over and over.
+ * <p>
+ * Operations of different wrappers share no state, so they can be performed
+ * by many threads at once. A single wrapper is not meant to be shared between
+ * threads.
  * 
  * @author jankovidakovic
  *
  */
 public class ValueWrapper {
 
-	// TODO - think of something to fix this whole thing
-	// TODO - implement tests
+	// kinds of the stored value
+	private static final int OBJECT = 0; // value as it was given
+	private static final int INTEGER = 1; // result kept in intValue
+	private static final int DOUBLE = 2; // result kept in doubleValue
 
-	private Object value; // value stored in the wrapper
+	// how many parsed strings are remembered at most
+	private static final int PARSED_CAPACITY = 1024;
+	// numbers parsed from strings, by the strings
+	private static final Map<String, Number> PARSED =
+			new ConcurrentHashMap<String, Number>();
+	// what null is treated as
+	private static final Integer ZERO = Integer.valueOf(0);
+
+	private int type = OBJECT; // kind of the stored value
+	private int intValue; // stored value, if it is an integer result
+	private double doubleValue; // stored value, if it is a decimal result
+	private Object value; // value stored in the wrapper, or the boxed result,
+							// or null if the result is not yet boxed
 
 	/**
 	 * Constructs a wrapper for the given object
@@ -43,33 +68,55 @@ public class ValueWrapper {
 	 * @param incValue value to be added to the stored value
 	 */
 	public void add(Object incValue) {
-		Operation.setOperands(value, incValue);
-		value = Operation.add();
+		apply('+', incValue);
 	}
 
+	/**
+	 * Subtracts the given value from the one that is currently stored, with
+	 * the same type rules as {@link #add(Object)}.
+	 * 
+	 * @param decValue value to be subtracted from the stored value
+	 */
 	public void subtract(Object decValue) {
-		Operation.setOperands(value, decValue);
-		value = Operation.sub();
+		apply('-', decValue);
 	}
 
+	/**
+	 * Multiplies the stored value by the given one, with the same type rules
+	 * as {@link #add(Object)}.
+	 * 
+	 * @param mulValue value by which the stored value is multiplied
+	 */
 	public void multiply(Object mulValue) {
-		Operation.setOperands(value, mulValue);
-		value = Operation.mul();
+		apply('*', mulValue);
 	}
 
+	/**
+	 * Divides the stored value by the given one, with the same type rules as
+	 * {@link #add(Object)}. Integers are divided in the integer domain.
+	 * 
+	 * @param divValue value by which the stored value is divided
+	 */
 	public void divide(Object divValue) {
-		Operation.setOperands(value, divValue);
-		value = Operation.div();
+		apply('/', divValue);
 	}
 
+	/**
+	 * Compares the stored value with the given one, with the same type rules
+	 * as {@link #add(Object)}. Neither value is changed.
+	 * 
+	 * @param  withValue value to compare with
+	 * @return           negative number, zero or positive number if the stored
+	 *                   value is smaller than, equal to, or greater than the
+	 *                   given value
+	 */
 	public int numCompare(Object withValue) {
-		Operation.setOperands(value, withValue);
-		Object compRes = Operation.sub();
-		if (compRes instanceof Double) {
-			return Double.compare((Double) compRes, 0.0);
-		} else {
-			return Integer.compare((Integer) compRes, 0);
+		Number first = type == OBJECT ? toNumber(value) : null;
+		Number second = toNumber(withValue);
+		if (isInteger(first) && second instanceof Integer) {
+			return Integer.compare(intOf(first) - second.intValue(), 0);
 		}
+		return Double.compare(doubleOf(first) - second.doubleValue(), 0.0);
 	}
 
 	/**
@@ -93,148 +140,177 @@ public class ValueWrapper {
 	 * @return value
 	 */
 	public Object getValue() {
+		if (value == null) {
+			if (type == INTEGER) {
+				value = Integer.valueOf(intValue);
+			} else if (type == DOUBLE) {
+				value = Double.valueOf(doubleValue);
+			}
+		}
 		return value;
 	}
 
 	/**
-	 * Model of a binary operation between two weakly-typed value wrappers.
+	 * Applies the given operation to the stored value and the given operand,
+	 * and stores the result. If either operand is not eligible for the
+	 * operation, the stored value is left as it was.
 	 * 
-	 * @author jankovidakovic
-	 *
+	 * @param  operator         one of <code>+</code>, <code>-</code>,
+	 *                          <code>*</code> and <code>/</code>
+	 * @param  operand          second operand
+	 * @throws RuntimeException if either operand is not eligible for
+	 *                          arithmetic operations
 	 */
-	private static class Operation {
-
-		// operands
-		private static Object firstOp;
-		private static Object secondOp;
-
-		/**
-		 * Sets the operands to given values. Performs type checking and type
-		 * conversion.
-		 * 
-		 * @param firstOp  first operand
-		 * @param secondOp second operand
-		 */
-		private static void setOperands(Object firstOp, Object secondOp) {
-			Operation.firstOp = getImplicitCast(firstOp);
-			Operation.secondOp = getImplicitCast(secondOp);
-
+	private void apply(char operator, Object operand) {
+		Number first = type == OBJECT ? toNumber(value) : null;
+		Number second = toNumber(operand);
+		if (isInteger(first) && second instanceof Integer) {
+			int a = intOf(first);
+			int b = second.intValue();
+			int result;
+			switch (operator) {
+			case '+' -> result = a + b;
+			case '-' -> result = a - b;
+			case '*' -> result = a * b;
+			default -> result = a / b;
+			}
+			type = INTEGER;
+			intValue = result;
+		} else {
+			double a = doubleOf(first);
+			double b = second.doubleValue();
+			double result;
+			switch (operator) {
+			case '+' -> result = a + b;
+			case '-' -> result = a - b;
+			case '*' -> result = a * b;
+			default -> result = a / b;
+			}
+			type = DOUBLE;
+			doubleValue = result;
 		}
+		value = null; // boxed once asked for
+	}
 
-		/**
-		 * Adds the operands and returns the result as an object of correct
-		 * type.
-		 * 
-		 * @return result of addition
-		 */
-		private static Object add() {
-			if (firstOp instanceof Double) {
-				if (secondOp instanceof Double) {
-					return (Double) firstOp + (Double) secondOp;
-				} else {
-					return (Double) firstOp + (Integer) secondOp;
-				}
-			} else {
-				if (secondOp instanceof Double) {
-					return (Integer) firstOp + (Double) secondOp;
-				} else {
-					return (Integer) firstOp + (Integer) secondOp;
-				}
-			}
+	/**
+	 * Checks whether the stored value is an integer.
+	 * 
+	 * @param  first stored value converted by {@link #toNumber(Object)}, or
+	 *               <code>null</code> if the stored value is a result
+	 * @return       <code>true</code> if it is an integer, <code>false</code>
+	 *               if it is a decimal value
+	 */
+	private boolean isInteger(Number first) {
+		return first == null ? type == INTEGER : first instanceof Integer;
+	}
+
+	/**
+	 * Retrieves the stored value, which is an integer.
+	 * 
+	 * @param  first stored value converted by {@link #toNumber(Object)}, or
+	 *               <code>null</code> if the stored value is a result
+	 * @return       the integer value
+	 */
+	private int intOf(Number first) {
+		return first == null ? intValue : first.intValue();
+	}
+
+	/**
+	 * Retrieves the stored value as a decimal value.
+	 * 
+	 * @param  first stored value converted by {@link #toNumber(Object)}, or
+	 *               <code>null</code> if the stored value is a result
+	 * @return       the decimal value
+	 */
+	private double doubleOf(Number first) {
+		if (first != null) {
+			return first.doubleValue();
 		}
+		return type == INTEGER ? intValue : doubleValue;
+	}
 
-		/**
-		 * Subtracts the operands and returns the result
-		 * 
-		 * @return result of subtraction
-		 */
-		private static Object sub() {
-			if (firstOp instanceof Double) {
-				if (secondOp instanceof Double) {
-					return (Double) firstOp - (Double) secondOp;
-				} else {
-					return (Double) firstOp - (Integer) secondOp;
-				}
-			} else {
-				if (secondOp instanceof Double) {
-					return (Integer) firstOp - (Double) secondOp;
-				} else {
-					return (Integer) firstOp - (Integer) secondOp;
-				}
-			}
+	/**
+	 * Performs the type conversion of the given value, so that it is
+	 * eligible for arithmetic calculation.
+	 * 
+	 * @param  value            value to be cast
+	 * @return                  cast of the value that is eligible for
+	 *                          arithmetics, either an <code>Integer</code> or
+	 *                          a <code>Double</code>
+	 * @throws RuntimeException if the given value cannot be cast to a type
+	 *                          that is eligible for arithmetic operations.
+	 */
+	private static Number toNumber(Object value) {
+		if (value instanceof Integer || value instanceof Double) {
+			return (Number) value;
+		} else if (value == null) { // treat as zero
+			return ZERO;
+		} else if (value instanceof String) {
+			return parse((String) value);
+		} else {
+			throw new RuntimeException("Invalid type.");
 		}
+	}
 
-		/**
-		 * Multiplies the operands and returns the result
-		 * 
-		 * @return result of multiplication
-		 */
-		private static Object mul() {
-			if (firstOp instanceof Double) {
-				if (secondOp instanceof Double) {
-					return (Double) firstOp * (Double) secondOp;
-				} else {
-					return (Double) firstOp * (Integer) secondOp;
-				}
-			} else {
-				if (secondOp instanceof Double) {
-					return (Integer) firstOp * (Double) secondOp;
-				} else {
-					return (Integer) firstOp * (Integer) secondOp;
-				}
-			}
+	/**
+	 * Parses the given string as an integer, or as a decimal value if it is
+	 * not an integer. Parsed strings, other than short integers, are
+	 * remembered, until {@link #PARSED_CAPACITY} of them are.
+	 * 
+	 * @param  text             string to parse
+	 * @return                  the parsed <code>Integer</code> or
+	 *                          <code>Double</code>
+	 * @throws RuntimeException if the string is neither
+	 */
+	private static Number parse(String text) {
+		Integer small = parseShortInteger(text);
+		if (small != null) { // quicker to parse than to look up
+			return small;
 		}
 
-		/**
-		 * Divides the operands and returns the result.
-		 * 
-		 * @return result of division
-		 */
-		private static Object div() {
-			if (firstOp instanceof Double) {
-				if (secondOp instanceof Double) {
-					return (Double) firstOp / (Double) secondOp;
-				} else {
-					return (Double) firstOp / (Integer) secondOp;
-				}
-			} else {
-				if (secondOp instanceof Double) {
-					return (Integer) firstOp / (Double) secondOp;
-				} else {
-					return (Integer) firstOp / (Integer) secondOp;
-				}
+		Number parsed = PARSED.get(text);
+		if (parsed != null) {
+			return parsed;
+		}
+		try { // treat as integer
+			parsed = Integer.valueOf(text);
+		} catch (NumberFormatException e1) {
+			try { // treat as double
+				parsed = Double.valueOf(text);
+			} catch (NumberFormatException e2) { // cannot
+				throw new RuntimeException("Undefined operation.");
 			}
 		}
+		if (PARSED.size() < PARSED_CAPACITY) {
+			PARSED.put(text, parsed);
+		}
+		return parsed;
+	}
 
-		/**
-		 * Performs the type conversion of the given value, so that it is
-		 * eligible for arithmetic calculation.
-		 * 
-		 * @param  value            value to be cast
-		 * @return                  cast of the value that is eligible for
-		 *                          arithmetics
-		 * @throws RuntimeException if the given value cannot be cast to a type
-		 *                          that is eligible for arithmetic operations.
-		 */
-		private static Object getImplicitCast(Object value) {
-			if (value == null) { // treat as zero
-				return Integer.valueOf(0);
-			} else if (value instanceof String) {
-				try { // treat as integer
-					return Integer.parseInt((String) value);
-				} catch (NumberFormatException e1) {
-					try { // treat as double
-						return Double.parseDouble((String) value);
-					} catch (NumberFormatException e2) { // cannot
-						throw new RuntimeException("Undefined operation.");
-					}
-				}
-			} else if (value instanceof Double || value instanceof Integer) {
-				return value;
-			} else {
-				throw new RuntimeException("Invalid type.");
+	/**
+	 * Parses the given string if it is an integer of at most nine decimal
+	 * digits, optionally preceded by a sign, which cannot overflow.
+	 * 
+	 * @param  text string to parse
+	 * @return      the parsed integer, or <code>null</code> if the string is
+	 *              not such an integer
+	 */
+	private static Integer parseShortInteger(String text) {
+		int length = text.length();
+		int start = length > 0
+				&& (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+		if (start == length || length - start > 9) {
+			return null;
+		}
+		int result = 0;
+		for (int i = start; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return null;
 			}
+			result = result * 10 + c - '0';
 		}
+		return Integer.valueOf(text.charAt(0) == '-' ? -result : result);
 	}
 
 }
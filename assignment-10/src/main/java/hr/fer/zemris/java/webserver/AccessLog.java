@@ -0,0 +1,373 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the served requests, with a single JSON object on every line. Request
+ * threads only put their records into a ring buffer of fixed capacity, without
+ * locking and without waiting for anything, and a background thread formats
+ * the records and appends them to the log file in large batches. If the
+ * records come faster than they can be written and the buffer fills up, new
+ * records are dropped and counted, rather than slowing the requests down.
+ * <p>
+ * Once the log file grows over the maximum size, it is rotated - the file is
+ * renamed by appending <code>.1</code> to its name, the previously rotated
+ * files are shifted by one, and the oldest one is deleted.
+ *
+ * @author jankovidakovic
+ *
+ */
+public class AccessLog implements Closeable {
+
+	// size of the batch which is appended to the file at once, in bytes
+	private static final int BATCH_SIZE = 256 * 1024;
+	// how long the writer waits for new records once the buffer is empty
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final Path file; // the log file
+	private final long maxFileSize; // size after which the file is rotated
+	private final int maxFiles; // number of rotated files that are kept
+
+	private final Entry[] entries; // slots of the ring buffer
+	// sequence of every slot - equal to the position of the slot when it is
+	// free to be claimed, and greater by one once its record is published
+	private final AtomicLongArray sequences;
+	private final int mask; // maps positions to slots
+	private final AtomicLong tail = new AtomicLong(); // next position to claim
+	private long head; // next position to write, used only by the writer
+	private final LongAdder dropped = new LongAdder(); // records not logged
+
+	private final Thread writer; // thread which writes the records
+	private volatile boolean closed; // whether the log is closed
+	private FileChannel channel; // channel of the log file
+	private long fileSize; // current size of the log file
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+	private final StringBuilder line = new StringBuilder(256);
+
+	/**
+	 * Opens the log, appending to the given file if it already exists, and
+	 * starts its writer thread.
+	 *
+	 * @param  file                     the log file
+	 * @param  capacity                 number of records that can wait to be
+	 *                                  written, rounded up to a power of two
+	 * @param  maxFileSize              size of the file, in bytes, after which
+	 *                                  the file is rotated
+	 * @param  maxFiles                 number of rotated files that are kept
+	 * @throws IOException              if unable to open the file
+	 * @throws IllegalArgumentException if any of the limits is not positive,
+	 *                                  or the number of rotated files is
+	 *                                  negative
+	 */
+	public AccessLog(Path file, int capacity, long maxFileSize, int maxFiles)
+			throws IOException {
+		if (capacity < 1 || capacity > 1 << 30 || maxFileSize < 1
+				|| maxFiles < 0) {
+			throw new IllegalArgumentException("Invalid access log limits.");
+		}
+		this.file = file.toAbsolutePath().normalize();
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		entries = new Entry[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			entries[i] = new Entry();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+
+		open();
+		writer = new Thread(this::run, "access-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Logs a served request. The record is only put into the buffer, and
+	 * written later by the writer thread. If the buffer is full, the record
+	 * is dropped.
+	 *
+	 * @param  method   method of the request
+	 * @param  path     requested path
+	 * @param  status   status code of the response
+	 * @param  bytes    number of bytes sent, including the header
+	 * @param  duration time taken to serve the request, in nanoseconds
+	 * @param  sid      identifier of the session, or <code>null</code> if the
+	 *                  request has no session
+	 * @return          <code>true</code> if the record was accepted,
+	 *                  <code>false</code> if it was dropped
+	 */
+	public boolean log(String method, String path, int status, long bytes,
+			long duration, String sid) {
+		long position = tail.get();
+		int index;
+		while (true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) { // slot is free
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if (difference < 0) { // slot wasn't written yet, so full
+				dropped.increment();
+				return false;
+			} else { // slot was claimed by another thread
+				position = tail.get();
+			}
+		}
+
+		Entry entry = entries[index];
+		entry.time = System.currentTimeMillis();
+		entry.method = method;
+		entry.path = path;
+		entry.status = status;
+		entry.bytes = bytes;
+		entry.duration = duration;
+		entry.sid = sid;
+		sequences.lazySet(index, position + 1); // publish the record
+		return true;
+	}
+
+	/**
+	 * @return number of records dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Closes the log. Records which were logged before are written to the
+	 * file first.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes the logged records until the log is closed.
+	 */
+	private void run() {
+		while (true) {
+			boolean idle = !drain();
+			if (batch.position() > 0) {
+				flushBatch();
+			}
+			if (idle) {
+				if (closed) {
+					break;
+				}
+				LockSupport.parkNanos(this, IDLE_WAIT);
+			}
+		}
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Cannot close access log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Moves all published records into the batch, appending the batch to the
+	 * file whenever it fills up.
+	 *
+	 * @return <code>true</code> if any records were published,
+	 *         <code>false</code> otherwise
+	 */
+	private boolean drain() {
+		boolean any = false;
+		while (true) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) { // not published yet
+				return any;
+			}
+			Entry entry = entries[index];
+			byte[] record = format(entry).getBytes(StandardCharsets.UTF_8);
+			entry.method = entry.path = entry.sid = null;
+			sequences.lazySet(index, head + entries.length); // free the slot
+			head++;
+			any = true;
+
+			if (record.length > batch.remaining()) {
+				flushBatch();
+			}
+			if (record.length <= batch.remaining()) { // otherwise, too long
+				batch.put(record);
+			}
+		}
+	}
+
+	/**
+	 * Formats a record as a single line of JSON.
+	 *
+	 * @param  entry the record
+	 * @return       formatted line, including the line terminator
+	 */
+	private String format(Entry entry) {
+		line.setLength(0);
+		line.append("{\"time\":\"");
+		DateTimeFormatter.ISO_INSTANT
+				.formatTo(Instant.ofEpochMilli(entry.time), line);
+		line.append("\",\"method\":");
+		appendString(entry.method);
+		line.append(",\"path\":");
+		appendString(entry.path);
+		line.append(",\"status\":").append(entry.status);
+		line.append(",\"bytes\":").append(entry.bytes);
+		line.append(",\"duration_us\":").append(entry.duration / 1000);
+		line.append(",\"sid\":");
+		appendString(entry.sid);
+		line.append("}\n");
+		return line.toString();
+	}
+
+	/**
+	 * Appends the given string to the line as a JSON string, escaping the
+	 * characters which cannot appear in it as they are.
+	 *
+	 * @param value the string, or <code>null</code>
+	 */
+	private void appendString(String value) {
+		if (value == null) {
+			line.append("null");
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				line.append('\\').append(c);
+			} else if (c < 0x20 || c == 0x7f) {
+				line.append(String.format("\\u%04x", (int) c));
+			} else {
+				line.append(c);
+			}
+		}
+		line.append('"');
+	}
+
+	/**
+	 * Appends the batch to the file, rotating the file first if the batch
+	 * would make it too large. If the file cannot be rotated, the batch is
+	 * appended to the current file, and if the batch cannot be written, it
+	 * is given up.
+	 */
+	private void flushBatch() {
+		batch.flip();
+		try {
+			if (fileSize > 0 && fileSize + batch.remaining() > maxFileSize) {
+				try {
+					rotate();
+				} catch (IOException e) {
+					System.err.println(
+							"Cannot rotate access log: " + e.getMessage());
+					// tried again once the file grows by maxFileSize again
+					fileSize = 0;
+				}
+			}
+			while (batch.hasRemaining()) {
+				fileSize += channel.write(batch);
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot write access log: " + e.getMessage());
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Renames the current file and the previously rotated files, deleting
+	 * the oldest one, and opens a new file. The current file is closed only
+	 * once the new one is opened, so if any of the files cannot be renamed,
+	 * the log is appended to the file that is still in place.
+	 *
+	 * @throws IOException if unable to rotate the files
+	 */
+	private void rotate() throws IOException {
+		try {
+			if (maxFiles == 0) {
+				Files.delete(file);
+			} else {
+				Files.deleteIfExists(rotated(maxFiles));
+				for (int i = maxFiles - 1; i >= 1; i--) {
+					if (Files.exists(rotated(i))) {
+						Files.move(rotated(i), rotated(i + 1));
+					}
+				}
+				Files.move(file, rotated(1),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			FileChannel previous = channel;
+			open();
+			previous.close();
+		}
+	}
+
+	/**
+	 * @param  index index of the rotated file, starting from 1
+	 * @return       path of the rotated file
+	 */
+	private Path rotated(int index) {
+		return file.resolveSibling(file.getFileName() + "." + index);
+	}
+
+	/**
+	 * Opens the log file for appending, creating it and its directories if
+	 * they don't exist.
+	 *
+	 * @throws IOException if unable to open the file
+	 */
+	private void open() throws IOException {
+		Files.createDirectories(file.getParent());
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileSize = channel.size();
+	}
+
+	/**
+	 * Slot of the ring buffer, holding a single record.
+	 *
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class Entry {
+		long time; // when the request was served, in ms since the epoch
+		String method; // method of the request
+		String path; // requested path
+		int status; // status code of the response
+		long bytes; // number of bytes sent
+		long duration; // time taken to serve the request, in nanoseconds
+		String sid; // session identifier, or null
+	}
+}
@@ -0,0 +1,214 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stream of the body of a single request. Body is read from the bytes sent by
+ * the client after the request header, only as far as the body goes, so the
+ * bytes of the next request are left in the source. Body is either of a known
+ * length, given by the Content-Length header, or sent in chunks, which are
+ * decoded as they are read.
+ * <p>
+ * Body is never read ahead, so the memory used does not depend on its size.
+ * Bodies larger than the given maximum size are refused once their size
+ * becomes known, by throwing a {@link HttpParseException} with the status
+ * 413, and malformed chunks are refused with the status 400.
+ * <p>
+ * If the client waits for permission to send the body, the permission is
+ * sent once the body is first read, so bodies which are never read are never
+ * sent.
+ *
+ * @author jankovidakovic
+ *
+ */
+public class BodyInputStream extends InputStream {
+
+	// interim response which allows the client to send the body
+	private static final byte[] CONTINUE =
+			"HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	// maximum length of a line which starts a chunk, or of a trailer line
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private InputStream source; // bytes sent after the request header
+	private boolean chunked; // whether the body is sent in chunks
+	private long maxSize; // maximum size of the body, in bytes
+	private OutputStream interim; // where the permission to send the body is
+									// written, or null if it is not needed
+	private long remaining; // bytes left in the body, or in the current chunk
+	private long size; // number of body bytes read so far
+	private boolean finished; // whether the whole body was read
+	private byte[] single = new byte[1]; // buffer of read()
+
+	/**
+	 * Creates the stream of a request body.
+	 *
+	 * @param source  bytes sent after the request header
+	 * @param length  length of the body, or -1 if it is sent in chunks
+	 * @param maxSize maximum size of the body, in bytes
+	 * @param interim output to which the client's permission to send the body
+	 *                is written, or <code>null</code> if the client does not
+	 *                wait for it
+	 */
+	public BodyInputStream(InputStream source, long length, long maxSize,
+			OutputStream interim) {
+		this.source = source;
+		this.chunked = length == -1;
+		this.remaining = chunked ? 0 : length;
+		this.maxSize = maxSize;
+		this.interim = interim;
+		this.finished = length == 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (finished) {
+			return -1;
+		}
+		if (interim != null) { // client may now send the body
+			interim.write(CONTINUE);
+			interim.flush();
+			interim = null;
+		}
+		if (remaining == 0) { // only chunked bodies get here
+			startChunk();
+			if (finished) {
+				return -1;
+			}
+		}
+
+		int read = source.read(b, off, (int) Math.min(len, remaining));
+		if (read == -1) {
+			throw new EOFException("Request body ended early.");
+		}
+		remaining -= read;
+		if (remaining == 0 && chunked) {
+			expectLineEnd();
+		} else if (remaining == 0) {
+			finished = true;
+		}
+		return read;
+	}
+
+	/**
+	 * Checks whether the whole body was read.
+	 *
+	 * @return <code>true</code> if the body was read to its end,
+	 *         <code>false</code> otherwise
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Reads the rest of the body, so that the next request can be read after
+	 * it. If the client still waits for the permission to send the body,
+	 * nothing is read, since the body will not be sent.
+	 *
+	 * @return <code>true</code> if the rest of the body was read,
+	 *         <code>false</code> if it was not, and the connection cannot be
+	 *         used for another request
+	 */
+	public boolean discard() {
+		if (interim != null && !finished) {
+			return false;
+		}
+		byte[] buffer = new byte[8192];
+		try {
+			while (read(buffer, 0, buffer.length) != -1) {
+				// skipped
+			}
+			return true;
+		} catch (IOException | HttpParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the line which starts the next chunk, and the trailer if that was
+	 * the last chunk.
+	 *
+	 * @throws IOException        if unable to read the line
+	 * @throws HttpParseException if the line is malformed, or the body grows
+	 *                            too large
+	 */
+	private void startChunk() throws IOException {
+		String line = readLine();
+		int end = line.indexOf(';'); // chunk extensions are ignored
+		String hex = (end == -1 ? line : line.substring(0, end)).trim();
+		long chunkSize;
+		try {
+			if (hex.isEmpty() || hex.length() > 15 || hex.charAt(0) == '+'
+					|| hex.charAt(0) == '-') {
+				throw new NumberFormatException();
+			}
+			chunkSize = Long.parseLong(hex, 16);
+		} catch (NumberFormatException e) {
+			throw new HttpParseException(400, "Bad request");
+		}
+
+		if (chunkSize == 0) { // last chunk, followed by the trailer
+			while (!readLine().isEmpty()) {
+				// trailer fields are ignored
+			}
+			finished = true;
+			return;
+		}
+		size += chunkSize;
+		if (size > maxSize) {
+			throw new HttpParseException(413, "Payload Too Large");
+		}
+		remaining = chunkSize;
+	}
+
+	/**
+	 * Reads the line break which ends the data of a chunk.
+	 *
+	 * @throws IOException        if unable to read the line break
+	 * @throws HttpParseException if there is anything else before it
+	 */
+	private void expectLineEnd() throws IOException {
+		if (!readLine().isEmpty()) {
+			throw new HttpParseException(400, "Bad request");
+		}
+	}
+
+	/**
+	 * Reads a single line of the chunk framing, without the line break.
+	 *
+	 * @return                    the line
+	 * @throws IOException        if unable to read the line
+	 * @throws HttpParseException if the line is too long
+	 */
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			int b = source.read();
+			if (b == -1) {
+				throw new EOFException("Request body ended early.");
+			}
+			if (b == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() == MAX_LINE_LENGTH) {
+				throw new HttpParseException(400, "Bad request");
+			}
+			sb.append((char) b);
+		}
+	}
+}
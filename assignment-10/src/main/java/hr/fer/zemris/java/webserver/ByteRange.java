@@ -0,0 +1,154 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Range of bytes of a file, as requested by the Range header. Ranges are
+ * resolved against the size of the file, so a range always lies within the
+ * file and is never empty.
+ *
+ * @author jankovidakovic
+ *
+ */
+public class ByteRange {
+
+	// maximum number of ranges in a single request, since every range adds
+	// a part to the response, more of them are likely an attack
+	private static final int MAX_RANGES = 16;
+
+	private long start; // index of the first byte of the range
+	private long end; // index of the last byte of the range
+
+	/**
+	 * Creates a new range.
+	 *
+	 * @param start index of the first byte of the range
+	 * @param end   index of the last byte of the range
+	 */
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return index of the first byte of the range
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return index of the last byte of the range
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return number of bytes in the range
+	 */
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Formats the range as the value of the Content-Range header.
+	 *
+	 * @param  size size of the whole file
+	 * @return      the formatted range, such as <code>bytes 0-499/1234</code>
+	 */
+	public String toContentRange(long size) {
+		return "bytes " + start + "-" + end + "/" + size;
+	}
+
+	/**
+	 * Parses the value of the Range header, and resolves the requested ranges
+	 * against the size of the file. Ranges which lie outside the file are
+	 * left out, and ranges which overlap or adjoin are merged into one, so
+	 * the returned ranges are ordered and disjoint.
+	 *
+	 * @param  header value of the Range header
+	 * @param  size   size of the file, in bytes
+	 * @return        ranges of the file which were requested, empty if none of
+	 *                them lies within the file, or <code>null</code> if the
+	 *                header is malformed or asks for too many ranges, and
+	 *                should therefore be ignored
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		header = header.trim();
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null; // unit other than bytes
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash == -1) {
+				return null;
+			}
+			long first;
+			long last;
+			try {
+				if (dash == 0) { // last bytes of the file, "-500"
+					long suffix = parseNumber(spec.substring(1));
+					if (suffix == 0) {
+						continue;
+					}
+					first = Math.max(0, size - suffix);
+					last = size - 1;
+				} else { // "500-999" or "500-"
+					first = parseNumber(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						last = size - 1;
+					} else {
+						last = parseNumber(spec.substring(dash + 1));
+						if (last < first) {
+							return null;
+						}
+						last = Math.min(last, size - 1);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (first < size) {
+				ranges.add(new ByteRange(first, last));
+			}
+		}
+
+		// merge the ranges that overlap or adjoin
+		Collections.sort(ranges, (a, b) -> Long.compare(a.start, b.start));
+		List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+		for (ByteRange range : ranges) {
+			ByteRange previous =
+					merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (previous != null && range.start <= previous.end + 1) {
+				previous.end = Math.max(previous.end, range.end);
+			} else {
+				merged.add(range);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Parses a position in the range, which is a non-negative decimal number.
+	 *
+	 * @param  text                  text of the position
+	 * @return                       the position
+	 * @throws NumberFormatException if the text is not a valid position
+	 */
+	private static long parseNumber(String text) {
+		if (text.isEmpty() || text.charAt(0) < '0' || text.charAt(0) > '9') {
+			throw new NumberFormatException("Invalid position: " + text);
+		}
+		return Long.parseLong(text);
+	}
+}
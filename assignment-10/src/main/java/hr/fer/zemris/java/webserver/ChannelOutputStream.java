@@ -0,0 +1,74 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered output stream of a blocking socket channel. Files are transferred
+ * to the socket by the operating system, so their content never passes
+ * through the heap. Data which does not fit into the buffer is written along
+ * with the buffered bytes in a single gathering write, so a header followed by
+ * a large content still leaves in one system call.
+ * <p>
+ * Channel may also encrypt what is written to it, in which case the files
+ * are read and encrypted piece by piece instead.
+ * 
+ * @author jankovidakovic
+ *
+ */
+class ChannelOutputStream extends BufferedOutputStream
+		implements IFileTransferTarget {
+
+	private GatheringByteChannel channel; // channel to which the output is
+											// written
+
+	/**
+	 * Creates a stream that writes to the given blocking channel.
+	 * 
+	 * @param channel channel of the client socket, or its encrypting channel
+	 */
+	ChannelOutputStream(GatheringByteChannel channel) {
+		super(Channels.newOutputStream(channel));
+		this.channel = channel;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len)
+			throws IOException {
+		if (len < buf.length - count) { // fits into the buffer
+			super.write(b, off, len);
+			return;
+		}
+		ByteBuffer[] buffers = { ByteBuffer.wrap(buf, 0, count),
+				ByteBuffer.wrap(b, off, len) };
+		while (buffers[1].hasRemaining()) {
+			channel.write(buffers);
+		}
+		count = 0;
+	}
+
+	@Override
+	public void transferFile(Path file, long position, long count)
+			throws IOException {
+		flush(); // file content comes after everything written so far
+		try (FileChannel fileChannel =
+				FileChannel.open(file, StandardOpenOption.READ)) {
+			while (count > 0) {
+				long transferred =
+						fileChannel.transferTo(position, count, channel);
+				if (transferred <= 0 && position >= fileChannel.size()) {
+					throw new EOFException("File is shorter than expected.");
+				}
+				position += transferred;
+				count -= transferred;
+			}
+		}
+	}
+}
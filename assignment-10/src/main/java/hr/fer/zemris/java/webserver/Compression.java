@@ -0,0 +1,193 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Settings of response compression. Content is compressed only if the client
+ * accepts the compressed encoding, its mime type is one of the configured
+ * compressible types, and it has at least the configured number of bytes,
+ * since compressing small content saves less than it costs.
+ * <p>
+ * Supported content encodings are <code>gzip</code> and <code>deflate</code>.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class Compression {
+
+	// size of the buffer of compressing streams
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private boolean enabled; // whether anything is compressed
+	private int minSize; // minimum size of compressed content, in bytes
+	private Set<String> mimeTypes; // mime types of compressible content
+
+	/**
+	 * Creates new compression settings.
+	 * 
+	 * @param  enabled                  <code>true</code> if content should be
+	 *                                  compressed, <code>false</code> otherwise
+	 * @param  minSize                  minimum size of compressed content, in
+	 *                                  bytes
+	 * @param  mimeTypes                mime types of compressible content,
+	 *                                  separated by commas
+	 * @throws IllegalArgumentException if the minimum size is negative
+	 */
+	public Compression(boolean enabled, int minSize, String mimeTypes) {
+		if (minSize < 0) {
+			throw new IllegalArgumentException(
+					"Minimum size cannot be negative.");
+		}
+		this.enabled = enabled;
+		this.minSize = minSize;
+		this.mimeTypes = new HashSet<String>();
+		for (String mimeType : mimeTypes.split(",")) {
+			if (!mimeType.isBlank()) {
+				this.mimeTypes.add(mimeType.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	/**
+	 * @return minimum size of compressed content, in bytes
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Chooses the content encoding for a client that sent the given
+	 * Accept-Encoding header field. If the client accepts both supported
+	 * encodings equally, <code>gzip</code> is chosen.
+	 * 
+	 * @param  acceptEncoding value of the Accept-Encoding field, may be
+	 *                        <code>null</code>
+	 * @return                chosen encoding, or <code>null</code> if the
+	 *                        content should not be compressed
+	 */
+	public String negotiate(String acceptEncoding) {
+		if (!enabled || acceptEncoding == null) {
+			return null;
+		}
+		double gzip = -1, deflate = -1, any = -1; // -1 if not mentioned
+		for (String coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			String name = (semicolon == -1 ? coding
+					: coding.substring(0, semicolon)).trim();
+			double quality = semicolon == -1 ? 1
+					: parseQuality(coding.substring(semicolon + 1));
+			if (name.equalsIgnoreCase("gzip")) {
+				gzip = quality;
+			} else if (name.equalsIgnoreCase("deflate")) {
+				deflate = quality;
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		// encodings that were not mentioned are covered by the wildcard
+		gzip = gzip == -1 ? any : gzip;
+		deflate = deflate == -1 ? any : deflate;
+
+		if (gzip <= 0 && deflate <= 0) {
+			return null;
+		}
+		return gzip >= deflate ? "gzip" : "deflate";
+	}
+
+	/**
+	 * Checks whether the content of the given mime type should be compressed.
+	 * 
+	 * @param  mimeType mime type of the content, possibly with parameters
+	 * @return          <code>true</code> if the content is compressible,
+	 *                  <code>false</code> otherwise
+	 */
+	public boolean isCompressible(String mimeType) {
+		if (!enabled || mimeType == null) {
+			return false;
+		}
+		int semicolon = mimeType.indexOf(';');
+		if (semicolon != -1) {
+			mimeType = mimeType.substring(0, semicolon);
+		}
+		return mimeTypes.contains(mimeType.trim().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Creates a stream which compresses everything written to it, and writes
+	 * the compressed content to the given stream. Flushing the created stream
+	 * writes everything compressed so far, and compressed content is complete
+	 * once the created stream is closed.
+	 * 
+	 * @param  output      stream to which the compressed content is written
+	 * @param  encoding    content encoding, <code>gzip</code> or
+	 *                     <code>deflate</code>
+	 * @return             compressing stream
+	 * @throws IOException if unable to write to the given stream
+	 */
+	public static OutputStream compressingStream(OutputStream output,
+			String encoding) throws IOException {
+		switch (encoding) {
+		case "gzip":
+			return new GZIPOutputStream(output, BUFFER_SIZE, true);
+		case "deflate":
+			return new DeflaterOutputStream(output, new Deflater(),
+					BUFFER_SIZE, true) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					def.end(); // release the native memory right away
+				}
+			};
+		default:
+			throw new IllegalArgumentException(
+					"Unsupported encoding: " + encoding);
+		}
+	}
+
+	/**
+	 * Compresses the given content.
+	 * 
+	 * @param  content  content to compress
+	 * @param  encoding content encoding, <code>gzip</code> or
+	 *                  <code>deflate</code>
+	 * @return          compressed content
+	 */
+	public static byte[] compress(byte[] content, String encoding) {
+		ByteArrayOutputStream compressed =
+				new ByteArrayOutputStream(content.length / 2 + 64);
+		try (OutputStream os = compressingStream(compressed, encoding)) {
+			os.write(content);
+		} catch (IOException ignorable) {
+			// cannot happen when writing to memory
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Parses the quality value from the parameters of an accepted encoding.
+	 * 
+	 * @param  parameters parameters, such as <code>q=0.5</code>
+	 * @return            the quality, 1 if it is not given, or 0 if invalid
+	 */
+	private static double parseQuality(String parameters) {
+		for (String parameter : parameters.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+				try {
+					return Double.parseDouble(parameter.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+}
@@ -0,0 +1,157 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Decoder of parameters in the <code>application/x-www-form-urlencoded</code>
+ * format, used by the queries of URLs and by the bodies of submitted forms.
+ * Parameters are separated by <code>&amp;</code>, names are separated from
+ * values by <code>=</code>, a <code>+</code> stands for a space, and other
+ * bytes may be escaped as <code>%</code> followed by two hexadecimal digits.
+ * Decoded bytes are read as UTF-8.
+ * <p>
+ * Bytes are decoded as they are fed to the decoder, so a body can be decoded
+ * piece by piece as it arrives. Empty parameters are skipped, and parameters
+ * without a value are given an empty value. Escapes which are not valid are
+ * kept as they are.
+ *
+ * @author jankovidakovic
+ *
+ */
+public class FormDecoder {
+
+	private Map<String, String> parameters; // where the parameters are put
+	private ByteArrayOutputStream token = new ByteArrayOutputStream(64);
+	private String name; // decoded name of the current parameter, or null if
+							// its value has not started yet
+	private int escaped = -1; // number of hex digits of the current escape
+								// read so far, or -1 outside of an escape
+	private byte high; // first hex digit of the current escape
+
+	/**
+	 * Creates a decoder which puts the decoded parameters into the given map.
+	 *
+	 * @param parameters map of the parameters
+	 */
+	public FormDecoder(Map<String, String> parameters) {
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Decodes the given part of the encoded parameters.
+	 *
+	 * @param data bytes of the parameters
+	 * @param from index of the first byte to decode
+	 * @param to   index after the last byte to decode
+	 */
+	public void feed(byte[] data, int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = data[i];
+			if (escaped >= 0) {
+				int digit = Character.digit(b, 16);
+				if (digit == -1) { // not an escape after all
+					token.write('%');
+					if (escaped == 1) {
+						token.write(high);
+					}
+					escaped = -1;
+				} else if (escaped == 0) {
+					high = b;
+					escaped = 1;
+					continue;
+				} else {
+					token.write(Character.digit(high, 16) << 4 | digit);
+					escaped = -1;
+					continue;
+				}
+			}
+
+			if (b == '&') {
+				endParameter();
+			} else if (b == '=' && name == null) {
+				name = decoded();
+			} else if (b == '+') {
+				token.write(' ');
+			} else if (b == '%') {
+				escaped = 0;
+			} else {
+				token.write(b);
+			}
+		}
+	}
+
+	/**
+	 * Ends the decoding, completing the last parameter.
+	 */
+	public void finish() {
+		endParameter();
+	}
+
+	/**
+	 * Decodes all the parameters from the given bytes.
+	 *
+	 * @param data       bytes of the parameters
+	 * @param from       index of the first byte to decode
+	 * @param to         index after the last byte to decode
+	 * @param parameters map into which the parameters are put
+	 */
+	public static void decode(byte[] data, int from, int to,
+			Map<String, String> parameters) {
+		FormDecoder decoder = new FormDecoder(parameters);
+		decoder.feed(data, from, to);
+		decoder.finish();
+	}
+
+	/**
+	 * Decodes all the parameters from the given stream, piece by piece.
+	 *
+	 * @param  is          stream of the parameters
+	 * @param  parameters  map into which the parameters are put
+	 * @throws IOException if unable to read the stream
+	 */
+	public static void decode(InputStream is, Map<String, String> parameters)
+			throws IOException {
+		FormDecoder decoder = new FormDecoder(parameters);
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			decoder.feed(buffer, 0, read);
+		}
+		decoder.finish();
+	}
+
+	/**
+	 * Completes the current parameter, and puts it into the map unless it is
+	 * empty.
+	 */
+	private void endParameter() {
+		if (escaped >= 0) { // unfinished escape is kept as it is
+			token.write('%');
+			if (escaped == 1) {
+				token.write(high);
+			}
+			escaped = -1;
+		}
+		if (name != null) {
+			parameters.put(name, decoded());
+		} else if (token.size() > 0) {
+			parameters.put(decoded(), "");
+		}
+		name = null;
+	}
+
+	/**
+	 * Decodes the bytes of the current token, and starts the next token.
+	 *
+	 * @return the decoded token
+	 */
+	private String decoded() {
+		String decoded = token.toString(StandardCharsets.UTF_8);
+		token.reset();
+		return decoded;
+	}
+}
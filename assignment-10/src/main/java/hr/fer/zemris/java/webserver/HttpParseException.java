@@ -0,0 +1,47 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * Exception thrown by the {@link HttpRequestParser} when the request header is
+ * malformed, or exceeds the configured limits. Exception carries the status of
+ * the response which should be sent to the client.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class HttpParseException extends RuntimeException {
+
+	/**
+	 * auto generated serialVersionUID
+	 */
+	private static final long serialVersionUID = 3412586390212958361L;
+
+	private int statusCode; // status code of the response
+	private String statusText; // status text of the response
+
+	/**
+	 * Creates a new exception with the given response status.
+	 * 
+	 * @param statusCode status code of the response
+	 * @param statusText status text of the response, also used as the
+	 *                   message
+	 */
+	public HttpParseException(int statusCode, String statusText) {
+		super(statusText);
+		this.statusCode = statusCode;
+		this.statusText = statusText;
+	}
+
+	/**
+	 * @return status code of the response which should be sent
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return status text of the response which should be sent
+	 */
+	public String getStatusText() {
+		return statusText;
+	}
+}
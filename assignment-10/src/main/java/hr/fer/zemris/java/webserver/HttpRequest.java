@@ -0,0 +1,87 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parsed header of a single HTTP request. Instances are created by the
+ * {@link HttpRequestParser}.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class HttpRequest {
+
+	String method; // method of the request, as sent
+	String path; // requested path, without the query
+	String version; // http version, as sent
+	String host; // host name, without the port
+	String sid; // session identifier from the cookie
+	// parameters from the query
+	Map<String, String> parameters = new HashMap<String, String>();
+	// header fields, by lowercase names
+	Map<String, String> headers = new HashMap<String, String>();
+
+	/**
+	 * Creates an empty request, which is filled by the parser.
+	 */
+	HttpRequest() {
+	}
+
+	/**
+	 * @return method of the request, as sent by the client
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return requested path, without the query
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return http version of the request, as sent by the client
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return host from the Host header field without the port, or
+	 *         <code>null</code> if the field was not sent
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return session identifier from the <code>sid</code> cookie, or
+	 *         <code>null</code> if there is no such cookie
+	 */
+	public String getSid() {
+		return sid;
+	}
+
+	/**
+	 * @return parameters from the query of the requested URL
+	 */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Retrieves the value of the header field with the given name. Values of
+	 * the fields which were sent more than once are joined.
+	 * 
+	 * @param  name name of the header field, case insensitive
+	 * @return      value of the field, or <code>null</code> if the request
+	 *              has no such field
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,332 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser of HTTP request headers. Header is parsed in a single pass directly
+ * from the bytes in which it was received, creating only the strings that end
+ * up in the {@link HttpRequest}. Lines can be terminated either by CRLF or by
+ * LF alone, and folded lines are joined.
+ * <p>
+ * Parser limits the size of the header and the number of its lines. Received
+ * bytes should be kept in a buffer of {@link #getMaxHeaderSize()} bytes - if
+ * the buffer fills up before {@link #findHeaderEnd(byte[], int, int)} finds
+ * the end of the header, the header is too large.
+ * <p>
+ * Parser keeps a reusable buffer for the names of the header fields, so a
+ * single parser cannot be used by more threads at once.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class HttpRequestParser {
+
+	private int maxHeaderSize; // maximum size of the header, in bytes
+	private int maxHeaderLines; // maximum number of header fields
+	private char[] nameBuffer = new char[64]; // for lowercasing field names
+
+	/**
+	 * Creates a new parser with the given limits.
+	 * 
+	 * @param  maxHeaderSize            maximum size of the header, in bytes
+	 * @param  maxHeaderLines           maximum number of header fields,
+	 *                                  excluding the request line
+	 * @throws IllegalArgumentException if any of the limits is not positive
+	 */
+	public HttpRequestParser(int maxHeaderSize, int maxHeaderLines) {
+		if (maxHeaderSize <= 0 || maxHeaderLines <= 0) {
+			throw new IllegalArgumentException(
+					"Header limits must be positive.");
+		}
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxHeaderLines = maxHeaderLines;
+	}
+
+	/**
+	 * @return maximum size of the header, in bytes
+	 */
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	/**
+	 * Finds the end of the request header, which is marked by an empty line.
+	 * Lines can be terminated either by CRLF or by LF alone.
+	 * 
+	 * @param  data bytes received from the client
+	 * @param  from index from which the search starts
+	 * @param  to   index at which the search stops, exclusive
+	 * @return      index of the first byte after the header, or -1 if the
+	 *              header is not yet complete
+	 */
+	public static int findHeaderEnd(byte[] data, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] != '\n') {
+				continue;
+			}
+			if (i + 1 < to && data[i + 1] == '\n') {
+				return i + 2;
+			}
+			if (i + 2 < to && data[i + 1] == '\r' && data[i + 2] == '\n') {
+				return i + 3;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the request header contained in the given bytes.
+	 * 
+	 * @param  data               bytes received from the client
+	 * @param  from               index of the first byte of the header
+	 * @param  to                 index of the first byte after the header, as
+	 *                            returned by
+	 *                            {@link #findHeaderEnd(byte[], int, int)}
+	 * @return                    the parsed request
+	 * @throws HttpParseException if the header is malformed, or has too many
+	 *                            lines
+	 */
+	public HttpRequest parse(byte[] data, int from, int to) {
+		if (to - from > maxHeaderSize) {
+			throw new HttpParseException(431,
+					"Request Header Fields Too Large");
+		}
+		HttpRequest request = new HttpRequest();
+
+		int lineEnd = indexOf(data, '\n', from, to);
+		parseRequestLine(request, data, from, trimCarriageReturn(data, from,
+				lineEnd));
+
+		String name = null; // name of the last field, for folded lines
+		int lines = 0;
+		for (int pos = lineEnd + 1; pos < to; pos = lineEnd + 1) {
+			lineEnd = indexOf(data, '\n', pos, to);
+			int end = trimCarriageReturn(data, pos, lineEnd);
+			if (end == pos) { // empty line ends the header
+				break;
+			}
+
+			if (data[pos] == ' ' || data[pos] == '\t') { // folded line
+				if (name == null) {
+					throw new HttpParseException(400, "Bad request");
+				}
+				request.headers.put(name,
+						request.headers.get(name) + " " + value(data, pos, end));
+				continue;
+			}
+
+			if (++lines > maxHeaderLines) {
+				throw new HttpParseException(431,
+						"Request Header Fields Too Large");
+			}
+			int colon = indexOf(data, ':', pos, end);
+			if (colon == end || colon == pos) {
+				throw new HttpParseException(400, "Bad request");
+			}
+			name = lowercaseName(data, pos, colon);
+			String value = value(data, colon + 1, end);
+			String previous = request.headers.putIfAbsent(name, value);
+			if (previous != null) { // repeated fields form a list
+				request.headers.put(name, previous
+						+ (name.equals("cookie") ? "; " : ", ") + value);
+			}
+		}
+
+		request.host = parseHost(request.headers.get("host"));
+		request.sid = parseSid(request.headers.get("cookie"));
+		return request;
+	}
+
+	/**
+	 * Parses the request line, which consists of the method, the requested URL
+	 * and the version, separated by single spaces.
+	 * 
+	 * @param  request            request to fill
+	 * @param  data               bytes of the header
+	 * @param  from               index of the first byte of the line
+	 * @param  to                 index of the end of the line, exclusive
+	 * @throws HttpParseException if the line is malformed
+	 */
+	private void parseRequestLine(HttpRequest request, byte[] data, int from,
+			int to) {
+		int firstSpace = indexOf(data, ' ', from, to);
+		int secondSpace = indexOf(data, ' ', firstSpace + 1, to);
+		if (firstSpace == from || secondSpace >= to - 1
+				|| secondSpace == firstSpace + 1
+				|| indexOf(data, ' ', secondSpace + 1, to) != to) {
+			throw new HttpParseException(400, "Bad request");
+		}
+		request.method = string(data, from, firstSpace);
+		request.version = string(data, secondSpace + 1, to);
+
+		int question = indexOf(data, '?', firstSpace + 1, secondSpace);
+		request.path = string(data, firstSpace + 1, question);
+		if (question < secondSpace) {
+			parseParameters(request, data, question + 1, secondSpace);
+		}
+	}
+
+	/**
+	 * Parses the query of the requested URL into the parameters of the
+	 * request. Names and values are URL-decoded, and parameters without a
+	 * value are given an empty value.
+	 * 
+	 * @param request request to fill
+	 * @param data    bytes of the header
+	 * @param from    index of the first byte of the query
+	 * @param to      index of the end of the query, exclusive
+	 */
+	private void parseParameters(HttpRequest request, byte[] data, int from,
+			int to) {
+		FormDecoder.decode(data, from, to, request.parameters);
+	}
+
+	/**
+	 * Extracts the host name from the value of the Host header field, leaving
+	 * out the port.
+	 * 
+	 * @param  hostField value of the field, may be <code>null</code>
+	 * @return           host name, or <code>null</code> if there is none
+	 */
+	private static String parseHost(String hostField) {
+		if (hostField == null || hostField.isEmpty()) {
+			return null;
+		}
+		int end;
+		if (hostField.charAt(0) == '[') { // IPv6 address contains colons
+			end = hostField.indexOf(']') + 1;
+			if (end == 0) {
+				end = hostField.length();
+			}
+		} else {
+			end = hostField.indexOf(':');
+			if (end == -1) {
+				end = hostField.length();
+			}
+		}
+		return end == 0 ? null : hostField.substring(0, end);
+	}
+
+	/**
+	 * Extracts the value of the <code>sid</code> cookie from the value of the
+	 * Cookie header field. Quotes around the value are removed.
+	 * 
+	 * @param  cookieField value of the field, may be <code>null</code>
+	 * @return             the session identifier, or <code>null</code> if
+	 *                     there is no such cookie
+	 */
+	private static String parseSid(String cookieField) {
+		if (cookieField == null) {
+			return null;
+		}
+		String sid = null;
+		int length = cookieField.length();
+		for (int pos = 0; pos < length;) {
+			int end = cookieField.indexOf(';', pos);
+			if (end == -1) {
+				end = length;
+			}
+			while (pos < end && cookieField.charAt(pos) == ' ') {
+				pos++;
+			}
+			if (cookieField.startsWith("sid=", pos)) {
+				int valueStart = pos + 4;
+				int valueEnd = end;
+				while (valueEnd > valueStart
+						&& cookieField.charAt(valueEnd - 1) == ' ') {
+					valueEnd--;
+				}
+				if (valueEnd - valueStart >= 2
+						&& cookieField.charAt(valueStart) == '"'
+						&& cookieField.charAt(valueEnd - 1) == '"') {
+					valueStart++;
+					valueEnd--;
+				}
+				sid = cookieField.substring(valueStart, valueEnd);
+			}
+			pos = end + 1;
+		}
+		return sid;
+	}
+
+	/**
+	 * Creates the lowercase name of a header field.
+	 * 
+	 * @param  data bytes of the header
+	 * @param  from index of the first byte of the name
+	 * @param  to   index of the end of the name, exclusive
+	 * @return      lowercase name
+	 */
+	private String lowercaseName(byte[] data, int from, int to) {
+		int length = to - from;
+		if (length > nameBuffer.length) {
+			nameBuffer = new char[Math.max(length, 2 * nameBuffer.length)];
+		}
+		for (int i = 0; i < length; i++) {
+			char c = (char) (data[from + i] & 0xFF);
+			nameBuffer[i] = c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+		}
+		return new String(nameBuffer, 0, length);
+	}
+
+	/**
+	 * Creates the value of a header field, without the surrounding
+	 * whitespace.
+	 * 
+	 * @param  data bytes of the header
+	 * @param  from index of the first byte of the value
+	 * @param  to   index of the end of the value, exclusive
+	 * @return      the value
+	 */
+	private static String value(byte[] data, int from, int to) {
+		while (from < to && (data[from] == ' ' || data[from] == '\t')) {
+			from++;
+		}
+		while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t')) {
+			to--;
+		}
+		return string(data, from, to);
+	}
+
+	/**
+	 * Creates a string of the given bytes, each byte being one character.
+	 * 
+	 * @param  data bytes of the header
+	 * @param  from index of the first byte
+	 * @param  to   index of the end, exclusive
+	 * @return      the string
+	 */
+	private static String string(byte[] data, int from, int to) {
+		return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Finds the first occurrence of the given byte.
+	 * 
+	 * @param  data bytes to search
+	 * @param  b    byte to find
+	 * @param  from index from which the search starts
+	 * @param  to   index at which the search stops, exclusive
+	 * @return      index of the byte, or <code>to</code> if not found
+	 */
+	private static int indexOf(byte[] data, char b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	/**
+	 * Leaves out the carriage return at the end of a line, if there is one.
+	 * 
+	 * @param  data bytes of the header
+	 * @param  from index of the first byte of the line
+	 * @param  to   index of the line feed which ends the line
+	 * @return      index of the end of the line content, exclusive
+	 */
+	private static int trimCarriageReturn(byte[] data, int from, int to) {
+		return to > from && data[to - 1] == '\r' ? to - 1 : to;
+	}
+}
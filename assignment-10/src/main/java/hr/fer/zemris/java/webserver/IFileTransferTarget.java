@@ -0,0 +1,25 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Interface of a response output which can send parts of files to the client
+ * directly, without copying their content through the heap.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public interface IFileTransferTarget {
+
+	/**
+	 * Sends the given part of the file to the client, after everything that
+	 * was written to the output before.
+	 * 
+	 * @param  file        file whose part is sent
+	 * @param  position    position in the file at which the part starts
+	 * @param  count       number of bytes to send
+	 * @throws IOException if unable to read the file or send its content
+	 */
+	void transferFile(Path file, long position, long count) throws IOException;
+}
@@ -0,0 +1,124 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations which can be recorded by many threads at once, without
+ * locking. Durations are counted in logarithmic buckets - every power of two
+ * is split into four equally wide buckets, so the bucket of a duration is at
+ * most a quarter of the duration wide, regardless of its magnitude. Buckets
+ * cover the durations from about a microsecond to about half a minute, shorter
+ * and longer durations are counted in the first and last bucket.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class LatencyHistogram {
+
+	// durations below 2^MIN_EXPONENT nanoseconds share the first bucket
+	private static final int MIN_EXPONENT = 10;
+	// durations of at least 2^MAX_EXPONENT nanoseconds share the last bucket
+	private static final int MAX_EXPONENT = 35;
+	// number of buckets every power of two is split into, as a power of two
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Number of buckets of every histogram. */
+	public static final int BUCKETS =
+			(MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 2;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS]; // per bucket
+	private final LongAdder sum = new LongAdder(); // of all durations
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a single duration.
+	 * 
+	 * @param nanos duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[bucketOf(nanos)].increment();
+		sum.add(nanos);
+	}
+
+	/**
+	 * Records the duration that passed since the given time.
+	 * 
+	 * @param startNanos start of the duration, as returned by
+	 *                   {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Retrieves the number of recorded durations in every bucket. Counts are
+	 * not taken atomically, so durations recorded in the meantime may be
+	 * included only partially.
+	 * 
+	 * @return counts of the buckets, in the order of their upper bounds
+	 */
+	public long[] getCounts() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			result[i] = counts[i].sum();
+		}
+		return result;
+	}
+
+	/**
+	 * @return sum of all the recorded durations, in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Retrieves the upper bound of the given bucket. Durations in the bucket
+	 * are shorter than the bound.
+	 * 
+	 * @param  bucket index of the bucket
+	 * @return        upper bound of the bucket, in nanoseconds, or
+	 *                {@link Long#MAX_VALUE} for the last bucket
+	 */
+	public static long upperBound(int bucket) {
+		if (bucket == 0) {
+			return 1L << MIN_EXPONENT;
+		}
+		if (bucket == BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		int exponent = MIN_EXPONENT + (bucket - 1) / SUB_BUCKETS;
+		int sub = (bucket - 1) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Calculates the index of the bucket which counts the given duration.
+	 * 
+	 * @param  nanos duration, in nanoseconds
+	 * @return       index of the bucket
+	 */
+	static int bucketOf(long nanos) {
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent < MIN_EXPONENT) {
+			return 0;
+		}
+		if (exponent >= MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+	}
+}
@@ -0,0 +1,79 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of files which were found to be missing. Requests for missing files
+ * are answered without touching the file system again, until the given time
+ * to live passes, after which the file is looked up again in case it was
+ * created in the meantime.
+ * <p>
+ * Number of remembered files is limited. Once the limit is reached, all of
+ * them are forgotten at once, which is cheap and only costs a single lookup
+ * for each file that is requested again.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class MissingFileCache {
+
+	private long timeToLive; // how long a file is remembered, in milliseconds
+	private int capacity; // maximum number of remembered files
+
+	// remembered files, along with the times until they are remembered
+	private Map<Path, Long> missing = new ConcurrentHashMap<Path, Long>();
+
+	/**
+	 * Creates an empty cache.
+	 * 
+	 * @param  timeToLive               how long a missing file is remembered,
+	 *                                  in milliseconds. If zero, nothing is
+	 *                                  remembered.
+	 * @param  capacity                 maximum number of remembered files
+	 * @throws IllegalArgumentException if any of the arguments is negative
+	 */
+	public MissingFileCache(long timeToLive, int capacity) {
+		if (timeToLive < 0 || capacity < 0) {
+			throw new IllegalArgumentException(
+					"Arguments cannot be negative.");
+		}
+		this.timeToLive = timeToLive;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Checks whether the given file was recently found to be missing.
+	 * 
+	 * @param  file path to the file
+	 * @return      <code>true</code> if the file is known to be missing,
+	 *              <code>false</code> if it has to be looked up
+	 */
+	public boolean isMissing(Path file) {
+		Long until = missing.get(file);
+		if (until == null) {
+			return false;
+		}
+		if (until > System.currentTimeMillis()) {
+			return true;
+		}
+		missing.remove(file, until);
+		return false;
+	}
+
+	/**
+	 * Remembers that the given file is missing.
+	 * 
+	 * @param file path to the file
+	 */
+	public void markMissing(Path file) {
+		if (timeToLive == 0 || capacity == 0) {
+			return;
+		}
+		if (missing.size() >= capacity) {
+			missing.clear();
+		}
+		missing.put(file, System.currentTimeMillis() + timeToLive);
+	}
+}
@@ -0,0 +1,354 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Response which is generated in memory, and then written to a non-blocking
+ * channel in as many steps as the client needs. Parts of files that the
+ * response contains are not read into memory, but are transferred from the
+ * file to the channel once the response is written.
+ * <p>
+ * Response is generated by one thread, while another thread writes it to the
+ * channel. Writing can start before the response is complete - whenever the
+ * response is flushed, the bytes written so far become available for writing,
+ * and the listener given to the constructor is notified. A response which has
+ * such a listener is also flushed whenever {@link #PART_SIZE} bytes were
+ * written since the last flush, so a large response is never held in memory as
+ * a whole. If more than {@link #MAX_QUEUED} bytes wait to be written, the
+ * thread which generates the response waits until the client accepts some of
+ * them.
+ * 
+ * @author jankovidakovic
+ *
+ */
+class NioResponse extends OutputStream implements IFileTransferTarget {
+
+	// number of written bytes after which the response is flushed
+	private static final int PART_SIZE = 16 * 1024;
+	// number of bytes that can wait to be written, before writing waits
+	private static final long MAX_QUEUED = 256 * 1024;
+
+	// parts of the response, in the order in which they are sent
+	private Queue<Part> parts = new ConcurrentLinkedQueue<Part>();
+	// bytes written after the last completed part
+	private Bytes current = new Bytes();
+	private volatile boolean complete; // whether all parts were added
+	private Runnable flushListener; // notified when the response is flushed
+	private long queued; // bytes of the completed parts, guarded by this
+	private boolean closed; // whether the response was closed, guarded by this
+
+	/**
+	 * Creates a response which is written only once it is complete.
+	 */
+	NioResponse() {
+	}
+
+	/**
+	 * Creates a response which consists of the given bytes.
+	 * 
+	 * @param content the whole response
+	 */
+	NioResponse(byte[] content) {
+		current.write(content, 0, content.length);
+	}
+
+	/**
+	 * Creates a response which can be written in parts, as it is flushed.
+	 * 
+	 * @param flushListener notified whenever flushing makes new bytes
+	 *                      available for writing
+	 */
+	NioResponse(Runnable flushListener) {
+		this.flushListener = flushListener;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		current.write(b);
+		if (flushListener != null && current.size() >= PART_SIZE) {
+			flush();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		current.write(b, off, len);
+		if (flushListener != null && current.size() >= PART_SIZE) {
+			flush();
+		}
+	}
+
+	@Override
+	public void transferFile(Path file, long position, long count) {
+		completeCurrent();
+		parts.add(new FilePart(file, position, count));
+	}
+
+	/**
+	 * Makes the bytes written so far available for writing. If too many bytes
+	 * wait to be written, waits until the client accepts some of them.
+	 * 
+	 * @throws IOException if the response was closed, or the thread was
+	 *                     interrupted while waiting
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (completeCurrent() && flushListener != null) {
+			flushListener.run();
+			awaitQueued();
+		}
+	}
+
+	/**
+	 * Marks the response as complete. Nothing should be written to the
+	 * response afterwards.
+	 */
+	void complete() {
+		completeCurrent();
+		complete = true;
+	}
+
+	/**
+	 * Writes as much of the response as the channel currently accepts.
+	 * 
+	 * @param  channel     channel to write to
+	 * @return             <code>true</code> if the whole response was written,
+	 *                     <code>false</code> otherwise
+	 * @throws IOException if unable to write the response
+	 */
+	boolean writeTo(WritableByteChannel channel) throws IOException {
+		Part part;
+		while ((part = parts.peek()) != null) {
+			if (!part.writeTo(channel)) {
+				return false;
+			}
+			parts.remove().close();
+			if (part instanceof BytesPart) {
+				dequeued(((BytesPart) part).size);
+			}
+		}
+		return complete && parts.isEmpty();
+	}
+
+	/**
+	 * Checks whether everything available was written, but the response is
+	 * not yet complete, so writing has to wait until it is flushed again.
+	 * 
+	 * @return <code>true</code> if the rest of the response is not yet
+	 *         available, <code>false</code> otherwise
+	 */
+	boolean isWaiting() {
+		return !complete && parts.isEmpty();
+	}
+
+	/**
+	 * Releases the files that were not completely written. A thread which
+	 * waits to write more of the response stops waiting, and fails.
+	 */
+	@Override
+	public void close() {
+		for (Part part : parts) {
+			part.close();
+		}
+		parts.clear();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until at most {@link #MAX_QUEUED} bytes wait to be written.
+	 * 
+	 * @throws IOException if the response was closed, or the thread was
+	 *                     interrupted while waiting
+	 */
+	private synchronized void awaitQueued() throws IOException {
+		while (queued > MAX_QUEUED && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for the client.");
+			}
+		}
+		if (closed) {
+			throw new IOException("Connection was closed.");
+		}
+	}
+
+	/**
+	 * Records that the given number of bytes was written to the channel,
+	 * waking the thread which waits to write more.
+	 * 
+	 * @param size number of written bytes
+	 */
+	private synchronized void dequeued(int size) {
+		queued -= size;
+		if (queued <= MAX_QUEUED) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Moves the bytes written so far into a completed part, without copying
+	 * them.
+	 * 
+	 * @return <code>true</code> if there were any bytes to move,
+	 *         <code>false</code> otherwise
+	 */
+	private boolean completeCurrent() {
+		if (current.size() == 0) {
+			return false;
+		}
+		synchronized (this) {
+			queued += current.size();
+		}
+		parts.add(new BytesPart(current.toBuffer()));
+		current = new Bytes();
+		return true;
+	}
+
+	/**
+	 * Bytes written to the response, which can be wrapped into a buffer
+	 * without being copied.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class Bytes extends ByteArrayOutputStream {
+
+		/**
+		 * Wraps the written bytes into a buffer. Bytes should not be written
+		 * to this instance afterwards.
+		 * 
+		 * @return buffer which contains the written bytes
+		 */
+		ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Single part of the response.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static abstract class Part {
+
+		/**
+		 * Writes as much of the part as the channel currently accepts.
+		 * 
+		 * @param  channel     channel to write to
+		 * @return             <code>true</code> if the whole part was written,
+		 *                     <code>false</code> otherwise
+		 * @throws IOException if unable to write the part
+		 */
+		abstract boolean writeTo(WritableByteChannel channel)
+				throws IOException;
+
+		/**
+		 * Releases the resources held by the part.
+		 */
+		void close() {
+		}
+	}
+
+	/**
+	 * Part of the response that is stored in memory.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class BytesPart extends Part {
+		private ByteBuffer bytes; // bytes that are yet to be written
+		private int size; // number of bytes of the part
+
+		/**
+		 * Creates a part consisting of the given bytes.
+		 * 
+		 * @param bytes bytes of the part
+		 */
+		BytesPart(ByteBuffer bytes) {
+			this.bytes = bytes;
+			this.size = bytes.remaining();
+		}
+
+		@Override
+		boolean writeTo(WritableByteChannel channel) throws IOException {
+			channel.write(bytes);
+			return !bytes.hasRemaining();
+		}
+	}
+
+	/**
+	 * Part of the response that is a region of a file.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class FilePart extends Part {
+		private Path file; // file that is sent
+		private long position; // position of the next byte to be sent
+		private long count; // number of bytes that are yet to be sent
+		private FileChannel fileChannel; // opened once the writing starts
+
+		/**
+		 * Creates a part consisting of the given region of the file.
+		 * 
+		 * @param file     file that is sent
+		 * @param position position in the file at which the region starts
+		 * @param count    length of the region
+		 */
+		FilePart(Path file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+		}
+
+		@Override
+		boolean writeTo(WritableByteChannel channel) throws IOException {
+			if (fileChannel == null) {
+				fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+			}
+			while (count > 0) {
+				long transferred =
+						fileChannel.transferTo(position, count, channel);
+				if (transferred == 0) {
+					if (position >= fileChannel.size()) {
+						throw new EOFException(
+								"File is shorter than expected.");
+					}
+					return false; // channel is full
+				}
+				position += transferred;
+				count -= transferred;
+			}
+			return true;
+		}
+
+		@Override
+		void close() {
+			if (fileChannel != null) {
+				try {
+					fileChannel.close();
+				} catch (IOException ignorable) {
+					// nothing more can be done with the file
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limiter of the rate of requests, with a separate token bucket for every key,
+ * such as the address of a client. A bucket holds up to <code>burst</code>
+ * tokens and gains <code>rate</code> tokens every second, and every request
+ * takes a single token. Requests which find their bucket empty are refused.
+ * <p>
+ * A bucket is kept as a single number - the time at which the bucket would be
+ * full again, if no more requests were made. Taking a token moves that time
+ * forward by the time needed to regain the token, and the token is available
+ * only if the bucket is not full until too far in the future. The time is
+ * updated with a single compare-and-set, so checking a request takes no locks.
+ * Buckets are kept in a concurrent map, which is internally split into many
+ * independently updated bins.
+ * <p>
+ * Buckets which are full again are no different from the buckets which don't
+ * exist, so they are periodically removed by a background thread.
+ *
+ * @author jankovidakovic
+ *
+ * @param <K> type of the keys
+ */
+public class RateLimiter<K> {
+
+	// how often the full buckets are removed, in milliseconds
+	private static final long SWEEP_PERIOD = 1000;
+
+	private long interval; // time needed to regain a token, in nanoseconds
+	private long tolerance; // time needed to fill an empty bucket
+
+	// buckets, as times at which they are full, by their keys
+	private Map<K, AtomicLong> buckets = new ConcurrentHashMap<K, AtomicLong>();
+	private ScheduledExecutorService sweeper; // thread that removes buckets
+
+	/**
+	 * Creates a limiter with no buckets.
+	 *
+	 * @param  rate                     number of requests allowed per second,
+	 *                                  on average
+	 * @param  burst                    number of requests allowed at once
+	 * @throws IllegalArgumentException if the rate or the burst is not
+	 *                                  positive
+	 */
+	public RateLimiter(double rate, int burst) {
+		if (!(rate > 0) || burst < 1) {
+			throw new IllegalArgumentException(
+					"Rate and burst must be positive.");
+		}
+		this.interval =
+				Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.tolerance = interval * burst;
+	}
+
+	/**
+	 * Starts the background thread which periodically removes the full
+	 * buckets. If the thread is already running, method does nothing.
+	 */
+	public synchronized void start() {
+		if (sweeper != null) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "rate-limit-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleAtFixedRate(() -> sweep(System.nanoTime()),
+				SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background thread which removes the full buckets.
+	 */
+	public synchronized void stop() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Takes a token from the bucket of the given key, if the bucket has one.
+	 *
+	 * @param  key key of the bucket
+	 * @param  now current time, as given by {@link System#nanoTime()}
+	 * @return     0 if the token was taken, or the time after which the bucket
+	 *             will have a token, in nanoseconds
+	 */
+	public long acquire(K key, long now) {
+		AtomicLong bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+		}
+		while (true) {
+			long full = bucket.get();
+			// a bucket that has been full for a while is just full
+			long next = (full - now < 0 ? now : full) + interval;
+			long wait = next - tolerance - now;
+			if (wait > 0) {
+				return wait;
+			}
+			if (bucket.compareAndSet(full, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Removes the buckets which are full. A token taken from a bucket while it
+	 * is being removed is given back, which makes the limit only slightly
+	 * more lenient.
+	 *
+	 * @param now current time, as given by {@link System#nanoTime()}
+	 */
+	public void sweep(long now) {
+		buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+	}
+
+	/**
+	 * @return number of buckets which are not known to be full
+	 */
+	public int size() {
+		return buckets.size();
+	}
+}
@@ -1,16 +1,32 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class that represents the context of a single HTTP request, implementing
@@ -21,14 +37,74 @@ import java.util.Set;
  */
 public class RequestContext {
 
+	// size of the buffer used when a file has to be copied to the output
+	private static final int FILE_COPY_BUFFER_SIZE = 64 * 1024;
+	// size of the buffer into which the written text is encoded
+	private static final int ENCODE_BUFFER_SIZE = 8 * 1024;
+	// minimum size of a chunk of compressed streamed content
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	// format of dates in the header, such as Sun, 06 Nov 1994 08:49:37 GMT
+	static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+			.withZone(ZoneOffset.UTC);
+
+	// parts of the header that are the same in every response
+	private static final byte[] CRLF = ascii("\r\n");
+	private static final byte[] CONTENT_TYPE = ascii("Content-type: ");
+	private static final byte[] CHARSET = ascii("; charset=");
+	private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	private static final byte[] CONTENT_ENCODING =
+			ascii("Content-Encoding: ");
+	private static final byte[] VARY = ascii("Vary: Accept-Encoding\r\n");
+	private static final byte[] ETAG = ascii("ETag: ");
+	private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+	private static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+	private static final byte[] ACCEPT_RANGES =
+			ascii("Accept-Ranges: bytes\r\n");
+	private static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+	private static final byte[] KEEP_ALIVE =
+			ascii("Connection: keep-alive\r\n");
+	private static final byte[] CLOSE = ascii("Connection: close\r\n");
+	private static final byte[] CHUNKED =
+			ascii("Transfer-Encoding: chunked\r\n");
+	private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+	private static final byte[] SET_COOKIE = ascii("Set-Cookie: ");
+	private static final byte[] DOMAIN = ascii("; Domain=");
+	private static final byte[] PATH = ascii("; Path=");
+	private static final byte[] MAX_AGE = ascii("; Max-Age=");
+	private static final byte[] HTTP_ONLY = ascii("; HttpOnly\r\n");
+
+	// status lines that were already encoded, by their status codes
+	private static final Map<Integer, StatusLine> STATUS_LINES =
+			new ConcurrentHashMap<Integer, StatusLine>();
+	// last date that was encoded, since consecutive responses often share it
+	private static volatile EncodedDate lastDate;
+
+	// buffers of the current thread, reused by every response it generates
+	private static final ThreadLocal<Buffers> BUFFERS =
+			ThreadLocal.withInitial(Buffers::new);
+
 	private OutputStream outputStream; // stream for writing the request
+	private InputStream inputStream; // stream of the request body, or null
+										// if the request has no body
 	private Charset charset; // charset used to encode and decode the request
 	private String encoding; // encoding used to write the http request
 	private int statusCode; // status code of the http response
 	private String statusText; // status text of the http response
 	private String mimeType; // mime type used in the request
 	private Long contentLength; // length of the request
+	private String eTag; // entity tag of the content, quoted
+	private Long lastModified; // modification time of the content, in ms
+	private String contentEncoding; // encoding of the content, or null if
+									// the content is sent as is
+	private Integer retryAfter; // seconds after which the client may retry
+	private boolean acceptRanges; // whether ranges of content can be requested
+	private String contentRange; // range of the content which is sent, or
+									// null if the whole content is sent
 	private String sid; // session ID
+	private long bytesSent; // bytes of the response written to the output,
+							// including the header
 
 	private Map<String, String> parameters; // params of the request, read-only
 	private Map<String, String> temporaryParameters; // temporary params
@@ -37,6 +113,20 @@ public class RequestContext {
 	private List<RCCookie> outputCookies; // cookies
 
 	private boolean headerGenerated; // flag for header generation
+	private Boolean keepAlive; // whether the connection is kept open, or
+								// null if not specified
+	private boolean buffered; // flag for buffering the content until the
+								// response is finished
+	private ByteArrayOutputStream bodyBuffer; // content buffered so far
+	private int bufferLimit = Integer.MAX_VALUE; // maximum size of buffered
+													// content, in bytes
+	private boolean chunkingAllowed; // whether the content can be streamed in
+										// chunks
+	private boolean chunked; // whether the content is sent in chunks
+	private Compression compression; // settings of content compression
+	private String acceptedEncoding; // encoding that the buffered content
+										// may be compressed with
+	private OutputStream compressor; // compresses the buffered content
 
 	private IDispatcher dispatcher; // dispatcher which handles the request and
 									// response
@@ -69,7 +159,7 @@ public class RequestContext {
 
 		this.temporaryParameters = new HashMap<String, String>();
 
-		this.charset = Charset.forName("UTF-8");
+		this.charset = StandardCharsets.UTF_8;
 		this.encoding = "UTF-8";
 		this.statusCode = 200;
 		this.statusText = "OK";
@@ -114,6 +204,7 @@ public class RequestContext {
 		if (headerGenerated) {
 			throw new RuntimeException("Header was already generated.");
 		}
+		this.charset = Charset.forName(encoding);
 		this.encoding = encoding;
 	}
 
@@ -130,6 +221,14 @@ public class RequestContext {
 			throw new RuntimeException("Header was already generated.");
 		}
 		this.charset = charset;
+		this.encoding = charset.name();
+	}
+
+	/**
+	 * @return charset with which the written text is encoded
+	 */
+	public Charset getCharset() {
+		return charset;
 	}
 
 	/**
@@ -192,6 +291,220 @@ public class RequestContext {
 		this.contentLength = contentLength;
 	}
 
+	/**
+	 * Sets the entity tag of the content, which is sent in the ETag header.
+	 * 
+	 * @param  eTag             entity tag of the content, including the
+	 *                          quotes, or <code>null</code> if none
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setETag(String eTag) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.eTag = eTag;
+	}
+
+	/**
+	 * Sets the time at which the content was last modified, which is sent in
+	 * the Last-Modified header.
+	 * 
+	 * @param  lastModified     modification time in milliseconds since the
+	 *                          epoch, or <code>null</code> if unknown
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setLastModified(Long lastModified) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Sets the encoding in which the content is written, which is sent in the
+	 * Content-Encoding header. Used when the content is already compressed.
+	 * 
+	 * @param  contentEncoding  encoding of the content, or <code>null</code>
+	 *                          if the content is not encoded
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setContentEncoding(String contentEncoding) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.contentEncoding = contentEncoding;
+	}
+
+	/**
+	 * Sets the number of seconds after which the client may repeat the
+	 * request, which is sent in the Retry-After header. Used when the request
+	 * cannot be served at the moment.
+	 * 
+	 * @param  retryAfter       number of seconds, or <code>null</code> if
+	 *                          none
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setRetryAfter(Integer retryAfter) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Sets whether the client can request byte ranges of the content, which
+	 * is announced in the Accept-Ranges header.
+	 * 
+	 * @param  acceptRanges     <code>true</code> if ranges can be requested,
+	 *                          <code>false</code> otherwise
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setAcceptRanges(boolean acceptRanges) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.acceptRanges = acceptRanges;
+	}
+
+	/**
+	 * Sets the range of the content which is sent, which is sent in the
+	 * Content-Range header. Used for the partial content.
+	 * 
+	 * @param  contentRange     the range, such as <code>bytes 0-499/1234</code>,
+	 *                          or <code>null</code> if the whole content is
+	 *                          sent
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setContentRange(String contentRange) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.contentRange = contentRange;
+	}
+
+	/**
+	 * Sets the compression of the buffered content. Once the buffered content
+	 * of a compressible mime type reaches the minimum size, the rest of the
+	 * content is compressed as it is written, using the given encoding.
+	 * Content which is written directly, or which stays smaller than the
+	 * minimum size, is sent as is.
+	 * 
+	 * @param  compression      settings of compression
+	 * @param  acceptedEncoding encoding accepted by the client, or
+	 *                          <code>null</code> if the client does not accept
+	 *                          compressed content
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setCompression(Compression compression,
+			String acceptedEncoding) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.compression = compression;
+		this.acceptedEncoding = acceptedEncoding;
+	}
+
+	/**
+	 * Sets whether the connection is kept open after this response, which is
+	 * announced to the client by the Connection header. A connection can only
+	 * be kept open if the client can tell where the response ends, so if the
+	 * header is generated without the content length, the client is told that
+	 * the connection will be closed instead.
+	 * 
+	 * @param  keepAlive        <code>true</code> if the connection should be
+	 *                          kept open, <code>false</code> otherwise
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Checks whether the connection is kept open after this response. Result
+	 * is final only once the header is generated.
+	 * 
+	 * @return <code>true</code> if the connection is kept open,
+	 *         <code>false</code> otherwise
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive != null && keepAlive;
+	}
+
+	/**
+	 * Sets whether the content is buffered until the response is finished, if
+	 * the content length was not set before the first write. When the
+	 * response is finished, the length of the buffered content is sent as its
+	 * content length.
+	 * 
+	 * @param  buffered         <code>true</code> if the content should be
+	 *                          buffered, <code>false</code> otherwise
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setBuffered(boolean buffered) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.buffered = buffered;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of content that are buffered. Once more
+	 * content is written, the header is sent without the content length, and
+	 * the content is streamed - in chunks if chunking is allowed, and until
+	 * the connection is closed otherwise.
+	 * 
+	 * @param  bufferLimit      maximum size of buffered content, in bytes
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setBufferLimit(int bufferLimit) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.bufferLimit = bufferLimit;
+	}
+
+	/**
+	 * Sets whether the content of unknown length can be sent using the
+	 * chunked transfer encoding, which lets the client know where the content
+	 * ends, so the connection can be kept open. Chunking should only be
+	 * allowed for HTTP/1.1 clients.
+	 * 
+	 * @param  chunkingAllowed  <code>true</code> if chunking is allowed,
+	 *                          <code>false</code> otherwise
+	 * @throws RuntimeException if the header was already generated and written,
+	 *                          since the change cannot influence already
+	 *                          written header.
+	 */
+	public void setChunkingAllowed(boolean chunkingAllowed) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header was already generated.");
+		}
+		this.chunkingAllowed = chunkingAllowed;
+	}
+
 	/**
 	 * Retrieves the value of the parameter with given name.
 	 * 
@@ -286,6 +599,49 @@ public class RequestContext {
 		return sid;
 	}
 
+	/**
+	 * Sets the stream from which the body of the request is read.
+	 * 
+	 * @param inputStream stream of the body, or <code>null</code> if the
+	 *                    request has no body
+	 */
+	public void setInputStream(InputStream inputStream) {
+		this.inputStream = inputStream;
+	}
+
+	/**
+	 * Retrieves the stream of the request body. Body is read from the client
+	 * as the stream is read, so large bodies, such as uploaded files, can be
+	 * processed without keeping them in memory. Body of a submitted form is
+	 * already decoded into the parameters, so its stream has nothing left.
+	 * 
+	 * @return stream of the body, empty if the request has no body
+	 */
+	public InputStream getInputStream() {
+		if (inputStream == null) {
+			inputStream = InputStream.nullInputStream();
+		}
+		return inputStream;
+	}
+
+	/**
+	 * @return status code of the response
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Retrieves the number of bytes of the response, including its header,
+	 * that were written to the output so far. Content which is still buffered
+	 * is not included.
+	 * 
+	 * @return number of bytes sent
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
 	/**
 	 * Defines a new temporary parameter with given name that stores given
 	 * value. If temporary parameter with given name already exists, its value
@@ -319,75 +675,637 @@ public class RequestContext {
 	}
 
 	public RequestContext write(byte[] data) throws IOException {
-		if (!headerGenerated) {
-			generateHeader();
-		}
-		outputStream.write(data);
-		return this;
+		return write(data, 0, data.length);
 	}
 
 	public RequestContext write(byte[] data, int offset, int len)
 			throws IOException {
 		if (!headerGenerated) {
+			if (buffered && (bodyBuffer != null || contentLength == null)) {
+				if (bodyBuffer == null) {
+					bodyBuffer = new ByteArrayOutputStream();
+				}
+				if (compressor != null) {
+					compressor.write(data, offset, len);
+				} else {
+					bodyBuffer.write(data, offset, len);
+					if (acceptedEncoding != null
+							&& bodyBuffer.size() >= compression.getMinSize()) {
+						startCompression();
+					}
+				}
+				if (bodyBuffer.size() > bufferLimit) {
+					startStreaming();
+				}
+				return this;
+			}
 			generateHeader();
 		}
-		outputStream.write(data, offset, len);
+		if (compressor != null) { // compressed content is streamed
+			compressor.write(data, offset, len);
+			drain(false);
+		} else if (chunked) {
+			writeChunk(data, offset, len);
+		} else {
+			send(data, offset, len);
+		}
 		return this;
 	}
 
+	/**
+	 * Sends everything that was written so far to the client. If the content
+	 * was buffered, the header is sent without the content length, and the
+	 * content is streamed from now on - in chunks if chunking is allowed, and
+	 * until the connection is closed otherwise.
+	 * 
+	 * @throws IOException if unable to write to the output
+	 */
+	public void flush() throws IOException {
+		if (!headerGenerated
+				&& (bodyBuffer != null || buffered && contentLength == null)) {
+			startStreaming();
+		}
+		if (compressor != null) {
+			compressor.flush(); // compressed so far is moved to the buffer
+			drain(true);
+		}
+		outputStream.flush();
+	}
+
+	/**
+	 * Sends the header without the content length, along with the content
+	 * buffered so far. Content written from now on is sent right away.
+	 * 
+	 * @throws IOException if unable to write to the output
+	 */
+	private void startStreaming() throws IOException {
+		contentLength = null; // not known yet
+		chunked = chunkingAllowed;
+		generateHeader();
+		drain(true);
+		outputStream.flush(); // the client can start reading
+	}
+
+	/**
+	 * Sends the buffered content, if there is enough of it to be worth
+	 * sending.
+	 * 
+	 * @param  force       <code>true</code> if the content is sent regardless
+	 *                     of its size, <code>false</code> otherwise
+	 * @throws IOException if unable to write to the output
+	 */
+	private void drain(boolean force) throws IOException {
+		if (bodyBuffer == null || bodyBuffer.size() == 0
+				|| !force && bodyBuffer.size() < CHUNK_SIZE) {
+			return;
+		}
+		if (chunked) {
+			writeChunkSize(bodyBuffer.size());
+			sendBuffered();
+			send(CRLF, 0, CRLF.length);
+		} else {
+			sendBuffered();
+		}
+		bodyBuffer.reset();
+		if (!force) { // drained while streaming, so the chunk goes out now
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Sends the given bytes as a single chunk.
+	 * 
+	 * @param  data        bytes to send
+	 * @param  offset      index of the first byte to send
+	 * @param  len         number of bytes to send
+	 * @throws IOException if unable to write to the output
+	 */
+	private void writeChunk(byte[] data, int offset, int len)
+			throws IOException {
+		if (len == 0) { // empty chunk would end the content
+			return;
+		}
+		writeChunkSize(len);
+		send(data, offset, len);
+		send(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Writes the line which starts a chunk of the given size.
+	 * 
+	 * @param  size        size of the chunk
+	 * @throws IOException if unable to write to the output
+	 */
+	private void writeChunkSize(int size) throws IOException {
+		byte[] line = ascii(Integer.toHexString(size) + "\r\n");
+		send(line, 0, line.length);
+	}
+
+	/**
+	 * Writes the given text, encoded with the encoding of the context. Text is
+	 * encoded by an encoder which is reused by all responses generated by the
+	 * current thread, into a buffer which is reused as well, so no memory is
+	 * allocated for the encoded text.
+	 * 
+	 * @param  text        text to write
+	 * @return             this context
+	 * @throws IOException if unable to write the text
+	 */
 	public RequestContext write(String text) throws IOException {
+		if (text.isEmpty()) {
+			return this;
+		}
+		Buffers buffers = BUFFERS.get();
+		CharsetEncoder encoder = buffers.encoder(charset);
+		ByteBuffer encoded = buffers.encoded;
+		CharBuffer chars = CharBuffer.wrap(text);
+
+		encoder.reset();
+		while (encoder.encode(chars, encoded, true).isOverflow()) {
+			writeEncoded(encoded);
+		}
+		while (encoder.flush(encoded).isOverflow()) {
+			writeEncoded(encoded);
+		}
+		writeEncoded(encoded);
+		return this;
+	}
+
+	/**
+	 * Writes the bytes which were encoded into the given buffer, and clears
+	 * the buffer.
+	 * 
+	 * @param  encoded     buffer with the encoded bytes
+	 * @throws IOException if unable to write the bytes
+	 */
+	private void writeEncoded(ByteBuffer encoded) throws IOException {
+		write(encoded.array(), 0, encoded.position());
+		encoded.clear();
+	}
+
+	/**
+	 * Writes the given part of the file as content of the response. If the
+	 * output supports it, the file is transferred to the client directly,
+	 * without its content passing through the heap. Otherwise, the file is
+	 * copied piece by piece, so the memory used does not depend on the size of
+	 * the file.
+	 * 
+	 * @param  file        file which part is written
+	 * @param  position    position in the file at which the part starts
+	 * @param  count       number of bytes to write
+	 * @return             this context
+	 * @throws IOException if unable to read the file or write the response
+	 */
+	public RequestContext writeFile(Path file, long position, long count)
+			throws IOException {
 		if (!headerGenerated) {
+			if (buffered && (bodyBuffer != null || contentLength == null)) {
+				copyFile(file, position, count); // goes to the buffer
+				return this;
+			}
 			generateHeader();
 		}
-		outputStream.write(text.getBytes(Charset.forName(encoding)));
+		if (outputStream instanceof IFileTransferTarget && !chunked
+				&& compressor == null) {
+			((IFileTransferTarget) outputStream).transferFile(file, position,
+					count);
+			bytesSent += count;
+		} else {
+			copyFile(file, position, count);
+		}
 		return this;
 	}
 
+	/**
+	 * Starts compressing the buffered content, if its mime type is
+	 * compressible. Content buffered so far is compressed right away.
+	 * 
+	 * @throws IOException if unable to compress the content
+	 */
+	private void startCompression() throws IOException {
+		String encoding = acceptedEncoding;
+		acceptedEncoding = null; // decided only once
+		if (contentEncoding != null || !compression.isCompressible(mimeType)) {
+			return;
+		}
+		ByteArrayOutputStream content = bodyBuffer;
+		bodyBuffer = new ByteArrayOutputStream(content.size() / 2 + 64);
+		compressor = Compression.compressingStream(bodyBuffer, encoding);
+		content.writeTo(compressor);
+		contentEncoding = encoding;
+	}
+
+	/**
+	 * Copies the given part of the file to the output, using a buffer of
+	 * limited size.
+	 * 
+	 * @param  file        file which part is copied
+	 * @param  position    position in the file at which the part starts
+	 * @param  count       number of bytes to copy
+	 * @throws IOException if unable to read the file or write the response
+	 */
+	private void copyFile(Path file, long position, long count)
+			throws IOException {
+		try (FileChannel channel =
+				FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(
+					(int) Math.min(count, FILE_COPY_BUFFER_SIZE));
+			while (count > 0) {
+				buffer.clear();
+				buffer.limit((int) Math.min(count, buffer.capacity()));
+				int read = channel.read(buffer, position);
+				if (read == -1) {
+					throw new EOFException("File is shorter than expected.");
+				}
+				write(buffer.array(), 0, read);
+				position += read;
+				count -= read;
+			}
+		}
+	}
+
+	/**
+	 * Finishes the response. If the content was buffered, its compression is
+	 * completed, the header is generated with the length of the buffered
+	 * content, and the content is written after it. If the content was
+	 * streamed, the rest of it is sent, along with the last chunk. If nothing
+	 * was written at all, a header of an empty response is written.
+	 * 
+	 * @throws IOException if unable to write the response
+	 */
+	public void finish() throws IOException {
+		if (compressor != null) {
+			compressor.close(); // completes the compressed content
+			compressor = null;
+		}
+		if (headerGenerated) { // content is streamed, if anything
+			drain(true);
+			bodyBuffer = null;
+			if (chunked) {
+				send(LAST_CHUNK, 0, LAST_CHUNK.length);
+				chunked = false;
+			}
+			return;
+		}
+		if (bodyBuffer != null) {
+			contentLength = (long) bodyBuffer.size();
+			generateHeader();
+			sendBuffered();
+			bodyBuffer = null;
+		} else {
+			if (contentLength == null && !isBodiless()) {
+				contentLength = 0L;
+			}
+			generateHeader();
+		}
+	}
+
+	/**
+	 * Checks whether the response has no content by definition, regardless of
+	 * its headers.
+	 * 
+	 * @return <code>true</code> if the status code of the response does not
+	 *         allow any content, <code>false</code> otherwise
+	 */
+	private boolean isBodiless() {
+		return statusCode == 204 || statusCode == 304
+				|| statusCode >= 100 && statusCode < 200;
+	}
+
 	/**
 	 * Generates the header of an HTTP response. Header is constructed using the
-	 * inner properties of the instance which calls this method.
+	 * inner properties of the instance which calls this method. Parts of the
+	 * header that don't change are encoded only once, and the header is
+	 * written to the output in a single write.
 	 */
 	private void generateHeader() throws IOException {
-		this.charset = Charset.forName(encoding);
-		StringBuilder sb = new StringBuilder();
+		HeaderBuffer header = BUFFERS.get().header;
+		header.reset();
 
 		// write http status
-		sb.append("HTTP/1.1" + " " + statusCode + " " + statusText + "\r\n");
+		header.put(statusLine());
 
 		// write contentType
-		sb.append("Content-type:" + " " + mimeType);
+		header.put(CONTENT_TYPE).put(mimeType);
 		if (mimeType.startsWith("text/")) {
-			sb.append("; charset=" + charset.displayName());
+			header.put(CHARSET).put(charset.displayName());
 		}
-		sb.append("\r\n");
+		header.put(CRLF);
 
 		// write contentLength
 		if (contentLength != null) {
-			sb.append("Content-Length:" + " " + contentLength.toString()
-					+ "\r\n");
+			header.put(CONTENT_LENGTH).put(contentLength).put(CRLF);
+		}
+
+		// write content encoding, and let caches know that it depends on the
+		// encodings accepted by the client
+		if (contentEncoding != null) {
+			header.put(CONTENT_ENCODING).put(contentEncoding).put(CRLF);
+		}
+		if (compression != null && compression.isCompressible(mimeType)) {
+			header.put(VARY);
+		}
+
+		// write validators
+		if (eTag != null) {
+			header.put(ETAG).put(eTag).put(CRLF);
+		}
+		if (lastModified != null) {
+			header.put(LAST_MODIFIED).put(encodeDate(lastModified)).put(CRLF);
+		}
+
+		if (retryAfter != null) {
+			header.put(RETRY_AFTER).put(retryAfter).put(CRLF);
+		}
+
+		// write ranges
+		if (acceptRanges) {
+			header.put(ACCEPT_RANGES);
+		}
+		if (contentRange != null) {
+			header.put(CONTENT_RANGE).put(contentRange).put(CRLF);
+		}
+
+		// write transfer encoding of streamed content
+		if (chunked) {
+			header.put(CHUNKED);
+		}
+
+		// write connection, which can only persist if the content is delimited
+		if (keepAlive != null) {
+			keepAlive = keepAlive
+					&& (contentLength != null || chunked || isBodiless());
+			header.put(keepAlive ? KEEP_ALIVE : CLOSE);
 		}
 
 		// write cookies
 		for (RCCookie cookie : outputCookies) {
-			sb.append(
-					"Set-Cookie: " + cookie.name + "=\"" + cookie.value + "\"");
+			header.put(SET_COOKIE).put(cookie.name).put((byte) '=')
+					.put((byte) '"').put(cookie.value).put((byte) '"');
 			if (cookie.domain != null) {
-				sb.append("; Domain=" + cookie.domain);
+				header.put(DOMAIN).put(cookie.domain);
 			}
 			if (cookie.path != null) {
-				sb.append("; Path=" + cookie.path);
+				header.put(PATH).put(cookie.path);
 			}
 			if (cookie.maxAge != null) {
-				sb.append("; Max-Age=" + cookie.maxAge);
+				header.put(MAX_AGE).put(cookie.maxAge);
 			}
-			sb.append("; HttpOnly");
-			sb.append("\r\n");
+			header.put(HTTP_ONLY);
 		}
-		sb.append("\r\n"); // end of header
-		outputStream.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		header.put(CRLF); // end of header
+		send(header.bytes, 0, header.size);
 		this.headerGenerated = true;
 	}
 
+	/**
+	 * Writes the given bytes to the output, and counts them as sent.
+	 * 
+	 * @param  data        bytes to write
+	 * @param  offset      index of the first byte to write
+	 * @param  len         number of bytes to write
+	 * @throws IOException if unable to write to the output
+	 */
+	private void send(byte[] data, int offset, int len) throws IOException {
+		outputStream.write(data, offset, len);
+		bytesSent += len;
+	}
+
+	/**
+	 * Writes the buffered content to the output, and counts it as sent. The
+	 * buffer is left as is.
+	 * 
+	 * @throws IOException if unable to write to the output
+	 */
+	private void sendBuffered() throws IOException {
+		bodyBuffer.writeTo(outputStream);
+		bytesSent += bodyBuffer.size();
+	}
+
+	/**
+	 * Retrieves the encoded status line of the response. Status lines are
+	 * encoded once for every status code, and encoded again only if the
+	 * status text differs.
+	 * 
+	 * @return encoded status line, including the line terminator
+	 */
+	private byte[] statusLine() {
+		StatusLine line = STATUS_LINES.get(statusCode);
+		if (line != null && line.text.equals(statusText)) {
+			return line.bytes;
+		}
+		line = new StatusLine(statusText, ascii(
+				"HTTP/1.1 " + statusCode + " " + statusText + "\r\n"));
+		if (statusCode >= 100 && statusCode < 1000) { // keeps the map small
+			STATUS_LINES.put(statusCode, line);
+		}
+		return line.bytes;
+	}
+
+	/**
+	 * Encodes the given time as a date in the header. The last encoded date is
+	 * remembered, since consecutive responses often share it.
+	 * 
+	 * @param  millis time in milliseconds since the epoch
+	 * @return        encoded date
+	 */
+	private static byte[] encodeDate(long millis) {
+		long seconds = Math.floorDiv(millis, 1000);
+		EncodedDate date = lastDate;
+		if (date == null || date.seconds != seconds) {
+			date = new EncodedDate(seconds, ascii(HTTP_DATE_FORMAT
+					.format(Instant.ofEpochSecond(seconds))));
+			lastDate = date;
+		}
+		return date.bytes;
+	}
+
+	/**
+	 * Encodes the given text, each character being one byte. Characters that
+	 * don't fit into a byte are replaced by question marks.
+	 * 
+	 * @param  text text to encode
+	 * @return      encoded text
+	 */
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Status line which was already encoded.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class StatusLine {
+		final String text; // status text of the line
+		final byte[] bytes; // encoded line
+
+		/**
+		 * Creates a new encoded status line.
+		 * 
+		 * @param text  status text of the line
+		 * @param bytes encoded line
+		 */
+		StatusLine(String text, byte[] bytes) {
+			this.text = text;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Date which was already encoded.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class EncodedDate {
+		final long seconds; // encoded time, in seconds since the epoch
+		final byte[] bytes; // encoded date
+
+		/**
+		 * Creates a new encoded date.
+		 * 
+		 * @param seconds encoded time, in seconds since the epoch
+		 * @param bytes   encoded date
+		 */
+		EncodedDate(long seconds, byte[] bytes) {
+			this.seconds = seconds;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Buffers of a single thread, which are reused by all responses that the
+	 * thread generates.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class Buffers {
+		// buffer for the header of the response
+		HeaderBuffer header = new HeaderBuffer();
+		// buffer for the encoded text of the content
+		ByteBuffer encoded = ByteBuffer.allocate(ENCODE_BUFFER_SIZE);
+		private CharsetEncoder encoder; // encoder of the last used charset
+
+		/**
+		 * Retrieves the encoder of the given charset, creating it only if the
+		 * charset differs from the previously used one. Characters which
+		 * cannot be encoded are replaced.
+		 * 
+		 * @param  charset charset of the encoder
+		 * @return         the encoder
+		 */
+		CharsetEncoder encoder(Charset charset) {
+			if (encoder == null || !encoder.charset().equals(charset)) {
+				encoder = charset.newEncoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			return encoder;
+		}
+	}
+
+	/**
+	 * Growable array of bytes into which the header is built.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class HeaderBuffer {
+		byte[] bytes = new byte[512]; // bytes of the header
+		int size; // number of bytes in the header
+
+		/**
+		 * Empties the buffer.
+		 */
+		void reset() {
+			size = 0;
+		}
+
+		/**
+		 * Appends the given bytes.
+		 * 
+		 * @param  data bytes to append
+		 * @return      this buffer
+		 */
+		HeaderBuffer put(byte[] data) {
+			ensureCapacity(data.length);
+			System.arraycopy(data, 0, bytes, size, data.length);
+			size += data.length;
+			return this;
+		}
+
+		/**
+		 * Appends a single byte.
+		 * 
+		 * @param  b byte to append
+		 * @return   this buffer
+		 */
+		HeaderBuffer put(byte b) {
+			ensureCapacity(1);
+			bytes[size++] = b;
+			return this;
+		}
+
+		/**
+		 * Appends the given text, each character being one byte. Characters
+		 * that don't fit into a byte are replaced by question marks.
+		 * 
+		 * @param  text text to append
+		 * @return      this buffer
+		 */
+		HeaderBuffer put(String text) {
+			int length = text.length();
+			ensureCapacity(length);
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				bytes[size++] = c > 0xFF ? (byte) '?' : (byte) c;
+			}
+			return this;
+		}
+
+		/**
+		 * Appends the decimal representation of the given number.
+		 * 
+		 * @param  number number to append
+		 * @return        this buffer
+		 */
+		HeaderBuffer put(long number) {
+			if (number < 0) {
+				put((byte) '-');
+				if (number == Long.MIN_VALUE) {
+					return put(Long.toString(number).substring(1));
+				}
+				number = -number;
+			}
+			int digits = 1;
+			for (long n = number / 10; n > 0; n /= 10) {
+				digits++;
+			}
+			ensureCapacity(digits);
+			for (int i = size + digits - 1; i >= size; i--) {
+				bytes[i] = (byte) ('0' + number % 10);
+				number /= 10;
+			}
+			size += digits;
+			return this;
+		}
+
+		/**
+		 * Grows the buffer if the given number of bytes doesn't fit into it.
+		 * 
+		 * @param additional number of bytes that are about to be appended
+		 */
+		private void ensureCapacity(int additional) {
+			if (size + additional > bytes.length) {
+				bytes = Arrays.copyOf(bytes,
+						Math.max(size + additional, 2 * bytes.length));
+			}
+		}
+	}
+
 	/**
 	 * Implementation of a http request cookie, which contains name, value,
 	 * path, domain, and maxAge
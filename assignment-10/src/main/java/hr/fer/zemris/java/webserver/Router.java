@@ -0,0 +1,174 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Router which maps URL paths to their targets. Routes are kept in a trie of
+ * path segments, so a path is routed in a single walk over its segments,
+ * regardless of the number of routes.
+ * <p>
+ * Route patterns consist of segments separated by slashes. Besides literal
+ * segments, a pattern can contain the segment <code>*</code>, which matches
+ * any single segment, and it can end with the segment <code>**</code>, which
+ * matches the rest of the path, including an empty one. When more routes
+ * match the same path, literal segments take precedence over <code>*</code>,
+ * which takes precedence over <code>**</code>, so the most specific route
+ * wins.
+ * 
+ * @author jankovidakovic
+ *
+ * @param <T> type of route targets
+ */
+public class Router<T> {
+
+	private Node<T> root = new Node<T>(); // root of the trie
+
+	/**
+	 * Adds the route with the given pattern. If the same pattern was already
+	 * added, its target is replaced.
+	 * 
+	 * @param  pattern                  pattern of the route
+	 * @param  target                   target of the route
+	 * @throws IllegalArgumentException if <code>**</code> is not the last
+	 *                                  segment of the pattern
+	 */
+	public void add(String pattern, T target) {
+		Node<T> node = root;
+		String[] segments = pattern.split("/");
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			if (segment.isEmpty()) {
+				continue;
+			}
+			if (segment.equals("**")) {
+				if (i != segments.length - 1) {
+					throw new IllegalArgumentException(
+							"** must be the last segment: " + pattern);
+				}
+				node.prefix = target;
+				return;
+			}
+			if (segment.equals("*")) {
+				if (node.wildcard == null) {
+					node.wildcard = new Node<T>();
+				}
+				node = node.wildcard;
+			} else {
+				node = node.children.computeIfAbsent(segment,
+						s -> new Node<T>());
+			}
+		}
+		node.exact = target;
+	}
+
+	/**
+	 * Finds the target of the most specific route which matches the given
+	 * path.
+	 * 
+	 * @param  path URL path, without the query
+	 * @return      target of the matching route, or <code>null</code> if no
+	 *              route matches
+	 */
+	public T route(String path) {
+		return match(root, path, 0);
+	}
+
+	/**
+	 * Removes the <code>.</code> and <code>..</code> segments, and empty
+	 * segments, from the given URL path, so the path names the same file as
+	 * it will be resolved to. Paths should be normalized before they are
+	 * routed, otherwise a path such as <code>/x/../private/a</code> would not
+	 * match the route of <code>/private/**</code>.
+	 * 
+	 * @param  path URL path, without the query
+	 * @return      normalized path, which starts with a slash, and ends with
+	 *              one if the given path does, or <code>null</code> if the
+	 *              path leads above the root
+	 */
+	public static String normalize(String path) {
+		if (path.startsWith("/") && path.indexOf("/.") == -1
+				&& path.indexOf("//") == -1) {
+			return path; // already normal, which is the usual case
+		}
+
+		Deque<String> segments = new ArrayDeque<String>();
+		String[] parts = path.split("/", -1);
+		for (String part : parts) {
+			if (part.isEmpty() || part.equals(".")) {
+				continue;
+			}
+			if (part.equals("..")) {
+				if (segments.isEmpty()) {
+					return null;
+				}
+				segments.removeLast();
+			} else {
+				segments.addLast(part);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String segment : segments) {
+			sb.append('/').append(segment);
+		}
+		String last = parts[parts.length - 1];
+		if (sb.length() == 0 || last.isEmpty() || last.equals(".")
+				|| last.equals("..")) {
+			sb.append('/'); // names a directory
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Matches the rest of the path against the given node of the trie.
+	 * 
+	 * @param  node node which the part of the path before the given position
+	 *              was matched to
+	 * @param  path URL path
+	 * @param  from position in the path from which the rest of it starts
+	 * @return      target of the matching route, or <code>null</code> if no
+	 *              route matches
+	 */
+	private T match(Node<T> node, String path, int from) {
+		int length = path.length();
+		while (from < length && path.charAt(from) == '/') {
+			from++;
+		}
+		if (from == length) {
+			return node.exact != null ? node.exact : node.prefix;
+		}
+
+		int end = path.indexOf('/', from);
+		if (end == -1) {
+			end = length;
+		}
+		T target = null;
+		Node<T> child = node.children.isEmpty() ? null
+				: node.children.get(path.substring(from, end));
+		if (child != null) {
+			target = match(child, path, end);
+		}
+		if (target == null && node.wildcard != null) {
+			target = match(node.wildcard, path, end);
+		}
+		return target != null ? target : node.prefix;
+	}
+
+	/**
+	 * Single node of the trie, representing a path segment.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 * @param <T> type of route targets
+	 */
+	private static class Node<T> {
+		// children of the node, by their literal segments
+		Map<String, Node<T>> children = new HashMap<String, Node<T>>();
+		Node<T> wildcard; // child which matches any segment
+		T exact; // target of the path which ends at this node
+		T prefix; // target of all the paths which start at this node
+	}
+}
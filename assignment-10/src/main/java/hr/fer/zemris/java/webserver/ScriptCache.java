@@ -0,0 +1,224 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptCompiler;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.exec.Template;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+
+/**
+ * Cache of parsed smart scripts, shared by all requests of the server. Scripts
+ * are parsed only when first requested, and again when the script file is
+ * modified. The cache holds a limited number of scripts, and when it is full,
+ * the script that was least recently used is evicted. Parsed scripts are kept
+ * as templates, which are compiled by {@link SmartScriptCompiler} if compiling
+ * is enabled, and interpret the parsed document otherwise. Templates keep no
+ * state between executions, so the same template can be executed by many
+ * requests at once.
+ * <p>
+ * Each version of a script is loaded by a single thread. Other requests for
+ * the same version wait until it is loaded, rather than each parsing and
+ * compiling the script again.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class ScriptCache {
+
+	private int capacity; // maximum number of cached scripts
+	private boolean compile; // whether the scripts are compiled
+	private Map<Path, CachedScript> scripts; // cached scripts, in access order
+
+	private LongAdder hits = new LongAdder(); // requests served from cache
+	private LongAdder misses = new LongAdder(); // requests that needed parsing
+
+	/**
+	 * Creates an empty cache that holds at most the given number of scripts,
+	 * which are interpreted.
+	 * 
+	 * @param  capacity                 maximum number of cached scripts. If
+	 *                                  zero, nothing is cached.
+	 * @throws IllegalArgumentException if capacity is negative
+	 */
+	public ScriptCache(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * Creates an empty cache that holds at most the given number of scripts.
+	 * 
+	 * @param  capacity                 maximum number of cached scripts. If
+	 *                                  zero, nothing is cached.
+	 * @param  compile                  whether the scripts are compiled. It
+	 *                                  takes longer to load a compiled script,
+	 *                                  but it executes faster.
+	 * @throws IllegalArgumentException if capacity is negative
+	 */
+	public ScriptCache(int capacity, boolean compile) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException(
+					"Capacity cannot be negative.");
+		}
+		this.capacity = capacity;
+		this.compile = compile;
+		this.scripts = new LinkedHashMap<Path, CachedScript>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Path, CachedScript> eldest) {
+				return size() > ScriptCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Retrieves the template of the given script. If the script is not
+	 * cached, or the file was modified since it was cached, the script is read
+	 * and parsed, and compiled if enabled, again. If another thread is already
+	 * loading the same version of the script, waits for it instead.
+	 * 
+	 * @param  script           path to the script file
+	 * @return                  template of the script
+	 * @throws IOException      if unable to read the script. If the script
+	 *                          does not exist, or is not a regular file,
+	 *                          <code>NoSuchFileException</code> is thrown.
+	 * @throws RuntimeException if the script cannot be parsed
+	 */
+	public Template get(Path script) throws IOException {
+		BasicFileAttributes attributes =
+				Files.readAttributes(script, BasicFileAttributes.class);
+		if (!attributes.isRegularFile()) {
+			throw new NoSuchFileException(script.toString(), null,
+					"Not a regular file.");
+		}
+		FileTime modified = attributes.lastModifiedTime();
+		long size = attributes.size();
+
+		CachedScript cached;
+		synchronized (scripts) {
+			cached = scripts.get(script);
+			if (cached != null && cached.modified.equals(modified)
+					&& cached.size == size) {
+				hits.increment();
+				return await(cached.template);
+			}
+			// this thread loads the script, others wait for it
+			cached = new CachedScript(new CompletableFuture<Template>(),
+					modified, size);
+			scripts.put(script, cached);
+		}
+
+		// parsing and compiling are done outside of the lock, so that other
+		// scripts can be retrieved in the meantime
+		misses.increment();
+		try {
+			DocumentNode document =
+					new SmartScriptParser(Files.readString(script))
+							.getDocumentNode();
+			Template template = compile ? SmartScriptCompiler.compile(document)
+					: context -> new SmartScriptEngine(document, context)
+							.execute();
+			cached.template.complete(template);
+			return template;
+		} catch (IOException | RuntimeException e) {
+			// waiting threads fail as well, and the next request tries again
+			cached.template.completeExceptionally(e);
+			synchronized (scripts) {
+				scripts.remove(script, cached);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until the template is loaded by another thread.
+	 * 
+	 * @param  template         template which is being loaded
+	 * @return                  the loaded template
+	 * @throws IOException      if the script could not be read
+	 * @throws RuntimeException if the script could not be parsed
+	 */
+	private static Template await(CompletableFuture<Template> template)
+			throws IOException {
+		try {
+			return template.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of retrievals that were served from the cache.
+	 * 
+	 * @return number of cache hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of retrievals for which the script had to be parsed.
+	 * 
+	 * @return number of cache misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of scripts currently in the cache.
+	 * 
+	 * @return number of cached scripts
+	 */
+	public int size() {
+		synchronized (scripts) {
+			return scripts.size();
+		}
+	}
+
+	/**
+	 * Parsed script, along with the properties of the file it was parsed
+	 * from.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class CachedScript {
+		CompletableFuture<Template> template; // parsed script, once loaded
+		FileTime modified; // modification time of the parsed file
+		long size; // size of the parsed file
+
+		/**
+		 * Creates a new cache entry.
+		 * 
+		 * @param template parsed script, once loaded
+		 * @param modified modification time of the parsed file
+		 * @param size     size of the parsed file
+		 */
+		CachedScript(CompletableFuture<Template> template, FileTime modified,
+				long size) {
+			this.template = template;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a running server - counters of connections and requests, and
+ * histograms of the time spent in every stage of request handling. Everything
+ * is recorded without locking, so the metrics can be updated from the hot path
+ * of every request. Metrics which the server already keeps elsewhere, such as
+ * the number of sessions, are registered as gauges or counters and read only
+ * when the metrics are exported.
+ * <p>
+ * Metrics are exported in the Prometheus text exposition format.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class ServerMetrics {
+
+	// prefix of the names of all exported metrics
+	private static final String PREFIX = "smarthttp_";
+
+	// upper bounds of the histogram buckets, in seconds, as exported
+	private static final String[] BOUNDS =
+			new String[LatencyHistogram.BUCKETS];
+
+	static {
+		for (int i = 0; i < BOUNDS.length - 1; i++) {
+			BOUNDS[i] = Double.toString(LatencyHistogram.upperBound(i) / 1e9);
+		}
+		BOUNDS[BOUNDS.length - 1] = "+Inf";
+	}
+
+	/**
+	 * Kinds of handlers which can process a request.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	public enum Handler {
+		/** Worker configured for the path. */
+		WORKER("worker"),
+		/** Worker requested by its name, through /ext/{name}. */
+		EXT_WORKER("ext"),
+		/** Smart script. */
+		SCRIPT("script"),
+		/** Static file. */
+		STATIC("static"),
+		/** Nothing, request was refused or not found. */
+		NONE("none");
+
+		private final String label; // value of the exported label
+
+		/**
+		 * Creates a new handler kind.
+		 * 
+		 * @param label value of the exported label
+		 */
+		Handler(String label) {
+			this.label = label;
+		}
+	}
+
+	/**
+	 * Reasons for refusing to serve a request.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	public enum Rejection {
+		/** Server has as many open connections as it allows. */
+		MAX_CONNECTIONS("max_connections"),
+		/** Queue of requests waiting for a worker thread is full. */
+		QUEUE_FULL("queue_full"),
+		/** Client or session sent more requests than it is allowed to. */
+		RATE_LIMITED("rate_limited");
+
+		private final String label; // value of the exported label
+
+		/**
+		 * Creates a new reason for rejection.
+		 * 
+		 * @param label value of the exported label
+		 */
+		Rejection(String label) {
+			this.label = label;
+		}
+	}
+
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder[] requests = new LongAdder[Handler.values().length];
+	private final LongAdder[] rejected =
+			new LongAdder[Rejection.values().length];
+
+	private final LatencyHistogram accept = new LatencyHistogram();
+	private final LatencyHistogram parse = new LatencyHistogram();
+	private final LatencyHistogram script = new LatencyHistogram();
+	private final LatencyHistogram write = new LatencyHistogram();
+	private final LatencyHistogram[] dispatch =
+			new LatencyHistogram[Handler.values().length];
+
+	// gauges and counters kept elsewhere, in the order of their registration
+	private final List<Supplied> supplied = new ArrayList<Supplied>();
+
+	/**
+	 * Creates metrics with all counters set to zero.
+	 */
+	public ServerMetrics() {
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = new LongAdder();
+			dispatch[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < rejected.length; i++) {
+			rejected[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Registers a gauge whose value is read from the given supplier whenever
+	 * the metrics are exported. Gauges should be registered before the server
+	 * is started.
+	 * 
+	 * @param name  name of the gauge, without the common prefix
+	 * @param help  description of the gauge
+	 * @param value supplier of the current value
+	 */
+	public synchronized void addGauge(String name, String help,
+			LongSupplier value) {
+		supplied.add(new Supplied(PREFIX + name, help, "gauge", value));
+	}
+
+	/**
+	 * Registers a counter whose value is read from the given supplier
+	 * whenever the metrics are exported. The value should never decrease.
+	 * Counters should be registered before the server is started.
+	 * 
+	 * @param name  name of the counter, without the common prefix, ending
+	 *              with <code>_total</code>
+	 * @param help  description of the counter
+	 * @param value supplier of the current value
+	 */
+	public synchronized void addCounter(String name, String help,
+			LongSupplier value) {
+		supplied.add(new Supplied(PREFIX + name, help, "counter", value));
+	}
+
+	/**
+	 * Records that a client connection was accepted.
+	 */
+	public void connectionOpened() {
+		acceptedConnections.increment();
+		activeConnections.increment();
+	}
+
+	/**
+	 * Records that a client connection was closed.
+	 */
+	public void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	/**
+	 * Records that a request was processed by the given handler.
+	 * 
+	 * @param handler       handler of the request
+	 * @param dispatchNanos time taken to dispatch the request, in nanoseconds
+	 */
+	public void requestHandled(Handler handler, long dispatchNanos) {
+		requests[handler.ordinal()].increment();
+		dispatch[handler.ordinal()].record(dispatchNanos);
+	}
+
+	/**
+	 * Records that a request, or a whole connection, was refused.
+	 * 
+	 * @param reason reason for the refusal
+	 */
+	public void requestRejected(Rejection reason) {
+		rejected[reason.ordinal()].increment();
+	}
+
+	/**
+	 * Retrieves the number of requests refused for the given reason.
+	 * 
+	 * @param  reason reason for the refusal
+	 * @return        number of refused requests
+	 */
+	public long getRejected(Rejection reason) {
+		return rejected[reason.ordinal()].sum();
+	}
+
+	/**
+	 * @return histogram of the time from accepting a connection, or receiving
+	 *         a request over the non-blocking connection, until a worker
+	 *         thread starts handling it
+	 */
+	public LatencyHistogram getAcceptLatency() {
+		return accept;
+	}
+
+	/**
+	 * @return histogram of the time taken to parse request headers
+	 */
+	public LatencyHistogram getParseLatency() {
+		return parse;
+	}
+
+	/**
+	 * @return histogram of the time taken to execute smart scripts
+	 */
+	public LatencyHistogram getScriptLatency() {
+		return script;
+	}
+
+	/**
+	 * @return histogram of the time taken to write completed responses to
+	 *         the clients
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return write;
+	}
+
+	/**
+	 * Exports all the metrics in the Prometheus text exposition format.
+	 * 
+	 * @return exported metrics
+	 */
+	public String export() {
+		StringBuilder sb = new StringBuilder(16384);
+
+		header(sb, "connections_accepted_total",
+				"Number of accepted client connections.", "counter");
+		sample(sb, "connections_accepted_total", null,
+				acceptedConnections.sum());
+		header(sb, "connections_active", "Number of open client connections.",
+				"gauge");
+		sample(sb, "connections_active", null, activeConnections.sum());
+
+		header(sb, "requests_total",
+				"Number of processed requests, by their handler.", "counter");
+		for (Handler handler : Handler.values()) {
+			sample(sb, "requests_total", "handler=\"" + handler.label + "\"",
+					requests[handler.ordinal()].sum());
+		}
+
+		header(sb, "rejected_total",
+				"Number of refused requests, by the reason of refusal.",
+				"counter");
+		for (Rejection reason : Rejection.values()) {
+			sample(sb, "rejected_total", "reason=\"" + reason.label + "\"",
+					rejected[reason.ordinal()].sum());
+		}
+
+		synchronized (this) {
+			for (Supplied metric : supplied) {
+				sb.append("# HELP ").append(metric.name).append(' ')
+						.append(metric.help).append('\n');
+				sb.append("# TYPE ").append(metric.name).append(' ')
+						.append(metric.type).append('\n');
+				sb.append(metric.name).append(' ')
+						.append(metric.value.getAsLong()).append('\n');
+			}
+		}
+
+		header(sb, "stage_duration_seconds",
+				"Time spent in a stage of request handling.", "histogram");
+		histogram(sb, "stage_duration_seconds", "stage=\"accept\"", accept);
+		histogram(sb, "stage_duration_seconds", "stage=\"parse\"", parse);
+		histogram(sb, "stage_duration_seconds", "stage=\"script\"", script);
+		histogram(sb, "stage_duration_seconds", "stage=\"write\"", write);
+
+		header(sb, "dispatch_duration_seconds",
+				"Time taken to dispatch a request, by its handler.",
+				"histogram");
+		for (Handler handler : Handler.values()) {
+			histogram(sb, "dispatch_duration_seconds",
+					"handler=\"" + handler.label + "\"",
+					dispatch[handler.ordinal()]);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the description and the type of a metric.
+	 * 
+	 * @param sb   builder of the export
+	 * @param name name of the metric, without the common prefix
+	 * @param help description of the metric
+	 * @param type type of the metric
+	 */
+	private static void header(StringBuilder sb, String name, String help,
+			String type) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ')
+				.append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(' ')
+				.append(type).append('\n');
+	}
+
+	/**
+	 * Appends a single sample of a metric.
+	 * 
+	 * @param sb     builder of the export
+	 * @param name   name of the metric, without the common prefix
+	 * @param labels labels of the sample, or <code>null</code> if it has none
+	 * @param value  value of the sample
+	 */
+	private static void sample(StringBuilder sb, String name, String labels,
+			Object value) {
+		sb.append(PREFIX).append(name);
+		if (labels != null) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends the cumulative buckets, the sum and the count of a histogram.
+	 * 
+	 * @param sb        builder of the export
+	 * @param name      name of the metric, without the common prefix
+	 * @param labels    labels which identify the histogram
+	 * @param histogram histogram to export
+	 */
+	private static void histogram(StringBuilder sb, String name, String labels,
+			LatencyHistogram histogram) {
+		long[] counts = histogram.getCounts();
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			sample(sb, name + "_bucket",
+					labels + ",le=\"" + BOUNDS[i] + "\"", cumulative);
+		}
+		sample(sb, name + "_sum", labels, histogram.getSum() / 1e9);
+		sample(sb, name + "_count", labels, cumulative);
+	}
+
+	/**
+	 * Metric whose value is read when exported.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class Supplied {
+		final String name; // full name of the metric
+		final String help; // description of the metric
+		final String type; // gauge or counter
+		final LongSupplier value; // supplier of the current value
+
+		/**
+		 * Creates a new metric.
+		 * 
+		 * @param name  full name of the metric
+		 * @param help  description of the metric
+		 * @param type  type of the metric, as exported
+		 * @param value supplier of the current value
+		 */
+		Supplied(String name, String help, String type, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+	}
+}
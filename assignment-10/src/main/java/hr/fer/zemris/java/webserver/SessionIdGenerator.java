@@ -0,0 +1,58 @@
+package hr.fer.zemris.java.webserver;
+
+import java.security.SecureRandom;
+
+/**
+ * Generator of session identifiers which can be used by many threads at once
+ * without contention. Every thread gets its own instance of
+ * <code>SecureRandom</code>, seeded by the operating system, so the generated
+ * identifiers cannot be predicted, and threads never wait for each other.
+ * <p>
+ * Identifiers have a fixed length of {@value #LENGTH} characters, taken from a
+ * 32-character alphabet of uppercase letters and digits, which gives 100 random
+ * bits per identifier.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class SessionIdGenerator {
+
+	/**
+	 * Number of characters in every generated identifier.
+	 */
+	public static final int LENGTH = 20;
+
+	// characters of the identifier, each one encoding 5 random bits
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+	// state of every thread, created when the thread first needs it
+	private ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+	/**
+	 * Generates a new session identifier.
+	 * 
+	 * @return new session identifier
+	 */
+	public String nextId() {
+		State state = this.state.get();
+		state.random.nextBytes(state.bytes);
+		for (int i = 0; i < LENGTH; i++) {
+			state.chars[i] = ALPHABET[state.bytes[i] & 0x1F];
+		}
+		return new String(state.chars);
+	}
+
+	/**
+	 * Random number generator of a single thread, along with buffers that are
+	 * reused for every identifier.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class State {
+		SecureRandom random = new SecureRandom(); // seeded by the system
+		byte[] bytes = new byte[LENGTH]; // random bytes of the identifier
+		char[] chars = new char[LENGTH]; // characters of the identifier
+	}
+}
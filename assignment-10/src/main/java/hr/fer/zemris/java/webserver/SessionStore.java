@@ -0,0 +1,282 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store of user sessions which can be used by many threads at once. Sessions
+ * are looked up by their identifiers in constant time, without locking.
+ * <p>
+ * Expired sessions are removed by a timing wheel - a circular array of
+ * buckets, each bucket holding the sessions that expire during one tick of the
+ * wheel. Every tick, only the sessions from the current bucket are checked, so
+ * the expired sessions are removed in small increments instead of by scanning
+ * all sessions at once. When a session is used, only its expiration time is
+ * updated. The session is moved to the bucket of its new expiration time once
+ * its old bucket is checked.
+ * <p>
+ * Number of live sessions can be limited. Once the limit is reached, creating
+ * a new session evicts a session that is among the closest to expiring.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class SessionStore {
+
+	// duration of a single tick of the timing wheel, in milliseconds
+	private static final long TICK = 1000;
+	// number of buckets of the timing wheel
+	private static final int WHEEL_SIZE = 256;
+
+	private long timeout; // how long an unused session lives, in milliseconds
+	private int maxSessions; // maximum number of live sessions
+
+	// live sessions, by their identifiers
+	private Map<String, Session> sessions =
+			new ConcurrentHashMap<String, Session>();
+
+	// buckets of the timing wheel
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private ConcurrentLinkedQueue<Session>[] wheel =
+			new ConcurrentLinkedQueue[WHEEL_SIZE];
+
+	private volatile long lastTick; // last tick whose bucket was checked
+	private ScheduledExecutorService sweeper; // thread that moves the wheel
+
+	/**
+	 * Creates an empty session store.
+	 * 
+	 * @param  timeout                  how long a session lives after it was
+	 *                                  last used, in seconds
+	 * @param  maxSessions              maximum number of live sessions
+	 * @throws IllegalArgumentException if the timeout is negative, or the
+	 *                                  maximum number of sessions is not
+	 *                                  positive
+	 */
+	public SessionStore(int timeout, int maxSessions) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative.");
+		}
+		if (maxSessions <= 0) {
+			throw new IllegalArgumentException(
+					"Maximum number of sessions must be positive.");
+		}
+		this.timeout = timeout * 1000L;
+		this.maxSessions = maxSessions;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel[i] = new ConcurrentLinkedQueue<Session>();
+		}
+		lastTick = System.currentTimeMillis() / TICK;
+	}
+
+	/**
+	 * Starts the background thread which periodically removes expired
+	 * sessions. If the thread is already running, method does nothing.
+	 */
+	public synchronized void start() {
+		if (sweeper != null) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "session-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleAtFixedRate(
+				() -> sweep(System.currentTimeMillis()), TICK, TICK,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background thread which removes expired sessions.
+	 */
+	public synchronized void stop() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Retrieves the live session with the given identifier. Session is not
+	 * renewed by this method.
+	 * 
+	 * @param  sid identifier of the session
+	 * @return     the session, or <code>null</code> if there is no such
+	 *             session, or it has expired
+	 */
+	public Session get(String sid) {
+		if (sid == null) {
+			return null;
+		}
+		Session session = sessions.get(sid);
+		if (session != null
+				&& session.validUntil <= System.currentTimeMillis()) {
+			sessions.remove(sid, session);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Creates and stores a new session. If the maximum number of sessions is
+	 * reached, a session that is among the closest to expiring is evicted
+	 * first.
+	 * 
+	 * @param  sid  identifier of the new session
+	 * @param  host host for which the session is created
+	 * @return      the new session, or <code>null</code> if a session with the
+	 *              given identifier already exists
+	 */
+	public Session create(String sid, String host) {
+		while (sessions.size() >= maxSessions && evictOne()) {
+			// make room for the new session
+		}
+		Session session = new Session(sid, host,
+				System.currentTimeMillis() + timeout);
+		if (sessions.putIfAbsent(sid, session) != null) {
+			return null;
+		}
+		schedule(session);
+		return session;
+	}
+
+	/**
+	 * Renews the given session, so that it expires only after the whole
+	 * timeout passes from now.
+	 * 
+	 * @param session session to renew
+	 */
+	public void touch(Session session) {
+		session.validUntil = System.currentTimeMillis() + timeout;
+	}
+
+	/**
+	 * Returns the number of stored sessions. Sessions which have expired, but
+	 * were not removed yet, are included.
+	 * 
+	 * @return number of stored sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Moves the timing wheel up to the given time, checking the buckets of
+	 * all the ticks that have passed since the last check. Expired sessions
+	 * are removed, while the sessions that were renewed in the meantime are
+	 * moved to the bucket of their new expiration time.
+	 * 
+	 * @param now current time, in milliseconds
+	 */
+	void sweep(long now) {
+		long currentTick = now / TICK;
+		// after a long pause, no bucket needs to be checked more than once
+		long fromTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+		for (long tick = fromTick; tick <= currentTick; tick++) {
+			ConcurrentLinkedQueue<Session> bucket =
+					wheel[(int) (tick % WHEEL_SIZE)];
+			// sessions rescheduled to this same bucket are checked next time
+			for (int n = bucket.size(); n > 0; n--) {
+				Session session = bucket.poll();
+				if (session == null) {
+					break;
+				}
+				if (sessions.get(session.sid) != session) {
+					continue; // already removed
+				}
+				if (session.validUntil <= now) {
+					sessions.remove(session.sid, session);
+				} else {
+					schedule(session);
+				}
+			}
+		}
+		lastTick = currentTick;
+	}
+
+	/**
+	 * Places the session into the bucket of its expiration time.
+	 * 
+	 * @param session session to place
+	 */
+	private void schedule(Session session) {
+		long tick = Math.max(session.validUntil / TICK, lastTick + 1);
+		wheel[(int) (tick % WHEEL_SIZE)].add(session);
+	}
+
+	/**
+	 * Evicts a single session, taking it from the buckets that are checked
+	 * next.
+	 * 
+	 * @return <code>true</code> if a session was evicted, <code>false</code>
+	 *         if there was nothing to evict
+	 */
+	private boolean evictOne() {
+		long tick = lastTick + 1;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			ConcurrentLinkedQueue<Session> bucket =
+					wheel[(int) ((tick + i) % WHEEL_SIZE)];
+			Session session;
+			while ((session = bucket.poll()) != null) {
+				if (sessions.remove(session.sid, session)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Representation of one session
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	public static class Session {
+		private final String sid; // session identifier
+		private final String host; // which host uses the session
+		private volatile long validUntil; // time until the session expires
+		// persistent parameters of the session
+		private final Map<String, String> map =
+				new ConcurrentHashMap<String, String>();
+
+		/**
+		 * Creates a new session without any parameters.
+		 * 
+		 * @param sid        session identifier
+		 * @param host       host which uses the session
+		 * @param validUntil time until the session expires, in milliseconds
+		 */
+		private Session(String sid, String host, long validUntil) {
+			this.sid = sid;
+			this.host = host;
+			this.validUntil = validUntil;
+		}
+
+		/**
+		 * @return the session identifier
+		 */
+		public String getSid() {
+			return sid;
+		}
+
+		/**
+		 * @return the host which uses the session
+		 */
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * @return persistent parameters of the session
+		 */
+		public Map<String, String> getMap() {
+			return map;
+		}
+	}
+}
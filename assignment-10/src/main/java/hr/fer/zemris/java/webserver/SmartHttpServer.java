@@ -1,67 +1,160 @@
 package hr.fer.zemris.java.webserver;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Random;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
-import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import javax.net.ssl.SSLException;
+
+import hr.fer.zemris.java.custom.scripting.exec.Template;
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+import hr.fer.zemris.java.webserver.ServerMetrics.Handler;
+import hr.fer.zemris.java.webserver.ServerMetrics.Rejection;
+import hr.fer.zemris.java.webserver.SessionStore.Session;
+import hr.fer.zemris.java.webserver.StaticFileCache.CachedFile;
+import hr.fer.zemris.java.webserver.workers.MetricsWorker;
 
 /**
  * Implementation of a simple server that can process HTTP requests and generate
  * static and dynamic web pages. Port that the server listens to is 5721.
+ * Server can also listen for HTTPS on another port, secured by TLS.
  * 
  * @author jankovidakovic
  *
  */
 public class SmartHttpServer {
 
+	// content type of submitted forms, whose bodies become request parameters
+	private static final String FORM_CONTENT_TYPE =
+			"application/x-www-form-urlencoded";
+
 	private String address; // IP address of the server
 	private String domainName; // domain name
 	private int port; // TCP port
+	private int httpsPort; // TCP port of the HTTPS listener, if there is one
+	private volatile int localPort; // port that the plain listener is bound to
+	private TlsContext tls; // settings of the HTTPS connections, or null if
+							// the server has no HTTPS listener
 	private int workerThreads; // number of threads that will process requests
 	private int sessionTimeout; // maximum time that the session is allowed to
 								// exist, in seconds
-	private Map<String, String> mimeTypes = new HashMap<String, String>(); // mime
-	private ServerThread serverThread; // main thread, that recieves requests
+	private String mode; // connection handling mode, "blocking" or "nio"
+	private String executionMode; // how requests are run, "pool" or "virtual"
+	private int keepAliveTimeout; // how long an idle connection is kept open,
+									// in seconds
+	private int maxKeepAliveRequests; // maximum number of requests that are
+										// served over a single connection
+	private int maxHeaderSize; // maximum size of the request header, in bytes
+	private int maxHeaderLines; // maximum number of request header fields
+	private long maxBodySize; // maximum size of a request body, in bytes
+	private int responseBufferSize; // maximum size of buffered dynamic
+									// content, in bytes
+	private int workQueueSize; // maximum number of requests waiting for a
+								// worker thread
+	private Semaphore connectionPermits; // one for every connection that can
+											// be opened
+	private byte[] overloadedResponse; // response to the refused requests
+	private RateLimiter<InetAddress> clientLimiter; // limits the requests of
+													// every client, or null
+	private RateLimiter<String> sessionLimiter; // limits the requests of every
+												// session, or null
+	// mime types by file extensions, replaced as a whole when reloaded
+	private volatile Map<String, String> mimeTypes =
+			new HashMap<String, String>();
+	private Path mimeConfig; // configuration file of the mime types
+	private Path workersConfig; // configuration file of the workers
+	private boolean reloadConfig; // whether changed configuration is reloaded
+	private int shutdownTimeout; // how long the server waits for the
+									// requests in progress to complete when
+									// it is stopped, in seconds
+	// main threads, that recieve requests
+	private List<Thread> serverThreads = new ArrayList<Thread>();
+	private ConfigWatcher configWatcher; // thread that reloads configuration
+	private volatile boolean running; // whether new requests are accepted
+	// sockets that accept new connections, closed once the server stops
+	private Set<ServerSocketChannel> serverChannels =
+			ConcurrentHashMap.newKeySet();
+	// connections of the blocking mode that are being served
+	private Set<ClientWorker> clientWorkers = ConcurrentHashMap.newKeySet();
 	private ExecutorService threadPool; // thread pool for processing requests
 	private Path documentRoot; // root of the documents that the server can
 								// serve
 
-	private Map<String, IWebWorker> workersMap =
-			new HashMap<String, IWebWorker>(); // map of available workers
-
-	private Map<String, SessionMapEntry> sessions =
-			new HashMap<String, SmartHttpServer.SessionMapEntry>(); // active
-																	// sessions
-	private Random sessionRandom = new Random(); // rng for sid generation
+	private ScriptCache scriptCache; // parsed smart scripts
+	private StaticFileCache fileCache; // static files and their validators
+	private Compression compression; // settings of response compression
+
+	// routes of paths, replaced as a whole when reloaded
+	private volatile Router<Route> router = new Router<Route>();
+	// configured workers by their class names, reused when reloaded
+	private Map<String, IWebWorker> configuredWorkers =
+			new HashMap<String, IWebWorker>();
+	private WorkerRegistry extWorkers; // workers requested by their names
+	private MissingFileCache missingFiles; // files recently found missing
+
+	private SessionStore sessions; // active sessions
+	private ServerMetrics metrics = new ServerMetrics(); // server metrics
+	private Path accessLogFile; // file of the access log, or null if
+								// requests are not logged
+	private int accessLogBufferSize; // number of records waiting to be logged
+	private long accessLogMaxFileSize; // size after which the log is rotated
+	private int accessLogMaxFiles; // number of rotated logs that are kept
+	private volatile AccessLog accessLog; // log of the served requests
+	private SessionIdGenerator sidGenerator =
+			new SessionIdGenerator(); // generator of session identifiers
 
 	/**
 	 * Creates and configures a new smart http server using the given
@@ -72,136 +165,1452 @@ public class SmartHttpServer {
 	 *                       .properties file
 	 */
 	public SmartHttpServer(String configFileName) {
+		this(loadConfig(configFileName));
+	}
 
-		Properties properties = new Properties();
-		try {
-			properties.load(Files.newInputStream(Paths.get(configFileName)));
-		} catch (IOException e) { // no such file
-			System.out.println("Error: missing config file!");
-			System.exit(-1);
-		}
+	/**
+	 * Creates and configures a new smart http server using the given
+	 * configuration properties.
+	 * 
+	 * @param properties properties used to configure the server, with the same
+	 *                   keys as in the configuration file
+	 */
+	public SmartHttpServer(Properties properties) {
 
-		// configure the server using the file
+		// configure the server using the properties
 
 		address = properties.getProperty("server.address");
 		domainName = properties.getProperty("server.domainName");
 		port = Integer.parseInt(properties.getProperty("server.port"));
+		String httpsPortValue =
+				properties.getProperty("server.httpsPort", "").trim();
+		httpsPort =
+				httpsPortValue.isEmpty() ? 0 : Integer.parseInt(httpsPortValue);
+		if (httpsPort > 0) {
+			tls = loadTls(properties);
+		}
 		workerThreads = Integer
 				.parseInt(properties.getProperty("server.workerThreads"));
-		documentRoot = Paths.get(properties.getProperty("server.documentRoot"));
+		documentRoot = Paths.get(properties.getProperty("server.documentRoot"))
+				.toAbsolutePath().normalize();
+		mode = properties.getProperty("server.mode", "blocking").trim();
+		executionMode =
+				properties.getProperty("server.executionMode", "pool").trim();
+		keepAliveTimeout = Integer.parseInt(
+				properties.getProperty("server.keepAliveTimeout", "5").trim());
+		maxKeepAliveRequests = Integer.parseInt(properties
+				.getProperty("server.maxKeepAliveRequests", "100").trim());
+		maxHeaderSize = Integer.parseInt(properties
+				.getProperty("server.maxHeaderSize", "16384").trim());
+		maxHeaderLines = Integer.parseInt(properties
+				.getProperty("server.maxHeaderLines", "100").trim());
+		maxBodySize = Long.parseLong(properties
+				.getProperty("server.maxBodySize", "10485760").trim());
+		responseBufferSize = Integer.parseInt(properties
+				.getProperty("server.responseBufferSize", "65536").trim());
+		workQueueSize = Integer.parseInt(properties
+				.getProperty("server.workQueueSize", "100").trim());
+		connectionPermits = new Semaphore(Integer.parseInt(properties
+				.getProperty("server.maxConnections", "1000").trim()));
+		overloadedResponse = createRefusal(503, "Service Unavailable",
+				Integer.parseInt(properties
+						.getProperty("server.retryAfter", "1").trim()));
+
+		// rate of zero means that the requests are not limited
+		double clientRate = Double.parseDouble(properties
+				.getProperty("server.clientRateLimit", "0").trim());
+		if (clientRate > 0) {
+			clientLimiter = new RateLimiter<InetAddress>(clientRate,
+					Integer.parseInt(properties
+							.getProperty("server.clientRateBurst", "1")
+							.trim()));
+		}
+		double sessionRate = Double.parseDouble(properties
+				.getProperty("server.sessionRateLimit", "0").trim());
+		if (sessionRate > 0) {
+			sessionLimiter = new RateLimiter<String>(sessionRate,
+					Integer.parseInt(properties
+							.getProperty("server.sessionRateBurst", "1")
+							.trim()));
+		}
 
-		Properties mimeConfig = new Properties();
-		try {
-			mimeConfig.load(Files.newInputStream(
-					Paths.get(properties.getProperty("server.mimeConfig"))));
-			for (Entry<Object, Object> entry : mimeConfig.entrySet()) {
-				mimeTypes.put((String) entry.getKey(),
-						(String) entry.getValue());
-			}
-		} catch (IOException e) {
+		shutdownTimeout = Integer.parseInt(
+				properties.getProperty("server.shutdownTimeout", "10").trim());
+		reloadConfig = Boolean.parseBoolean(
+				properties.getProperty("server.reloadConfig", "true").trim());
+
+		mimeConfig = Paths.get(properties.getProperty("server.mimeConfig"))
+				.toAbsolutePath().normalize();
+		Map<String, String> loadedMimeTypes = loadMimeTypes();
+		if (loadedMimeTypes == null) {
 			System.out.println(
 					"No mime config file found! "
 							+ "The server may not be able to render all requests correctly.");
+		} else {
+			mimeTypes = loadedMimeTypes;
 		}
 
 		sessionTimeout =
 				Integer.parseInt(properties.getProperty("session.timeout"));
+		sessions = new SessionStore(sessionTimeout, Integer.parseInt(properties
+				.getProperty("session.maxSessions", "100000").trim()));
+
+		scriptCache = new ScriptCache(
+				Integer.parseInt(properties
+						.getProperty("server.scriptCacheSize", "64").trim()),
+				Boolean.parseBoolean(properties
+						.getProperty("server.compileScripts", "true").trim()));
+		fileCache = new StaticFileCache(
+				Long.parseLong(properties
+						.getProperty("server.fileCacheSize", "16777216").trim()),
+				Long.parseLong(properties
+						.getProperty("server.fileCacheMaxFileSize", "65536")
+						.trim()));
+
+		compression = new Compression(
+				Boolean.parseBoolean(properties
+						.getProperty("server.compression", "true").trim()),
+				Integer.parseInt(properties
+						.getProperty("server.compressionMinSize", "1024")
+						.trim()),
+				properties.getProperty("server.compressionMimeTypes",
+						"text/html, text/plain"));
+
+		extWorkers = new WorkerRegistry("hr.fer.zemris.java.webserver.workers",
+				getClass().getClassLoader(),
+				Integer.parseInt(properties
+						.getProperty("server.extUnknownCacheSize", "1024")
+						.trim()));
+
+		// metrics are served by a worker bound to this server
+		if (Boolean.parseBoolean(
+				properties.getProperty("server.metrics", "true").trim())) {
+			extWorkers.register("Metrics", new MetricsWorker(metrics));
+		}
+		metrics.addGauge("sessions", "Number of stored user sessions.",
+				() -> sessions.size());
+		metrics.addGauge("worker_queue_depth",
+				"Number of requests waiting for a worker thread.",
+				() -> threadPool instanceof ThreadPoolExecutor
+						? ((ThreadPoolExecutor) threadPool).getQueue().size()
+						: 0);
+		metrics.addGauge("worker_threads_active",
+				"Number of worker threads which are handling a request.",
+				() -> threadPool instanceof ThreadPoolExecutor
+						? ((ThreadPoolExecutor) threadPool).getActiveCount()
+						: 0);
+		metrics.addCounter("script_cache_hits_total",
+				"Number of smart script requests served by a cached script.",
+				() -> scriptCache.getHits());
+		metrics.addCounter("script_cache_misses_total",
+				"Number of smart script requests which loaded the script.",
+				() -> scriptCache.getMisses());
+
+		String accessLogName =
+				properties.getProperty("server.accessLog", "").trim();
+		if (!accessLogName.isEmpty()) {
+			accessLogFile =
+					Paths.get(accessLogName).toAbsolutePath().normalize();
+			accessLogBufferSize = Integer.parseInt(properties
+					.getProperty("server.accessLogBufferSize", "65536").trim());
+			accessLogMaxFileSize = Long.parseLong(properties
+					.getProperty("server.accessLogMaxFileSize", "104857600")
+					.trim());
+			accessLogMaxFiles = Integer.parseInt(properties
+					.getProperty("server.accessLogMaxFiles", "5").trim());
+			metrics.addCounter("access_log_dropped_total",
+					"Number of requests left out of the access log, since "
+							+ "they were served faster than logged.",
+					() -> accessLog == null ? 0 : accessLog.getDropped());
+		}
 
-		Properties workers = new Properties();
-		try {
-			workers.load(Files.newInputStream(
-					Paths.get(properties.getProperty("server.workers"))));
-			for (Entry<Object, Object> entry : workers.entrySet()) {
-				try {
-					Class<?> referenceToClass = this.getClass().getClassLoader()
-							.loadClass((String) entry.getValue());
-					Object newObject = referenceToClass.newInstance();
-					IWebWorker iww = (IWebWorker) newObject;
+		missingFiles = new MissingFileCache(
+				Long.parseLong(properties
+						.getProperty("server.missingFileTtl", "2").trim())
+						* 1000,
+				Integer.parseInt(properties
+						.getProperty("server.missingFileCacheSize", "10000")
+						.trim()));
+
+		workersConfig = Paths.get(properties.getProperty("server.workers"))
+				.toAbsolutePath().normalize();
+		Router<Route> loadedRouter = loadRoutes();
+		if (loadedRouter == null) {
+			System.out.println("Error: missing workers config file!");
+			router.add("/**", new Route(RouteType.FILE, null));
+			router.add("/private/**", new Route(RouteType.PRIVATE, null));
+			router.add("/ext/*/**", new Route(RouteType.EXT_WORKER, null));
+		} else {
+			router = loadedRouter;
+		}
+	}
+
+	/**
+	 * Loads the mime types from their configuration file.
+	 * 
+	 * @return mime types by file extensions, or <code>null</code> if the
+	 *         configuration file cannot be read
+	 */
+	private Map<String, String> loadMimeTypes() {
+		Properties config = new Properties();
+		try (InputStream is = Files.newInputStream(mimeConfig)) {
+			config.load(is);
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+		Map<String, String> loaded = new HashMap<String, String>();
+		for (Entry<Object, Object> entry : config.entrySet()) {
+			loaded.put((String) entry.getKey(), (String) entry.getValue());
+		}
+		return loaded;
+	}
+
+	/**
+	 * Loads the routes of the configured workers from their configuration
+	 * file. Worker classes which were already loaded reuse their existing
+	 * instances, so reloading does not reset them.
+	 * 
+	 * @return router of all the paths, or <code>null</code> if the
+	 *         configuration file cannot be read
+	 */
+	private Router<Route> loadRoutes() {
+		Properties config = new Properties();
+		try (InputStream is = Files.newInputStream(workersConfig)) {
+			config.load(is);
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+
+		// routes which can be overridden by the configured workers
+		Router<Route> loaded = new Router<Route>();
+		loaded.add("/**", new Route(RouteType.FILE, null));
+		loaded.add("/private/**", new Route(RouteType.PRIVATE, null));
+		loaded.add("/ext/*/**", new Route(RouteType.EXT_WORKER, null));
 
-					workersMap.put((String) entry.getKey(), iww);
-				} catch (Exception e) {
-					System.out.println("Cannot load given worker.");
+		Map<String, IWebWorker> workers = new HashMap<String, IWebWorker>();
+		for (Entry<Object, Object> entry : config.entrySet()) {
+			String className = ((String) entry.getValue()).trim();
+			try {
+				IWebWorker iww = workers.get(className);
+				if (iww == null) {
+					iww = configuredWorkers.get(className);
+				}
+				if (iww == null) {
+					Class<?> referenceToClass = this.getClass()
+							.getClassLoader().loadClass(className);
+					Object newObject = referenceToClass.getConstructor()
+							.newInstance();
+					iww = (IWebWorker) newObject;
 				}
+				workers.put(className, iww);
 
+				loaded.add((String) entry.getKey(),
+						new Route(RouteType.WORKER, iww));
+			} catch (Exception e) {
+				System.out.println("Cannot load given worker.");
 			}
-		} catch (IOException e) {
-			System.out.println("Error: missing workers config file!");
 		}
+		configuredWorkers = workers;
+		return loaded;
+	}
 
+	/**
+	 * Reloads the mime types and the workers from their configuration files.
+	 * Requests in progress finish with the old configuration, while the new
+	 * requests use the new one. Configuration which cannot be read is kept
+	 * as it was. Cached scripts and files are kept.
+	 */
+	public synchronized void reload() {
+		Map<String, String> loadedMimeTypes = loadMimeTypes();
+		if (loadedMimeTypes != null) {
+			mimeTypes = loadedMimeTypes;
+		}
+		Router<Route> loadedRouter = loadRoutes();
+		if (loadedRouter != null) {
+			router = loadedRouter;
+		}
+		System.out.println("Configuration reloaded.");
+	}
+
+	/**
+	 * Kinds of route targets, which determine how the requests are handled.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private enum RouteType {
+		/** Request is processed by the worker of the route. */
+		WORKER,
+		/** Request is processed by the worker named in the path. */
+		EXT_WORKER,
+		/** Request is for a file which is hidden from the clients. */
+		PRIVATE,
+		/** Request is for a smart script or a static file. */
+		FILE
+	}
+
+	/**
+	 * Target of a route.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class Route {
+		final RouteType type; // how the request is handled
+		final IWebWorker worker; // worker of the route, or null
+
+		/**
+		 * Creates a new route target.
+		 * 
+		 * @param type   how the request is handled
+		 * @param worker worker which processes the request, or
+		 *               <code>null</code> if the route has no worker
+		 */
+		Route(RouteType type, IWebWorker worker) {
+			this.type = type;
+			this.worker = worker;
+		}
+	}
+
+	/**
+	 * Loads the server configuration from the given file. Exits the
+	 * application if the file cannot be read.
+	 * 
+	 * @param  configFileName path to the .properties configuration file
+	 * @return                loaded configuration
+	 */
+	private static Properties loadConfig(String configFileName) {
+		Properties properties = new Properties();
+		try {
+			properties.load(Files.newInputStream(Paths.get(configFileName)));
+		} catch (IOException e) { // no such file
+			System.out.println("Error: missing config file!");
+			System.exit(-1);
+		}
+		return properties;
+	}
+
+	/**
+	 * Loads the settings of the HTTPS connections from the configuration.
+	 * 
+	 * @param  properties       configuration of the server
+	 * @return                  the loaded settings
+	 * @throws RuntimeException if the key store cannot be loaded, or the
+	 *                          settings are not supported
+	 */
+	private static TlsContext loadTls(Properties properties) {
+		String keyStore = properties.getProperty("server.keyStore", "").trim();
+		try {
+			return new TlsContext(Paths.get(keyStore),
+					properties.getProperty("server.keyStoreType", "PKCS12")
+							.trim(),
+					properties.getProperty("server.keyStorePassword", "")
+							.toCharArray(),
+					properties.getProperty("server.tlsProtocols", ""),
+					properties.getProperty("server.tlsCipherSuites", ""),
+					Integer.parseInt(properties
+							.getProperty("server.tlsSessionCacheSize", "10000")
+							.trim()),
+					Integer.parseInt(properties
+							.getProperty("server.tlsSessionTimeout", "86400")
+							.trim()));
+		} catch (IOException | GeneralSecurityException
+				| IllegalArgumentException e) {
+			throw new RuntimeException(
+					"Cannot set up HTTPS with the key store " + keyStore
+							+ ": " + e.getMessage(),
+					e);
+		}
+	}
 
-		// create the main server thread
-		serverThread = new ServerThread();
+	/**
+	 * Creates the response which is sent to the refused requests. Connection
+	 * is closed after the response. Response to the requests that are refused
+	 * because the server is overloaded is created only once, since it is
+	 * always the same.
+	 * 
+	 * @param  statusCode status code of the response
+	 * @param  statusText status text of the response
+	 * @param  retryAfter number of seconds after which the client may retry
+	 * @return            the encoded response
+	 */
+	private static byte[] createRefusal(int statusCode, String statusText,
+			int retryAfter) {
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(response, null, null, null);
+		rc.setStatusCode(statusCode);
+		rc.setStatusText(statusText);
+		rc.setRetryAfter(retryAfter);
+		rc.setContentLength(0L);
+		rc.setKeepAlive(false);
+		try {
+			rc.finish();
+		} catch (IOException ignorable) {
+			// cannot happen when writing to memory
+		}
+		return response.toByteArray();
+	}
+
+	/**
+	 * Creates the executor which runs the client workers. In the "pool"
+	 * execution mode, a fixed pool of <code>workerThreads</code> threads is
+	 * used, and at most <code>workQueueSize</code> requests can wait for a
+	 * free thread, further requests are rejected. In the "virtual" mode,
+	 * every request gets its own virtual thread, so that slow workers don't
+	 * delay the other requests. If the running JVM has no virtual threads, an
+	 * ordinary thread is started for every request instead.
+	 * 
+	 * @return executor for the client workers
+	 */
+	private ExecutorService createExecutor() {
+		if (!executionMode.equals("virtual")) {
+			// requests which don't fit into the queue are refused
+			return new ThreadPoolExecutor(workerThreads, workerThreads, 0L,
+					TimeUnit.MILLISECONDS,
+					workQueueSize > 0
+							? new ArrayBlockingQueue<Runnable>(workQueueSize)
+							: new SynchronousQueue<Runnable>());
+		}
+		try {
+			// looked up reflectively, since virtual threads are not available
+			// in every supported Java version
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not supported, "
+					+ "using a new thread for every request instead.");
+			return Executors.newCachedThreadPool();
+		}
 	}
 
 	/**
 	 * Starts the server. If the server was previously started, method does
 	 * nothing. Also starts the daemonic garbage collector, which erases expired
-	 * sessions periodically.
+	 * sessions incrementally, and the thread which reloads the configuration
+	 * once its files change.
+	 * <p>
+	 * Listeners are bound before the method returns, so the server accepts
+	 * connections as soon as it is started. If any of them cannot be bound,
+	 * nothing is started.
+	 * 
+	 * @throws IOException if unable to bind the listeners
 	 */
-	protected synchronized void start() {
-		if (serverThread.isAlive()) {
+	protected synchronized void start() throws IOException {
+		if (running) {
 			return;
+		}
+		ServerSocketChannel plainChannel = listen(port);
+		ServerSocketChannel secureChannel = null;
+		if (tls != null) {
+			try {
+				secureChannel = listen(httpsPort);
+			} catch (IOException e) {
+				serverChannels.remove(plainChannel);
+				plainChannel.close();
+				throw e;
+			}
+		}
+		localPort = ((InetSocketAddress) plainChannel.getLocalAddress())
+				.getPort();
+		running = true;
+
+		if (accessLogFile != null) {
+			try {
+				accessLog = new AccessLog(accessLogFile, accessLogBufferSize,
+						accessLogMaxFileSize, accessLogMaxFiles);
+			} catch (IOException e) {
+				System.out.println("Cannot open access log: " + e.getMessage());
+			}
+		}
+		threadPool = createExecutor();
+
+		// create the main server threads, a single one multiplexes both
+		// listeners in the nio mode
+		serverThreads.clear();
+		if (mode.equals("nio")) {
+			serverThreads.add(new NioServerThread(plainChannel, secureChannel));
 		} else {
+			serverThreads.add(new ServerThread(plainChannel, null));
+			if (tls != null) {
+				serverThreads.add(new ServerThread(secureChannel, tls));
+			}
+		}
+		for (Thread serverThread : serverThreads) {
 			serverThread.start();
 		}
 
-		threadPool = Executors.newFixedThreadPool(workerThreads);
+		// start removing expired sessions, and buckets of idle clients
+		sessions.start();
+		if (clientLimiter != null) {
+			clientLimiter.start();
+		}
+		if (sessionLimiter != null) {
+			sessionLimiter.start();
+		}
 
-		// add garbage collector for expired sessions
-		Timer garbageCollector = new Timer(true);
-		garbageCollector.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				Set<String> sessionsToDelete = new HashSet<String>();
-				for (Entry<String, SessionMapEntry> entry : sessions.entrySet()) {
-					if (entry.getValue().validUntil
-							< System.currentTimeMillis()) {
-						sessionsToDelete.add(entry.getKey());
+		if (reloadConfig) {
+			configWatcher = new ConfigWatcher();
+			configWatcher.start();
+		}
+	}
+
+	/**
+	 * Stops the server. New connections are no longer accepted, connections
+	 * which wait for their next request are closed, and the requests in
+	 * progress are given up to <code>shutdownTimeout</code> seconds to
+	 * complete. Connections which are still open after that are closed.
+	 */
+	protected synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + shutdownTimeout * 1000L;
+		running = false;
+
+		if (configWatcher != null) {
+			configWatcher.interrupt();
+			configWatcher = null;
+		}
+
+		// stop accepting new connections
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+		serverChannels.clear();
+
+		// idle connections are closed right away, while the others are closed
+		// once their current request is served
+		for (ClientWorker worker : clientWorkers) {
+			if (worker.idle) {
+				worker.close();
+			}
+		}
+		for (Thread serverThread : serverThreads) {
+			if (serverThread instanceof NioServerThread) {
+				Selector selector = ((NioServerThread) serverThread).selector;
+				if (selector != null) {
+					selector.wakeup();
+				}
+			}
+		}
+
+		try {
+			for (Thread serverThread : serverThreads) {
+				serverThread.join(
+						Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			threadPool.shutdown();
+			threadPool.awaitTermination(
+					Math.max(0, deadline - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// whatever is left did not complete in time
+		for (Thread serverThread : serverThreads) {
+			serverThread.interrupt();
+		}
+		threadPool.shutdownNow();
+		for (ClientWorker worker : clientWorkers) {
+			worker.close();
+		}
+		sessions.stop();
+		if (clientLimiter != null) {
+			clientLimiter.stop();
+		}
+		if (sessionLimiter != null) {
+			sessionLimiter.stop();
+		}
+		if (accessLog != null) {
+			accessLog.close();
+			accessLog = null;
+		}
+	}
+
+	/**
+	 * @return metrics of the server
+	 */
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return port on which the started server listens for plain HTTP, which
+	 *         is chosen by the system if the configured port is 0
+	 */
+	int getPort() {
+		return localPort;
+	}
+
+	/**
+	 * Checks whether the client and the session of a request are allowed to
+	 * send another request, taking a token from their buckets if they are.
+	 * Session is limited only if it exists, so that made up session
+	 * identifiers don't create buckets.
+	 * 
+	 * @param  address address of the client
+	 * @param  sid     session identifier sent by the client, or
+	 *                 <code>null</code> if none was sent
+	 * @return         0 if the request is allowed, or the number of seconds
+	 *                 after which the client may retry
+	 */
+	private int checkRateLimit(InetAddress address, String sid) {
+		if (clientLimiter == null && sessionLimiter == null) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		long wait = 0;
+		if (clientLimiter != null && address != null) {
+			wait = clientLimiter.acquire(address, now);
+		}
+		if (wait == 0 && sessionLimiter != null && sid != null
+				&& sessions.get(sid) != null) {
+			wait = sessionLimiter.acquire(sid, now);
+		}
+		if (wait == 0) {
+			return 0;
+		}
+		metrics.requestRejected(Rejection.RATE_LIMITED);
+		return (int) Math.max(1, (wait + 999_999_999) / 1_000_000_000);
+	}
+
+	/**
+	 * Creates the response to a request which was refused because its client
+	 * or session sent too many requests.
+	 * 
+	 * @param  retryAfter number of seconds after which the client may retry
+	 * @return            the encoded response
+	 */
+	private static byte[] createRateLimited(int retryAfter) {
+		return createRefusal(429, "Too Many Requests", retryAfter);
+	}
+
+	/**
+	 * Takes a permit for a new client connection, if the maximum number of
+	 * connections is not reached.
+	 * 
+	 * @return <code>true</code> if the connection can be served,
+	 *         <code>false</code> if it should be refused
+	 */
+	private boolean connectionOpened() {
+		if (!connectionPermits.tryAcquire()) {
+			return false;
+		}
+		metrics.connectionOpened();
+		return true;
+	}
+
+	/**
+	 * Returns the permit of a closed client connection.
+	 */
+	private void connectionClosed() {
+		metrics.connectionClosed();
+		connectionPermits.release();
+	}
+
+	/**
+	 * Refuses the given connection, because the server is overloaded. The
+	 * refusal is sent without blocking, and the connection is closed
+	 * immediately, so that overload never delays the thread which accepts
+	 * the connections. Secure connections are closed without the refusal,
+	 * since it would first need the whole handshake.
+	 * 
+	 * @param channel connection to refuse
+	 * @param secure  <code>true</code> if the connection is secured by TLS,
+	 *                <code>false</code> otherwise
+	 */
+	private void reject(SocketChannel channel, boolean secure) {
+		try (channel) {
+			if (secure) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(overloadedResponse));
+			channel.shutdownOutput();
+			// discard the request that has already arrived, so that closing
+			// does not reset the connection before the refusal is read
+			channel.read(ByteBuffer.allocate(maxHeaderSize));
+		} catch (IOException ignorable) {
+			// client will not receive the refusal
+		}
+	}
+
+	/**
+	 * Opens the socket which accepts new connections on the given port. The
+	 * socket is closed once the server stops.
+	 * 
+	 * @param  port        port to listen to, or 0 for any free port
+	 * @return             the socket
+	 * @throws IOException if unable to open the socket
+	 */
+	private ServerSocketChannel listen(int port) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel
+					.bind(new InetSocketAddress((InetAddress) null, port));
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		serverChannels.add(serverChannel);
+		return serverChannel;
+	}
+
+	/**
+	 * Main server thread that processes the requests of a single listener.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	protected class ServerThread extends Thread {
+
+		// socket of the listener, opened through a channel, so that files can
+		// be transferred to the accepted sockets directly
+		private ServerSocketChannel serverChannel;
+		private TlsContext tls; // settings of the secure connections, or null
+								// if the connections are not secured
+
+		/**
+		 * Creates the thread of the given listener.
+		 * 
+		 * @param serverChannel socket of the listener
+		 * @param tls           settings of the secure connections, or
+		 *                      <code>null</code> if the listener speaks plain
+		 *                      HTTP
+		 */
+		ServerThread(ServerSocketChannel serverChannel, TlsContext tls) {
+			this.serverChannel = serverChannel;
+			this.tls = tls;
+		}
+
+		@Override
+		public void run() {
+			try (ServerSocketChannel serverChannel = this.serverChannel) {
+				while (running) { // accept new requests
+					SocketChannel client = serverChannel.accept();
+					if (!connectionOpened()) {
+						metrics.requestRejected(Rejection.MAX_CONNECTIONS);
+						reject(client, tls != null);
+						continue;
+					}
+					ClientWorker cw = new ClientWorker(client.socket(),
+							System.nanoTime(), tls);
+					try {
+						threadPool.execute(cw);
+					} catch (RejectedExecutionException e) {
+						connectionClosed();
+						metrics.requestRejected(Rejection.QUEUE_FULL);
+						reject(client, tls != null);
 					}
 				}
-				for (String sid : sessionsToDelete) {
-					sessions.remove(sid);
+			} catch (IOException e) {
+				if (running) { // otherwise, the socket was closed by stop()
+					System.out.println(e.getMessage());
 				}
 			}
-		}, 0, 5 * 60 * 1000); // every 5 minutes
+		}
 	}
 
 	/**
-	 * Stops the server, shutting down its main thread and killing the worker
-	 * thread pool.
+	 * Thread which reloads the configuration of the mime types and the
+	 * workers once any of their files changes.
+	 * 
+	 * @author jankovidakovic
+	 *
 	 */
-	protected synchronized void stop() {
-		serverThread.interrupt();
-		threadPool.shutdown();
+	private class ConfigWatcher extends Thread {
+
+		// how long to wait for the other changes of the same update
+		private static final long SETTLE_TIME = 200;
+
+		/**
+		 * Creates the watcher, as a daemon thread.
+		 */
+		ConfigWatcher() {
+			super("config-watcher");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try (WatchService watcher =
+					FileSystems.getDefault().newWatchService()) {
+				mimeConfig.getParent().register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				if (!workersConfig.getParent()
+						.equals(mimeConfig.getParent())) {
+					workersConfig.getParent().register(watcher,
+							StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+				}
 
+				while (!isInterrupted()) {
+					WatchKey key = watcher.take();
+					boolean changed = isConfigChanged(key);
+
+					// editors often write a file in several steps
+					Thread.sleep(SETTLE_TIME);
+					while ((key = watcher.poll()) != null) {
+						changed |= isConfigChanged(key);
+					}
+					if (changed) {
+						reload();
+					}
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// server was stopped
+			} catch (IOException e) {
+				System.out.println("Cannot watch the configuration: "
+						+ e.getMessage());
+			}
+		}
+
+		/**
+		 * Checks whether the events of the given key concern any of the
+		 * configuration files, and resets the key.
+		 * 
+		 * @param  key key whose events are checked
+		 * @return     <code>true</code> if any configuration file has changed,
+		 *             <code>false</code> otherwise
+		 */
+		private boolean isConfigChanged(WatchKey key) {
+			Path directory = (Path) key.watchable();
+			boolean changed = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					changed = true; // events were lost, so reload anyway
+					continue;
+				}
+				Path file = directory.resolve((Path) event.context());
+				changed |= file.equals(mimeConfig) || file.equals(workersConfig);
+			}
+			key.reset();
+			return changed;
+		}
+	}
+
+	/**
+	 * Main server thread that multiplexes all client connections over a single
+	 * selector. Request headers are read and recognized without blocking, and
+	 * only complete requests are handed over to the worker thread pool, so idle
+	 * or slow clients do not occupy a worker thread while they are sending
+	 * their request. Generated responses are written back by this thread, once
+	 * the socket is ready to accept them.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	protected class NioServerThread extends Thread {
+
+		private volatile Selector selector; // selector for all server
+											// channels
+		// parser of request headers, used only by this thread
+		private HttpRequestParser parser =
+				new HttpRequestParser(maxHeaderSize, maxHeaderLines);
+		// connections whose responses are ready to be written
+		private Queue<NioConnection> completed =
+				new ConcurrentLinkedQueue<NioConnection>();
+		// connections whose workers wait for more of the request body
+		private Queue<NioConnection> reading =
+				new ConcurrentLinkedQueue<NioConnection>();
+		// secure connections which have decrypted bytes that are not yet
+		// read, used only by this thread
+		private Queue<NioConnection> unread = new ArrayDeque<NioConnection>();
+		private ServerSocketChannel plainChannel; // plain HTTP listener
+		// HTTPS listener, or null if the server has none
+		private ServerSocketChannel secureChannel;
+
+		/**
+		 * Creates the thread which multiplexes the given listeners.
+		 * 
+		 * @param plainChannel  socket of the plain HTTP listener
+		 * @param secureChannel socket of the HTTPS listener, or
+		 *                      <code>null</code> if the server has none
+		 */
+		NioServerThread(ServerSocketChannel plainChannel,
+				ServerSocketChannel secureChannel) {
+			this.plainChannel = plainChannel;
+			this.secureChannel = secureChannel;
+		}
+
+		@Override
+		public void run() {
+			try (Selector selector = Selector.open()) {
+				this.selector = selector;
+				register(plainChannel, null);
+				if (secureChannel != null) {
+					register(secureChannel, tls);
+				}
+
+				long lastIdleCheck = System.currentTimeMillis();
+				while (!isInterrupted()) {
+					if (unread.isEmpty()) {
+						selector.select(1000);
+					} else {
+						selector.selectNow();
+					}
+
+
+					// close the connections that were idle for too long
+					long now = System.currentTimeMillis();
+					if (now - lastIdleCheck >= 1000) {
+						closeIdle(now);
+						lastIdleCheck = now;
+					}
+
+					// responses generated or flushed since the last selection,
+					// which may have already been written completely
+					NioConnection connection;
+					while ((connection = completed.poll()) != null) {
+						if (connection.key.isValid()
+								&& connection.output != null) {
+							connection.key.interestOps(SelectionKey.OP_WRITE
+									| (connection.bodyWanted
+											? SelectionKey.OP_READ
+											: 0));
+						}
+					}
+					while ((connection = reading.poll()) != null) {
+						if (connection.key.isValid()) {
+							connection.key.interestOps(
+									connection.key.interestOps()
+											| SelectionKey.OP_READ);
+							if (hasUnread(connection)) {
+								unread.add(connection);
+							}
+						}
+					}
+
+					Iterator<SelectionKey> it =
+							selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						try {
+							if (!key.isValid()) {
+								continue;
+							}
+							if (key.isAcceptable()) {
+								accept((ServerSocketChannel) key.channel(),
+										(TlsContext) key.attachment());
+								continue;
+							}
+							connection = (NioConnection) key.attachment();
+							if (connection.tls != null
+									&& !connection.tls.isEstablished()) {
+								handshake(connection);
+								continue;
+							}
+							// body may be read while the response is written
+							if (key.isReadable()) {
+								if (connection.bodyWanted) {
+									readBody(connection);
+								} else {
+									read(connection);
+								}
+							}
+							if (key.isValid() && key.isWritable()) {
+								write(connection);
+							}
+						} catch (IOException e) {
+							close(key);
+						}
+					}
+
+					// decrypted bytes don't make their connections readable,
+					// so they are read without waiting for the selector
+					for (int i = unread.size(); i > 0; i--) {
+						connection = unread.remove();
+						SelectionKey key = connection.key;
+						try {
+							if (!key.isValid()) {
+								continue;
+							}
+							if (connection.bodyWanted) {
+								readBody(connection);
+							} else if (key
+									.interestOps() == SelectionKey.OP_READ) {
+								read(connection);
+							}
+						} catch (IOException e) {
+							close(key);
+						}
+					}
+
+					// once stopped, wait only for the requests in progress
+					if (!running) {
+						closeIdle(Long.MAX_VALUE);
+						selector.selectNow(); // forget the closed channels
+						if (selector.keys().isEmpty()) {
+							break;
+						}
+					}
+				}
+
+				// connections whose requests did not complete in time
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof NioConnection) {
+						close(key);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+
+		/**
+		 * Registers the listener for accepting the connections.
+		 * 
+		 * @param  serverChannel socket of the listener
+		 * @param  tls           settings of the secure connections, or
+		 *                       <code>null</code> if the listener speaks
+		 *                       plain HTTP
+		 * @throws IOException   if unable to register the listener
+		 */
+		private void register(ServerSocketChannel serverChannel,
+				TlsContext tls) throws IOException {
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT, tls);
+		}
+
+		/**
+		 * Accepts a pending connection and registers it for reading.
+		 * 
+		 * @param  serverChannel channel that has a connection pending
+		 * @param  tls           settings of the secure connections, or
+		 *                       <code>null</code> if the connection is not
+		 *                       secured
+		 * @throws IOException   if unable to accept the connection
+		 */
+		private void accept(ServerSocketChannel serverChannel, TlsContext tls)
+				throws IOException {
+			SocketChannel channel = serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			if (!connectionOpened()) {
+				metrics.requestRejected(Rejection.MAX_CONNECTIONS);
+				reject(channel, tls != null);
+				return;
+			}
+			channel.configureBlocking(false);
+			if (tls != null) { // records are already sent whole
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}
+			NioConnection connection = new NioConnection(channel,
+					parser.getMaxHeaderSize(), tls == null ? null
+							: new TlsChannel(tls.createEngine(), channel,
+									channel));
+			connection.address = ((InetSocketAddress) channel
+					.getRemoteAddress()).getAddress();
+			connection.key =
+					channel.register(selector, SelectionKey.OP_READ, connection);
+		}
+
+		/**
+		 * Closes the connections which are waiting for a request for longer
+		 * than the keep-alive timeout allows.
+		 * 
+		 * @param now current time, in milliseconds
+		 */
+		private void closeIdle(long now) {
+			for (SelectionKey key : selector.keys()) {
+				if (!key.isValid()
+						|| key.interestOps() != SelectionKey.OP_READ) {
+					continue;
+				}
+				NioConnection connection = (NioConnection) key.attachment();
+				if (now - connection.lastActive > keepAliveTimeout * 1000L) {
+					close(key);
+				}
+			}
+		}
+
+		/**
+		 * Reads whatever is available from the client. Once the whole request
+		 * header has arrived, the request is submitted to the thread pool.
+		 * 
+		 * @param  connection  connection that is ready for reading
+		 * @throws IOException if unable to read from the connection
+		 */
+		private void read(NioConnection connection) throws IOException {
+			ByteBuffer input = connection.input;
+			int scanFrom = input.position();
+			if (connection.io.read(input) == -1) {
+				close(connection.key);
+				return;
+			}
+			connection.lastActive = System.currentTimeMillis();
+			processBuffered(connection, scanFrom);
+		}
+
+		/**
+		 * Performs as much of the handshake of a secure connection as
+		 * possible, without blocking. Once the handshake is complete, the
+		 * connection continues with its first request, which may have arrived
+		 * along with the end of the handshake.
+		 * 
+		 * @param  connection  connection that is ready for the handshake
+		 * @throws IOException if the handshake fails
+		 */
+		private void handshake(NioConnection connection) throws IOException {
+			connection.lastActive = System.currentTimeMillis();
+			TlsChannel tls = connection.tls;
+			if (!tls.handshake()) {
+				connection.key.interestOps(tls.isFlushing()
+						? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				return;
+			}
+			connection.key.interestOps(SelectionKey.OP_READ);
+			read(connection);
+		}
+
+		/**
+		 * Checks whether the connection has decrypted bytes which were not
+		 * yet read.
+		 * 
+		 * @param  connection connection to check
+		 * @return            <code>true</code> if the connection has such
+		 *                    bytes, <code>false</code> otherwise
+		 */
+		private boolean hasUnread(NioConnection connection) {
+			return connection.tls != null && connection.tls.hasBuffered();
+		}
+
+		/**
+		 * Reads more of the request body, for the worker which waits for it.
+		 * Bytes which the worker has already taken are dropped first, to make
+		 * room for the new ones.
+		 * 
+		 * @param  connection  connection that is ready for reading
+		 * @throws IOException if unable to read from the connection
+		 */
+		private void readBody(NioConnection connection) throws IOException {
+			synchronized (connection) {
+				ByteBuffer input = connection.input;
+				if (connection.consumed > 0) {
+					input.flip();
+					input.position(connection.consumed);
+					input.compact();
+					connection.consumed = 0;
+				}
+				int read = connection.io.read(input);
+				if (read == 0 && connection.tls != null) {
+					return; // only a part of an encrypted record has arrived
+				}
+				if (read == -1) {
+					connection.eof = true;
+				}
+				connection.bodyWanted = false;
+				connection.lastActive = System.currentTimeMillis();
+				connection.notifyAll();
+			}
+			connection.key.interestOps(
+					connection.key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Checks whether the bytes read so far contain a whole request header.
+		 * If they do, the header is parsed and the request is submitted to the
+		 * thread pool, otherwise the connection waits for more bytes.
+		 * 
+		 * @param connection connection which bytes are checked
+		 * @param scanFrom   index from which the new bytes start
+		 */
+		private void processBuffered(NioConnection connection, int scanFrom) {
+			ByteBuffer input = connection.input;
+			int headerEnd = HttpRequestParser.findHeaderEnd(input.array(),
+					Math.max(0, scanFrom - 3), input.position());
+			if (headerEnd == -1) {
+				if (!input.hasRemaining()) { // header is too large
+					respond(connection, simpleResponse(431,
+							"Request Header Fields Too Large"), false);
+				} else {
+					connection.key.interestOps(SelectionKey.OP_READ);
+					if (hasUnread(connection)) {
+						unread.add(connection);
+					}
+				}
+				return;
+			}
+
+			// stop listening for events until the response is ready
+			connection.key.interestOps(0);
+			connection.consumed = headerEnd;
+			HttpRequest request;
+			long parseStart = System.nanoTime();
+			try {
+				request = parser.parse(input.array(), 0, headerEnd);
+				metrics.getParseLatency().recordSince(parseStart);
+			} catch (HttpParseException e) {
+				respond(connection,
+						simpleResponse(e.getStatusCode(), e.getStatusText()),
+						false);
+				return;
+			}
+			int retryAfter =
+					checkRateLimit(connection.address, request.getSid());
+			if (retryAfter > 0) {
+				respond(connection,
+						new NioResponse(createRateLimited(retryAfter)), false);
+				return;
+			}
+			boolean keepAlive =
+					running && ++connection.served < maxKeepAliveRequests;
+
+			// response can be written as soon as the worker flushes it
+			NioResponse response = new NioResponse(() -> {
+				completed.add(connection);
+				selector.wakeup();
+			});
+			connection.output = response;
+
+			long receivedAt = System.nanoTime();
+			try {
+				threadPool.execute(() -> {
+					metrics.getAcceptLatency().recordSince(receivedAt);
+					ClientWorker worker = new ClientWorker(request,
+							new NioBodySource(connection), response,
+							keepAlive);
+					worker.run();
+					respond(connection, response, worker.keepAlive);
+				});
+			} catch (RejectedExecutionException e) {
+				metrics.requestRejected(Rejection.QUEUE_FULL);
+				respond(connection, new NioResponse(overloadedResponse),
+						false);
+			}
+		}
+
+		/**
+		 * Writes as much of the response as the client can accept, closing the
+		 * connection once the response was written completely.
+		 * 
+		 * @param  connection  connection that is ready for writing
+		 * @throws IOException if unable to write to the connection
+		 */
+		private void write(NioConnection connection) throws IOException {
+			boolean written = connection.output.writeTo(connection.io);
+			connection.lastActive = System.currentTimeMillis();
+			if (connection.tls != null && !connection.tls.flush()) {
+				return; // encrypted bytes still wait for the client
+			}
+			if (!written) {
+				if (connection.output.isWaiting()) {
+					// wait until the worker flushes more of the response
+					connection.key.interestOps(connection.bodyWanted
+							? SelectionKey.OP_READ : 0);
+				}
+				return;
+			}
+			metrics.getWriteLatency().recordSince(connection.respondedAt);
+			connection.output.close();
+			if (!connection.keepAlive || !running) {
+				close(connection.key);
+				return;
+			}
+
+			// drop the served request, and continue with the next one, which
+			// may have already been sent
+			ByteBuffer input = connection.input;
+			input.flip();
+			input.position(connection.consumed);
+			input.compact();
+			connection.output = null;
+			processBuffered(connection, 0);
+		}
+
+		/**
+		 * Schedules the given response to be written to the connection. Can be
+		 * called from any thread.
+		 * 
+		 * @param connection connection to respond to
+		 * @param response   complete response, header included
+		 * @param keepAlive  <code>true</code> if the connection stays open
+		 *                   after the response, <code>false</code> otherwise
+		 */
+		private void respond(NioConnection connection, NioResponse response,
+				boolean keepAlive) {
+			connection.output = response;
+			connection.keepAlive = keepAlive;
+			connection.respondedAt = System.nanoTime();
+			response.complete();
+			completed.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * Creates a simple response which consists only of the header.
+		 * 
+		 * @param  statusCode status code of the response
+		 * @param  statusText status text of the response
+		 * @return            the response
+		 */
+		private NioResponse simpleResponse(int statusCode, String statusText) {
+			NioResponse response = new NioResponse();
+			RequestContext rc = new RequestContext(response, null, null, null);
+			rc.setStatusCode(statusCode);
+			rc.setStatusText(statusText);
+			rc.setKeepAlive(false);
+			try {
+				rc.finish();
+			} catch (IOException ignorable) {
+				// cannot happen when writing to memory
+			}
+			return response;
+		}
+
+		/**
+		 * Closes the channel associated with the given key.
+		 * 
+		 * @param key key of the channel to close
+		 */
+		private void close(SelectionKey key) {
+			if (key.isValid()) {
+				connectionClosed();
+			}
+			key.cancel();
+			NioConnection connection = (NioConnection) key.attachment();
+			if (connection != null) {
+				if (connection.output != null) {
+					connection.output.close();
+				}
+				synchronized (connection) { // worker may wait for the body
+					connection.closed = true;
+					connection.notifyAll();
+				}
+				if (connection.tls != null) {
+					connection.tls.close();
+				}
+			}
+			try {
+				key.channel().close();
+			} catch (IOException ex) {
+				System.out.println(ex.getMessage());
+			}
+		}
+
+		/**
+		 * Stream of the bytes sent by a non-blocking client after the request
+		 * header, read by the worker thread. Bytes which were received along
+		 * with the header are read first. Once they run out, the worker asks
+		 * the selector thread to read more, and waits for them, up to the
+		 * keep-alive timeout.
+		 * 
+		 * @author jankovidakovic
+		 *
+		 */
+		private class NioBodySource extends InputStream {
+
+			private NioConnection connection; // connection of the client
+			private byte[] single = new byte[1]; // for reading a single byte
+
+			/**
+			 * Creates the stream of the given connection.
+			 * 
+			 * @param connection connection of the client
+			 */
+			NioBodySource(NioConnection connection) {
+				this.connection = connection;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				long deadline =
+						System.currentTimeMillis() + keepAliveTimeout * 1000L;
+				synchronized (connection) {
+					ByteBuffer input = connection.input;
+					while (input.position() == connection.consumed) {
+						if (connection.closed) {
+							throw new IOException("Connection was closed.");
+						}
+						if (connection.eof) {
+							return -1;
+						}
+						if (!connection.bodyWanted) {
+							connection.bodyWanted = true;
+							reading.add(connection);
+							selector.wakeup();
+						}
+						long left = deadline - System.currentTimeMillis();
+						if (left <= 0) {
+							throw new SocketTimeoutException("Read timed out");
+						}
+						try {
+							connection.wait(left);
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+					int read = Math.min(len,
+							input.position() - connection.consumed);
+					System.arraycopy(input.array(), connection.consumed, b,
+							off, read);
+					connection.consumed += read;
+					return read;
+				}
+			}
+		}
 	}
 
 	/**
-	 * Main server thread that processes the requests.
+	 * State of a single non-blocking client connection.
 	 * 
 	 * @author jankovidakovic
 	 *
 	 */
-	protected class ServerThread extends Thread {
-		@Override
-		public void run() {
-			try {
+	private static class NioConnection {
+		SocketChannel channel; // channel of the client
+		TlsChannel tls; // encryption of the connection, or null if it is not
+						// secured
+		ByteChannel io; // channel through which the requests are read and
+						// the responses written
+		SelectionKey key; // registration of the channel with the selector
+		InetAddress address; // address of the client
+		volatile boolean bodyWanted; // whether the worker waits for more
+										// bytes of the request body
+		boolean eof; // whether the client has sent everything it will send,
+						// guarded by the connection
+		boolean closed; // whether the connection was closed, guarded by the
+						// connection
+		ByteBuffer input; // bytes of the request read so far
+		NioResponse output; // response that is being written
+		int consumed; // number of input bytes taken by the current request
+		int served; // number of requests received over the connection
+		boolean keepAlive; // whether the connection stays open after the
+							// current response
+		long lastActive = System.currentTimeMillis(); // time of last activity
+		long respondedAt; // time when the response was completed, as given by
+							// System.nanoTime()
 
-				@SuppressWarnings("resource")
-				ServerSocket serverSocket = new ServerSocket();
-				serverSocket
-						.bind(new InetSocketAddress((InetAddress) null,
-								port));
-
-				while (true) { // accept new requests
-					Socket client = serverSocket.accept();
-					ClientWorker cw = new ClientWorker(client);
-					threadPool.submit(cw);
-				}
-			} catch (IOException e) {
-				System.out.println(e.getMessage());
-				return;
-			}
+		/**
+		 * Creates the state of a newly accepted connection.
+		 * 
+		 * @param channel       channel of the client
+		 * @param maxHeaderSize maximum size of the request header, in bytes
+		 * @param tls           encryption of the connection, or
+		 *                      <code>null</code> if it is not secured
+		 */
+		NioConnection(SocketChannel channel, int maxHeaderSize,
+				TlsChannel tls) {
+			this.channel = channel;
+			this.tls = tls;
+			this.io = tls == null ? channel : tls;
+			this.input = ByteBuffer.allocate(maxHeaderSize);
 		}
 	}
 
@@ -214,7 +1623,16 @@ public class SmartHttpServer {
 	private class ClientWorker implements Runnable, IDispatcher {
 
 		private Socket csocket; // client socket
+		private long acceptedAt; // time when the socket was accepted, as given
+									// by System.nanoTime()
+		private TlsContext tlsContext; // settings of the secure connection, or
+										// null if it is not secured
+		private TlsChannel tls; // encryption of the connection, or null
+		private volatile boolean idle; // whether the connection waits for its
+										// next request
 		private InputStream istream; // input stream
+		private InputStream source; // bytes sent after the request header
+		private BodyInputStream body; // body of the current request, or null
 		private OutputStream ostream; // output stream
 		private String version; // http version
 		private String method; // http method
@@ -229,14 +1647,55 @@ public class SmartHttpServer {
 
 		private RequestContext context = null;
 
+		private HttpRequest request; // header of the current request
+		private boolean keepAlive; // whether the connection stays open after
+									// the current response
+		private String acceptedEncoding; // encoding in which the client
+											// accepts compressed content
+		private Handler handler = Handler.NONE; // handler of the request
+		private int status; // status code of the simple response, if sent
+		private long bytesSent; // size of the simple response, if sent
+
+		private HttpRequestParser parser; // parser of request headers
+		private byte[] input; // bytes received from the client
+		private int inputStart; // index of the first unprocessed input byte
+		private int inputEnd; // index after the last received input byte
+
 		/**
 		 * Creates a new client worker and binds it to the given socket
 		 * 
-		 * @param csocket socket that the client sent the request from
+		 * @param csocket    socket that the client sent the request from
+		 * @param acceptedAt time when the socket was accepted, as given by
+		 *                   {@link System#nanoTime()}
+		 * @param tlsContext settings of the secure connection, or
+		 *                   <code>null</code> if the connection is not
+		 *                   secured
 		 */
-		private ClientWorker(Socket csocket) {
+		private ClientWorker(Socket csocket, long acceptedAt,
+				TlsContext tlsContext) {
 			super();
 			this.csocket = csocket;
+			this.acceptedAt = acceptedAt;
+			this.tlsContext = tlsContext;
+		}
+
+		/**
+		 * Creates a new client worker for the request whose header was already
+		 * read, which writes the response to the given stream.
+		 * 
+		 * @param request   header of the request
+		 * @param source    bytes sent after the request header
+		 * @param ostream   stream to which the response is written
+		 * @param keepAlive <code>true</code> if the connection may stay open
+		 *                  after the response, <code>false</code> otherwise
+		 */
+		private ClientWorker(HttpRequest request, InputStream source,
+				OutputStream ostream, boolean keepAlive) {
+			super();
+			this.request = request;
+			this.source = source;
+			this.ostream = ostream;
+			this.keepAlive = keepAlive;
 		}
 
 		@Override
@@ -256,73 +1715,79 @@ public class SmartHttpServer {
 		private void internalDispatchRequest(String urlPath, boolean directCall)
 				throws Exception {
 
-			// check if access is allowed
-			if (urlPath.startsWith("/private") && directCall) {
-				// files from private map are now allowed to be accessed
-				// by requests that were recieved from outside the server
-				sendSimpleResponse(404, "Not found");
-				return;
-			}
-
-			// create full path that was requested, relative to document
-			// root
-			Path fullPath = Paths.get(documentRoot.toString() + urlPath);
-			// check if requested path is allowed for access
-			if (!(fullPath.toAbsolutePath()
-					.startsWith(documentRoot.toAbsolutePath()))) {
+			// the same normalized path is routed and resolved, so dot
+			// segments cannot lead around the routes
+			urlPath = Router.normalize(urlPath);
+			if (urlPath == null) {
 				sendSimpleResponse(403, "Forbidden");
 				return;
 			}
 
-			// check if requested path is mapped to some IWebWorker
-
-			if (workersMap.get(urlPath.toString()) != null) {
-				if (context == null) {
-					context = new RequestContext(ostream, params, tempParams,
-							permParams, outputCookies, this, SID);
+			Route route = router.route(urlPath);
+			switch (route == null ? RouteType.FILE : route.type) {
+			case WORKER:
+				if (directCall) {
+					handler = Handler.WORKER;
 				}
-				workersMap.get(urlPath.toString()).processRequest(context);
+				route.worker.processRequest(getContext());
 				ostream.flush();
 				return;
-			}
 
-			// check if requested path is trying to access the worker directly
-			if (urlPath.startsWith("/ext")) {
-				// get worker name
-				String workerName = urlPath.split("/")[2];
-				// load worker class
-				try {
-					Class<?> referenceToClass = this.getClass().getClassLoader()
-							.loadClass("hr.fer.zemris.java.webserver.workers."
-									+ workerName);
-					Object newObject = referenceToClass.newInstance();
-					IWebWorker iww = (IWebWorker) newObject;
-
-					if (context == null) {
-						context =
-								new RequestContext(ostream, params, tempParams,
-										permParams, outputCookies, this, SID);
-					}
-					iww.processRequest(context);
-					ostream.flush();
+			case EXT_WORKER:
+				// worker name is the segment after /ext/
+				int nameEnd = urlPath.indexOf('/', 5);
+				IWebWorker iww = extWorkers.get(urlPath.substring(5,
+						nameEnd == -1 ? urlPath.length() : nameEnd));
+				if (iww == null) {
+					sendSimpleResponse(404, "Not found");
 					return;
+				}
+				if (directCall) {
+					handler = Handler.EXT_WORKER;
+				}
+				iww.processRequest(getContext());
+				ostream.flush();
+				return;
 
-				} catch (Exception e) {
-					System.out.println("Cannot load given worker.");
+			case PRIVATE:
+				// files from private map are now allowed to be accessed
+				// by requests that were recieved from outside the server
+				if (directCall) {
+					sendSimpleResponse(404, "Not found");
+					return;
 				}
+				break;
+
+			case FILE:
+				break;
+			}
+
+			// create full path that was requested, relative to document
+			// root, and check if it is allowed for access
+			Path fullPath;
+			try {
+				fullPath = documentRoot.resolve(urlPath.substring(1))
+						.normalize();
+			} catch (InvalidPathException e) {
+				sendSimpleResponse(404, "Not found");
+				return;
+			}
+			if (!fullPath.startsWith(documentRoot)) {
+				sendSimpleResponse(403, "Forbidden");
+				return;
 			}
 
-			// check if requested path exists, is file and is readable
-			if (!Files.exists(fullPath) || !Files.isRegularFile(fullPath)
-					|| !Files.isReadable(fullPath)) {
+			// files that were just found missing are not looked up again
+			if (missingFiles.isMissing(fullPath)) {
 				sendSimpleResponse(404, "Not found");
 				return;
 			}
 
 			// extract file extension
-			String[] dotSeparation = fullPath.toString().split("\\.");
-			String extension = dotSeparation.length == 1 ? "" // no extension
-					: dotSeparation[dotSeparation.length - 1];
+			int dot = urlPath.lastIndexOf('.');
+			String extension = dot == -1 || dot < urlPath.lastIndexOf('/')
+					? "" // no extension
+					: urlPath.substring(dot + 1);
 
 			// get mime type for given extension
 			String mimeType = mimeTypes.get(extension);
@@ -330,121 +1795,367 @@ public class SmartHttpServer {
 				mimeType = "application/octet-stream";
 			}
 
-			// check if smart script was requested
-			if (extension.equals("smscr")) {
-				String scriptContent = new String(
-						new BufferedInputStream(Files.newInputStream(fullPath))
-								.readAllBytes());
-
-				SmartScriptParser parser = new SmartScriptParser(scriptContent);
-
-				// something's not right
-				if (context == null) {
-					context = new RequestContext(ostream, params, tempParams,
-							permParams, outputCookies, this, SID);
+			// load the script or the file, which is the only time the file
+			// system is asked about the file
+			Template script = null;
+			CachedFile file = null;
+			try {
+				if (extension.equals("smscr")) {
+					script = scriptCache.get(fullPath);
+				} else {
+					file = fileCache.get(fullPath);
 				}
+			} catch (NoSuchFileException e) {
+				missingFiles.markMissing(fullPath);
+				sendSimpleResponse(404, "Not found");
+				return;
+			} catch (AccessDeniedException e) {
+				sendSimpleResponse(404, "Not found");
+				return;
+			}
 
-				SmartScriptEngine engine = new SmartScriptEngine(
-						parser.getDocumentNode(), context);
+			// check if smart script was requested
+			if (script != null) {
+				if (directCall) {
+					handler = Handler.SCRIPT;
+				}
+				RequestContext scriptContext = getContext();
 
-				engine.execute();
+				long scriptStart = System.nanoTime();
+				script.execute(scriptContext);
+				metrics.getScriptLatency().recordSince(scriptStart);
 				ostream.flush();
 				return;
 			}
 
-			// finally, create request context
-			if (context == null) {
-				context = new RequestContext(ostream, params, tempParams,
-						permParams, outputCookies, this, SID);
+			// files can only be read
+			if (directCall && !method.equals("GET")) {
+				sendSimpleResponse(405, "Method not allowed");
+				return;
 			}
 
+			// finally, create request context
+			if (directCall) {
+				handler = Handler.STATIC;
+			}
+			RequestContext context = getContext();
 			context.setMimeType(mimeType);
+			context.setAcceptRanges(true);
+
+			// ranges are requested of the file as it is, so the content of
+			// a partial response is never compressed
+			List<ByteRange> ranges = getRequestedRanges(file);
+
+			// send the compressed content instead, if it is worth it
+			byte[] content = file.getContent();
+			String eTag = file.getETag();
+			if (ranges == null && acceptedEncoding != null && content != null
+					&& content.length >= compression.getMinSize()
+					&& compression.isCompressible(mimeType)) {
+				byte[] compressed = file.getContent(acceptedEncoding);
+				if (compressed.length < content.length) {
+					content = compressed;
+					eTag = file.getETag(acceptedEncoding);
+					context.setContentEncoding(acceptedEncoding);
+				}
+			}
+			context.setETag(eTag);
+			context.setLastModified(file.getLastModified());
+
+			// client may already have the current version of the file
+			if (isNotModified(eTag, file.getLastModified())) {
+				context.setStatusCode(304);
+				context.setStatusText("Not Modified");
+				return;
+			}
+
+			if (ranges != null) {
+				writeRanges(context, fullPath, file, content, mimeType, ranges);
+				ostream.flush();
+				return;
+			}
+
 			context.setStatusCode(200);
 			context.setStatusText("OK");
-			context.setContentLength(fullPath.toFile().length());
-			context.write(
-					new BufferedInputStream(Files.newInputStream(fullPath))
-							.readAllBytes());
+			if (content != null) {
+				context.setContentLength((long) content.length);
+				context.write(content);
+			} else {
+				context.setContentLength(file.getSize());
+				context.writeFile(fullPath, 0, file.getSize());
+			}
 
 			ostream.flush();
 			// done ?
 		}
 
-		@Override
-		public void run() {
-			try {
-				// obrain socket streams
-				istream = new BufferedInputStream(csocket.getInputStream());
-				ostream = new BufferedOutputStream(csocket.getOutputStream());
-
-				// read request
-				List<String> request = readRequest();
-
-				// check for validity
-				if (request.isEmpty()) {
-					sendSimpleResponse(400, "Bad request");
-					return;
-				}
-
-				// set default host
-				host = domainName;
-
-				// check if specific host was set in the request
-				for (String requestLine : request) {
-					if (requestLine.startsWith("Host: ")) {
-						host = requestLine.split(": ")[1].split(":")[0];
-						// could cause arrayindexexception if not careful
+		/**
+		 * Retrieves the ranges of the file requested by the Range header. If
+		 * the request has an If-Range header, the ranges are requested only
+		 * if the file did not change since the client last got it, and the
+		 * whole file is sent otherwise.
+		 * 
+		 * @param  file the requested file
+		 * @return      requested ranges, empty if none of them lies within
+		 *              the file, or <code>null</code> if the whole file
+		 *              should be sent
+		 */
+		private List<ByteRange> getRequestedRanges(CachedFile file) {
+			String range = request.getHeader("Range");
+			if (range == null) {
+				return null;
+			}
+			String ifRange = request.getHeader("If-Range");
+			if (ifRange != null) {
+				ifRange = ifRange.trim();
+				if (ifRange.startsWith("\"")) { // weak tags never match
+					if (!ifRange.equals(file.getETag())) {
+						return null;
+					}
+				} else {
+					try {
+						long date = ZonedDateTime
+								.parse(ifRange,
+										DateTimeFormatter.RFC_1123_DATE_TIME)
+								.toInstant().toEpochMilli();
+						if (file.getLastModified() / 1000 != date / 1000) {
+							return null;
+						}
+					} catch (DateTimeParseException e) {
+						return null;
 					}
 				}
+			}
+			return ByteRange.parse(range, file.getSize());
+		}
 
-				// check if session already exists, or create a new one if it
-				// doesnt
-				checkSession(request);
+		/**
+		 * Writes the partial response with the given ranges of the file. A
+		 * single range is sent as is, while several ranges are sent as parts
+		 * of a multipart response. Ranges are written from the cached content
+		 * of the file, or transferred from the file itself if it is not
+		 * cached, so the file is never loaded whole.
+		 * 
+		 * @param  context     context of the response
+		 * @param  path        path of the file
+		 * @param  file        the requested file
+		 * @param  content     cached content of the file, or <code>null</code>
+		 *                     if it is not cached
+		 * @param  mimeType    mime type of the file
+		 * @param  ranges      requested ranges, ordered and disjoint
+		 * @throws IOException if unable to read the file or write the response
+		 */
+		private void writeRanges(RequestContext context, Path path,
+				CachedFile file, byte[] content, String mimeType,
+				List<ByteRange> ranges) throws IOException {
+			long size = file.getSize();
+			if (ranges.isEmpty()) {
+				context.setStatusCode(416);
+				context.setStatusText("Range Not Satisfiable");
+				context.setContentRange("bytes */" + size);
+				context.setContentLength(0L);
+				return;
+			}
+			context.setStatusCode(206);
+			context.setStatusText("Partial Content");
+			if (ranges.size() == 1) {
+				ByteRange range = ranges.get(0);
+				context.setContentRange(range.toContentRange(size));
+				context.setContentLength(range.getLength());
+				writeRange(context, path, content, range);
+				return;
+			}
 
-				// load session parameters
-				permParams = sessions.get(SID).map;
+			// every part has its own header, and the length of the whole
+			// content is known before it is written
+			String boundary = Long.toHexString(
+					ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+			byte[][] partHeaders = new byte[ranges.size()][];
+			long length = 0;
+			for (int i = 0; i < partHeaders.length; i++) {
+				ByteRange range = ranges.get(i);
+				partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: "
+						+ mimeType + "\r\nContent-Range: "
+						+ range.toContentRange(size) + "\r\n\r\n")
+								.getBytes(StandardCharsets.ISO_8859_1);
+				length += partHeaders[i].length + range.getLength();
+			}
+			byte[] end = ("\r\n--" + boundary + "--\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+
+			context.setMimeType("multipart/byteranges; boundary=" + boundary);
+			context.setContentLength(length + end.length);
+			for (int i = 0; i < partHeaders.length; i++) {
+				context.write(partHeaders[i]);
+				writeRange(context, path, content, ranges.get(i));
+			}
+			context.write(end);
+		}
 
-				// get first line, and extract fields
-				String[] firstLine = request.get(0).split(" ");
+		/**
+		 * Writes a single range of the file.
+		 * 
+		 * @param  context     context of the response
+		 * @param  path        path of the file
+		 * @param  content     cached content of the file, or <code>null</code>
+		 *                     if it is not cached
+		 * @param  range       range to write
+		 * @throws IOException if unable to read the file or write the response
+		 */
+		private void writeRange(RequestContext context, Path path,
+				byte[] content, ByteRange range) throws IOException {
+			if (content != null) {
+				context.write(content, (int) range.getStart(),
+						(int) range.getLength());
+			} else {
+				context.writeFile(path, range.getStart(), range.getLength());
+			}
+		}
 
-				// check number of fields
-				if (firstLine.length != 3) {
-					sendSimpleResponse(400, "Bad request");
-					return;
+		/**
+		 * Checks whether the client's copy of the file is still current, as
+		 * stated by the conditional headers of the request. If-None-Match
+		 * takes precedence over If-Modified-Since.
+		 * 
+		 * @param  eTag         entity tag of the current version
+		 * @param  lastModified modification time of the current version, in
+		 *                      milliseconds
+		 * @return              <code>true</code> if the client's copy is
+		 *                      current, <code>false</code> otherwise
+		 */
+		private boolean isNotModified(String eTag, long lastModified) {
+			String ifNoneMatch = request.getHeader("If-None-Match");
+			if (ifNoneMatch != null) {
+				for (String tag : ifNoneMatch.split(",")) {
+					tag = tag.trim();
+					if (tag.startsWith("W/")) { // weak comparison is allowed
+						tag = tag.substring(2);
+					}
+					if (tag.equals("*") || tag.equals(eTag)) {
+						return true;
+					}
 				}
+				return false;
+			}
 
-				// extract method
-				method = firstLine[0].toUpperCase();
-				if (!method.equals("GET")) { // only GET is supported
-					sendSimpleResponse(405, "Method not allowed");
-					return;
+			String ifModifiedSince = request.getHeader("If-Modified-Since");
+			if (ifModifiedSince != null) {
+				try {
+					long since = ZonedDateTime
+							.parse(ifModifiedSince,
+									DateTimeFormatter.RFC_1123_DATE_TIME)
+							.toInstant().toEpochMilli();
+					// dates in the header have a precision of one second
+					return lastModified / 1000 <= since / 1000;
+				} catch (DateTimeParseException ignorable) {
+					// invalid dates are ignored
 				}
+			}
+			return false;
+		}
+
+		/**
+		 * Retrieves the context of the current request, creating it if it
+		 * doesn't exist yet. Content written to the context is buffered, so
+		 * that the content length can be sent and the connection can be kept
+		 * open, and compressed if the client accepts it. Content which is too
+		 * large to be buffered is streamed in chunks to HTTP/1.1 clients.
+		 * 
+		 * @return context of the current request
+		 */
+		private RequestContext getContext() {
+			if (context == null) {
+				context = new RequestContext(ostream, params, tempParams,
+						permParams, outputCookies, this, SID);
+				context.setBuffered(true);
+				context.setBufferLimit(responseBufferSize);
+				context.setChunkingAllowed(version.equals("HTTP/1.1"));
+				context.setKeepAlive(keepAlive);
+				context.setCompression(compression, acceptedEncoding);
+				context.setInputStream(body);
+			}
+			return context;
+		}
 
-				// check http version
-				version = firstLine[2].toUpperCase();
-				if (!(version.equals("HTTP/1.1")
-						|| version.equals("HTTP/1.0"))) {
-					sendSimpleResponse(505, "HTTP Version Not Supported");
+		@Override
+		public void run() {
+			try {
+				if (csocket == null) { // request was already read
+					serveRequest();
 					return;
 				}
-
-				// extract requested path
-				String[] requestedPath = firstLine[1].split("\\?");
-				String path = requestedPath[0];
-
-				// parse parameters if any were given
-				if (requestedPath.length > 1) {
-					parseParameters(requestedPath[1]);
+				metrics.getAcceptLatency().recordSince(acceptedAt);
+				clientWorkers.add(this);
+
+				// obrain socket streams, reading through the stream of the
+				// socket, since only that one times out
+				istream = csocket.getInputStream();
+				if (tlsContext == null) {
+					ostream = new ChannelOutputStream(csocket.getChannel());
+				} else {
+					// records are already sent whole
+					csocket.setTcpNoDelay(true);
+					tls = new TlsChannel(tlsContext.createEngine(),
+							Channels.newChannel(istream),
+							csocket.getChannel());
+					istream = Channels.newInputStream(tls);
+					ostream = new ChannelOutputStream(tls);
+				}
+				csocket.setSoTimeout(keepAliveTimeout * 1000);
+				parser = new HttpRequestParser(maxHeaderSize, maxHeaderLines);
+				input = new byte[parser.getMaxHeaderSize()];
+				source = new ConnectionInputStream();
+
+				// serve requests until the connection should be closed, in
+				// the order in which they were sent
+				for (int served = 1;; served++) {
+					try {
+						request = readRequest();
+					} catch (SocketTimeoutException e) { // idle for too long
+						return;
+					} catch (AsynchronousCloseException e) { // server stopped
+						return;
+					} catch (SSLException e) { // failed handshake
+						return;
+					} catch (HttpParseException e) {
+						keepAlive = false;
+						sendSimpleResponse(e.getStatusCode(),
+								e.getStatusText());
+						return;
+					}
+					if (request == null) { // client closed connection
+						return;
+					}
+					keepAlive = running && served < maxKeepAliveRequests;
+
+					int retryAfter = checkRateLimit(csocket.getInetAddress(),
+							request.getSid());
+					if (retryAfter > 0) {
+						ostream.write(createRateLimited(retryAfter));
+						ostream.flush();
+						return;
+					}
+					serveRequest();
+					if (!keepAlive || !running) {
+						return;
+					}
+					resetRequestState();
 				}
-
-				// delegate request handling to the designated dispatcher
-				internalDispatchRequest(path, true);
 
 			} catch (Exception e) {
 				System.out.println(e.getMessage());
 			} finally {
 				try {
-					csocket.close();
+					if (csocket != null) {
+						clientWorkers.remove(this);
+						if (tls != null) {
+							tls.close();
+						}
+						csocket.close();
+						connectionClosed();
+					} else {
+						ostream.flush();
+					}
 				} catch (IOException ex) {
 					System.out.println(ex.getMessage());
 				}
@@ -454,83 +2165,231 @@ public class SmartHttpServer {
 		}
 
 		/**
-		 * Checks whether request header defines a cookie in which a session
-		 * identifier is set. If that is the case, it tries to load the session
-		 * that goes by the given SID, or creates a new session if unable to.
+		 * Processes the current request, writes the response, and logs the
+		 * request once it is served.
 		 * 
-		 * @param headerLines lines of the request header
-		 */
-		private synchronized void checkSession(List<String> headerLines) {
-			String sidCandidate = null;
-			for (String line : headerLines) {
-				if (line.startsWith("Cookie:")) {
-					String cookiesContent = line.substring(8);
-					String[] cookies = cookiesContent.split(";");
-					for (int i = 0; i < cookies.length; i++) {
-						String[] cookie = cookies[i].split("=");
-						if (cookie[0].equals("sid")) { // candidate
-							sidCandidate = cookie[1].substring(1,
-									cookie[1].length() - 1);
-						}
-					}
+		 * @throws Exception if anything goes wrong while processing
+		 */
+		private void serveRequest() throws Exception {
+			long start = System.nanoTime();
+			try {
+				processRequest();
+			} finally {
+				// unread body would be taken for the next request
+				if (body != null && !body.isFinished()) {
+					keepAlive = false;
+				}
+				AccessLog log = accessLog;
+				if (log != null) {
+					log.log(request.getMethod(), request.getPath(),
+							context != null ? context.getStatusCode() : status,
+							context != null ? context.getBytesSent() : bytesSent,
+							System.nanoTime() - start, SID);
 				}
-			}
-			SessionMapEntry sessionCandidate = sessions.get(sidCandidate);
-			if (sessionCandidate == null) {
-				SID = createNewSession();
-			} else if (sessionCandidate.host.equals(host) == false) {
-				createNewSession();
-			} else if (sessionCandidate.validUntil
-					< System.currentTimeMillis()) {
-				SID = createNewSession();
-			} else { // finally, a valid session object
-				sessionCandidate.validUntil =
-						System.currentTimeMillis() * 1000 + sessionTimeout;
-				SID = sessionCandidate.sid;
 			}
 		}
 
 		/**
-		 * Creates a new session
+		 * Processes the current request and writes the response.
 		 * 
-		 * @return
+		 * @throws Exception if anything goes wrong while processing
 		 */
-		private String createNewSession() {
-			// create session object
-			SessionMapEntry session = new SessionMapEntry();
+		private void processRequest() throws Exception {
+			// use the default host, unless a specific one was requested
+			host = request.getHost() == null ? domainName : request.getHost();
+
+			// check if session already exists, or create a new one if it
+			// doesnt, and load its parameters
+			checkSession();
+
+			// check http version
+			version = request.getVersion().toUpperCase();
+			if (!(version.equals("HTTP/1.1")
+					|| version.equals("HTTP/1.0"))) {
+				keepAlive = false;
+				sendSimpleResponse(505, "HTTP Version Not Supported");
+				return;
+			}
 
-			sessionRandom.setSeed(System.currentTimeMillis());
+			// HTTP/1.1 connections are persistent unless the client says
+			// otherwise, while HTTP/1.0 connections need to be asked for
+			String connection = request.getHeader("Connection");
+			if (version.equals("HTTP/1.1")) {
+				keepAlive &= !"close".equalsIgnoreCase(connection);
+			} else {
+				keepAlive &= "keep-alive".equalsIgnoreCase(connection);
+			}
 
-			session.sid = "";
-			for (int i = 0; i < 20; i++) {
-				session.sid +=
-						Character.toString(sessionRandom.nextInt(26) + 65);
+			// find out where the body ends, so that it can be read later
+			if (!openBody()) {
+				return;
 			}
-			session.host = host;
-			session.map = new ConcurrentHashMap<String, String>();
-			session.validUntil =
-					System.currentTimeMillis() * 1000 + sessionTimeout;
 
-			// store session object into sessions map
-			sessions.put(session.sid, session);
+			// extract method
+			method = request.getMethod().toUpperCase();
+			if (!method.equals("GET") && !method.equals("POST")
+					&& !method.equals("PUT")) {
+				keepAlive &= body == null;
+				sendSimpleResponse(405, "Method not allowed");
+				return;
+			}
 
-			// add session cookie
-			outputCookies
-					.add(new RCCookie("sid", session.sid, null, host, "/"));
+			// parameters were already parsed from the query, and those of a
+			// submitted form are added to them
+			params = request.getParameters();
+			String contentType = request.getHeader("Content-Type");
+			if (body != null && contentType != null && contentType
+					.regionMatches(true, 0, FORM_CONTENT_TYPE, 0,
+							FORM_CONTENT_TYPE.length())) {
+				try {
+					FormDecoder.decode(body, params);
+				} catch (HttpParseException e) {
+					keepAlive = false;
+					sendSimpleResponse(e.getStatusCode(), e.getStatusText());
+					return;
+				}
+			}
+			acceptedEncoding =
+					compression.negotiate(request.getHeader("Accept-Encoding"));
+
+			// delegate request handling to the designated dispatcher
+			long dispatchStart = System.nanoTime();
+			internalDispatchRequest(request.getPath(), true);
+			metrics.requestHandled(handler, System.nanoTime() - dispatchStart);
+
+			// skip what the worker did not read of the body, so that the
+			// next request can be read
+			if (body != null && !body.discard()) {
+				keepAlive = false;
+			}
 
-			return session.sid;
+			// complete the response, which non-blocking connections write
+			// only once it is complete
+			long writeStart = System.nanoTime();
+			if (context != null) {
+				context.finish();
+				keepAlive &= context.isKeepAlive();
+			}
+			if (csocket != null) {
+				ostream.flush();
+				metrics.getWriteLatency().recordSince(writeStart);
+			}
 		}
 
 		/**
-		 * Parses URL parameters and stores them into the map.
+		 * Prepares the stream of the request body, as framed by the
+		 * Content-Length or the Transfer-Encoding header. Requests whose body
+		 * is too large, or cannot be framed, are refused, and the connection
+		 * is closed after the response, since the body cannot be skipped.
 		 * 
-		 * @param parameters String consisting of URL parameters
+		 * @return             <code>true</code> if the request can be
+		 *                     processed, <code>false</code> if it was refused
+		 * @throws IOException if unable to send the refusal
 		 */
-		private void parseParameters(String parameters) {
-			Arrays.stream(parameters.split("&")).forEach(param -> {
-				String[] paramEntry = param.split("=");
-				params.put(paramEntry[0], paramEntry[1]);
-			});
+		private boolean openBody() throws IOException {
+			String transferEncoding = request.getHeader("Transfer-Encoding");
+			String contentLength = request.getHeader("Content-Length");
+			long length;
+			if (transferEncoding != null) {
+				if (!transferEncoding.equalsIgnoreCase("chunked")) {
+					keepAlive = false;
+					sendSimpleResponse(501, "Not Implemented");
+					return false;
+				}
+				if (contentLength != null) { // ambiguous length
+					keepAlive = false;
+					sendSimpleResponse(400, "Bad request");
+					return false;
+				}
+				length = -1;
+			} else if (contentLength != null) {
+				try {
+					length = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException e) {
+					length = -1;
+				}
+				if (length < 0) {
+					keepAlive = false;
+					sendSimpleResponse(400, "Bad request");
+					return false;
+				}
+				if (length == 0) {
+					return true;
+				}
+			} else {
+				return true; // no body
+			}
+
+			if (length > maxBodySize) {
+				keepAlive = false;
+				sendSimpleResponse(413, "Payload Too Large");
+				return false;
+			}
+			// client which waits for permission gets it once the body is read
+			boolean expectContinue = version.equals("HTTP/1.1")
+					&& "100-continue"
+							.equalsIgnoreCase(request.getHeader("Expect"));
+			body = new BodyInputStream(source, length, maxBodySize,
+					expectContinue ? ostream : null);
+			return true;
+		}
+
+		/**
+		 * Clears everything that was remembered about the previous request
+		 * received over the connection.
+		 */
+		private void resetRequestState() {
+			request = null;
+			version = null;
+			method = null;
+			host = null;
+			params = new HashMap<String, String>();
+			tempParams = new HashMap<String, String>();
+			permParams = new HashMap<String, String>();
+			outputCookies = new ArrayList<RequestContext.RCCookie>();
+			SID = null;
+			acceptedEncoding = null;
+			body = null;
+			handler = Handler.NONE;
+			status = 0;
+			bytesSent = 0;
+			context = null;
+		}
+
+		/**
+		 * Checks whether request header defines a cookie in which a session
+		 * identifier is set. If that is the case, it tries to load the session
+		 * that goes by the given SID, or creates a new session if unable to.
+		 */
+		private void checkSession() {
+			Session session = sessions.get(request.getSid());
+			if (session == null || !session.getHost().equals(host)) {
+				session = createNewSession();
+			} else { // finally, a valid session object
+				sessions.touch(session);
+			}
+			SID = session.getSid();
+			permParams = session.getMap();
+		}
+
+		/**
+		 * Creates a new session, and adds the cookie which identifies it to
+		 * the response.
+		 * 
+		 * @return the new session
+		 */
+		private Session createNewSession() {
+			// store session object into sessions map, under an unused sid
+			Session session;
+			do {
+				session = sessions.create(sidGenerator.nextId(), host);
+			} while (session == null);
+
+			// add session cookie
+			outputCookies.add(
+					new RCCookie("sid", session.getSid(), null, host, "/"));
+
+			return session;
 		}
 
 		/**
@@ -547,107 +2406,137 @@ public class SmartHttpServer {
 			RequestContext rc = new RequestContext(ostream, null, null, null);
 			rc.setStatusCode(statusCode);
 			rc.setStatusText(statusText);
-			rc.write("");
+			rc.setKeepAlive(keepAlive);
+			rc.finish();
+			status = statusCode;
+			bytesSent = rc.getBytesSent();
 
 			ostream.flush();
 		}
 
 		/**
-		 * Reads the HTTP request into an array of bytes
+		 * Closes the connection of the worker, which makes the worker stop
+		 * once it tries to use the connection.
+		 */
+		private void close() {
+			try {
+				csocket.close();
+			} catch (IOException ignorable) {
+				// connection is closed anyway
+			}
+		}
+
+		/**
+		 * Reads and parses the header of the next request. Bytes received
+		 * after the header are kept, since they belong to the requests which
+		 * the client has already sent after this one.
 		 * 
-		 * @return             array of bytes representing the request
-		 * @throws IOException if unable to read request
+		 * @return                    the parsed request, or <code>null</code>
+		 *                            if the client closed the connection
+		 * @throws IOException        if unable to read the request
+		 * @throws HttpParseException if the header is malformed or too large
 		 */
-		private byte[] readRequestBytes() throws IOException {
+		private HttpRequest readRequest() throws IOException {
+			int scanFrom = inputStart;
+			while (true) {
+				int headerEnd = HttpRequestParser.findHeaderEnd(input,
+						Math.max(inputStart, scanFrom - 3), inputEnd);
+				if (headerEnd != -1) {
+					long parseStart = System.nanoTime();
+					HttpRequest request =
+							parser.parse(input, inputStart, headerEnd);
+					metrics.getParseLatency().recordSince(parseStart);
+					inputStart = headerEnd;
+					return request;
+				}
+
+				// move the unprocessed bytes to the start of the buffer
+				if (inputStart > 0) {
+					System.arraycopy(input, inputStart, input, 0,
+							inputEnd - inputStart);
+					inputEnd -= inputStart;
+					inputStart = 0;
+				}
+				if (inputEnd == input.length) {
+					throw new HttpParseException(431,
+							"Request Header Fields Too Large");
+				}
+
+				scanFrom = inputEnd;
 
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			int state = 0;
-			l: while (true) {
-				int b = istream.read();
-				if (b == -1)
+				// connection which hasn't started its next request can be
+				// closed when the server stops
+				idle = inputEnd == 0;
+				if (idle && !running) {
 					return null;
-				if (b != 13) {
-					bos.write(b);
-				}
-				switch (state) {
-				case 0:
-					if (b == 13) {
-						state = 1;
-					} else if (b == 10)
-						state = 4;
-					break;
-				case 1:
-					if (b == 10) {
-						state = 2;
-					} else
-						state = 0;
-					break;
-				case 2:
-					if (b == 13) {
-						state = 3;
-					} else
-						state = 0;
-					break;
-				case 3:
-					if (b == 10) {
-						break l;
-					} else
-						state = 0;
-					break;
-				case 4:
-					if (b == 10) {
-						break l;
-					} else
-						state = 0;
-					break;
-				}
-			}
-			return bos.toByteArray();
-		}
-
-		/**
-		 * Reads the HTTP request and parses it into a list of lines, each line
-		 * representing a single line the request.
-		 * 
-		 * @return             list of lines of HTTP request
-		 * @throws IOException if something goes wrong while reading the request
-		 */
-		private List<String> readRequest() throws IOException {
-			String requestHeader =
-					new String(readRequestBytes(), StandardCharsets.ISO_8859_1);
-			List<String> headers = new ArrayList<String>();
-			String currentLine = null;
-			for (String s : requestHeader.split("\n")) {
-				if (s.isEmpty())
-					break;
-				char c = s.charAt(0);
-				if (c == 9 || c == 32) {
-					currentLine += s;
-				} else {
-					if (currentLine != null) {
-						headers.add(currentLine);
+				}
+				int read = istream.read(input, inputEnd,
+						input.length - inputEnd);
+				idle = false;
+				if (read == -1) {
+					return null;
+				}
+				inputEnd += read;
+			}
+		}
+
+		/**
+		 * Stream of the bytes sent by the client after the request header.
+		 * Bytes which were received along with the header are read first,
+		 * and the rest is read from the socket through the same buffer, so
+		 * the bytes of the next request stay in the buffer.
+		 * 
+		 * @author jankovidakovic
+		 *
+		 */
+		private class ConnectionInputStream extends InputStream {
+
+			@Override
+			public int read() throws IOException {
+				if (inputStart == inputEnd && !fill()) {
+					return -1;
+				}
+				return input[inputStart++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (inputStart == inputEnd) {
+					if (len >= input.length) { // large reads skip the buffer
+						inputStart = inputEnd = 0;
+						return istream.read(b, off, len);
+					}
+					if (!fill()) {
+						return -1;
 					}
-					currentLine = s;
 				}
+				int read = Math.min(len, inputEnd - inputStart);
+				System.arraycopy(input, inputStart, b, off, read);
+				inputStart += read;
+				return read;
 			}
-			if (!currentLine.isEmpty()) {
-				headers.add(currentLine);
+
+			/**
+			 * Reads more bytes from the socket into the empty buffer.
+			 * 
+			 * @return             <code>true</code> if any bytes were read,
+			 *                     <code>false</code> if the client closed
+			 *                     the connection
+			 * @throws IOException if unable to read from the socket
+			 */
+			private boolean fill() throws IOException {
+				inputStart = inputEnd = 0;
+				int read = istream.read(input, 0, input.length);
+				if (read == -1) {
+					return false;
+				}
+				inputEnd = read;
+				return true;
 			}
-			return headers;
 		}
-	}
-
-	/**
-	 * Representation of one session
-	 * 
-	 * @author jankovidakovic
-	 *
-	 */
-	private static class SessionMapEntry {
-		String sid; // session identifier
-		String host; // which host uses the session
-		long validUntil; // time until the session expires
-		Map<String, String> map; // persistent parameters of the session
 
 	}
 
@@ -659,7 +2548,15 @@ public class SmartHttpServer {
 	public static void main(String[] args) {
 
 		SmartHttpServer server = new SmartHttpServer("src/main/resources/server.properties");
-		server.start();
+		try {
+			server.start();
+		} catch (IOException e) {
+			System.err.println("Cannot start the server: " + e.getMessage());
+			return;
+		}
+
+		// requests in progress are completed when the application is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
 	}
 }
@@ -0,0 +1,211 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of static files served by the server. For every requested file, the
+ * cache provides its validators - the entity tag and the time of last
+ * modification. Content of small files is also kept in memory, up to the given
+ * total number of bytes, so that frequently requested files don't have to be
+ * read from the disk again. When the cache is full, files that were least
+ * recently used are evicted first. Cached content is read again once the file
+ * is modified.
+ * <p>
+ * Compressed variants of the cached content are created the first time they
+ * are requested, and are kept along with the content. They are not counted
+ * towards the capacity of the cache, but they are rarely larger than the
+ * content itself.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class StaticFileCache {
+
+	private long capacity; // maximum total size of cached content, in bytes
+	private long maxFileSize; // maximum size of a file whose content is cached
+	private long cachedBytes; // total size of currently cached content
+
+	// cached files, in access order
+	private Map<Path, CachedFile> files =
+			new LinkedHashMap<Path, CachedFile>(16, 0.75f, true);
+
+	/**
+	 * Creates an empty cache with the given limits.
+	 * 
+	 * @param  capacity                 maximum total size of cached content,
+	 *                                  in bytes
+	 * @param  maxFileSize              maximum size of a single file whose
+	 *                                  content is cached, in bytes
+	 * @throws IllegalArgumentException if any of the limits is negative
+	 */
+	public StaticFileCache(long capacity, long maxFileSize) {
+		if (capacity < 0 || maxFileSize < 0) {
+			throw new IllegalArgumentException("Limits cannot be negative.");
+		}
+		this.capacity = capacity;
+		this.maxFileSize = Math.min(maxFileSize, capacity);
+	}
+
+	/**
+	 * Retrieves the given file. Content of the file is included only if the
+	 * file is small enough to be cached.
+	 * 
+	 * @param  file        path to the file
+	 * @return             the file, along with its validators
+	 * @throws IOException if unable to read the file. If the file does not
+	 *                     exist, or is not a regular file,
+	 *                     <code>NoSuchFileException</code> is thrown.
+	 */
+	public CachedFile get(Path file) throws IOException {
+		BasicFileAttributes attributes =
+				Files.readAttributes(file, BasicFileAttributes.class);
+		if (!attributes.isRegularFile()) {
+			throw new NoSuchFileException(file.toString(), null,
+					"Not a regular file.");
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+
+		synchronized (files) {
+			CachedFile cached = files.get(file);
+			if (cached != null && cached.lastModified == lastModified
+					&& cached.size == size) {
+				return cached;
+			}
+		}
+
+		if (size > maxFileSize) { // only the validators are provided
+			return new CachedFile(lastModified, size, null);
+		}
+
+		byte[] content = Files.readAllBytes(file);
+		if (content.length != size) { // modified while being read
+			return new CachedFile(lastModified, content.length, content);
+		}
+		CachedFile cached = new CachedFile(lastModified, size, content);
+		synchronized (files) {
+			CachedFile previous = files.put(file, cached);
+			if (previous != null) {
+				cachedBytes -= previous.size;
+			}
+			cachedBytes += size;
+
+			// evict least recently used files until the content fits
+			Iterator<CachedFile> it = files.values().iterator();
+			while (cachedBytes > capacity && it.hasNext()) {
+				cachedBytes -= it.next().size;
+				it.remove();
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * Static file, along with its validators.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	public static class CachedFile {
+		private final long lastModified; // modification time, in milliseconds
+		private final long size; // size of the file, in bytes
+		private final String eTag; // entity tag of the file
+		private final byte[] content; // content, or null if not cached
+		private volatile byte[] gzipContent; // content compressed by gzip
+		private volatile byte[] deflateContent; // content compressed by deflate
+
+		/**
+		 * Creates a new file description.
+		 * 
+		 * @param lastModified time of last modification of the file, in
+		 *                     milliseconds
+		 * @param size         size of the file
+		 * @param content      content of the file, or <code>null</code> if it
+		 *                     is not cached
+		 */
+		private CachedFile(long lastModified, long size, byte[] content) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.content = content;
+			// changes whenever the file is replaced or modified
+			this.eTag = "\"" + Long.toHexString(lastModified) + "-"
+					+ Long.toHexString(size) + "\"";
+		}
+
+		/**
+		 * @return time of last modification of the file, in milliseconds
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return size of the file, in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return strong entity tag of the file, quoted
+		 */
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @return content of the file, or <code>null</code> if the file is too
+		 *         large to be cached
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * Retrieves the content of the file compressed with the given
+		 * encoding. Content is compressed only once, the first time it is
+		 * requested.
+		 * 
+		 * @param  encoding content encoding, <code>gzip</code> or
+		 *                  <code>deflate</code>
+		 * @return          compressed content, or <code>null</code> if the
+		 *                  file is too large to be cached
+		 */
+		public byte[] getContent(String encoding) {
+			if (content == null) {
+				return null;
+			}
+			boolean gzip = encoding.equals("gzip");
+			byte[] compressed = gzip ? gzipContent : deflateContent;
+			if (compressed == null) {
+				// compressing twice at the same time does no harm
+				compressed = Compression.compress(content, encoding);
+				if (gzip) {
+					gzipContent = compressed;
+				} else {
+					deflateContent = compressed;
+				}
+			}
+			return compressed;
+		}
+
+		/**
+		 * Creates the entity tag of the content compressed with the given
+		 * encoding, which has to differ from the tag of the content itself.
+		 * 
+		 * @param  encoding content encoding
+		 * @return          strong entity tag of the compressed content, quoted
+		 */
+		public String getETag(String encoding) {
+			return eTag.substring(0, eTag.length() - 1) + "-" + encoding
+					+ "\"";
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+/**
+ * Channel of a client connection secured by TLS. Bytes written to the channel
+ * are encrypted before they are sent to the client, and bytes received from
+ * the client are decrypted before they are read. The handshake is performed
+ * once the channel is first used, or explicitly by {@link #handshake()}.
+ * <p>
+ * Channel works over both blocking and non-blocking connections. Over a
+ * non-blocking connection, reading returns 0 while no more bytes can be
+ * decrypted until the client sends more, and writing returns 0 while the
+ * encrypted bytes of the previous writes have not left yet.
+ * {@link #flush()} tells whether they have.
+ * <p>
+ * Delegated tasks of the handshake, such as the verification of the keys, are
+ * run by the thread which uses the channel.
+ *
+ * @author jankovidakovic
+ *
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+	// what is wrapped when only the handshake sends something
+	private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+
+	private SSLEngine engine; // encrypts and decrypts the bytes
+	private ReadableByteChannel in; // encrypted bytes from the client
+	private WritableByteChannel out; // encrypted bytes to the client
+	private ByteBuffer netIn; // received bytes which are not yet decrypted
+	private ByteBuffer netOut; // encrypted bytes which are not yet sent, ready
+								// to be read
+	private ByteBuffer appIn; // decrypted bytes which are not yet read, ready
+								// to be read
+	private boolean underflow; // whether netIn holds only a part of a record
+	private boolean established; // whether the first handshake is complete
+	private boolean inboundDone; // whether the client has closed its side
+	private boolean open = true; // whether the channel is open
+
+	/**
+	 * Creates the channel of a connection whose handshake hasn't started yet.
+	 *
+	 * @param engine engine of the connection
+	 * @param in     channel from which the encrypted bytes are read
+	 * @param out    channel to which the encrypted bytes are written
+	 */
+	TlsChannel(SSLEngine engine, ReadableByteChannel in,
+			WritableByteChannel out) {
+		this.engine = engine;
+		this.in = in;
+		this.out = out;
+		int packetSize = engine.getSession().getPacketBufferSize();
+		netIn = ByteBuffer.allocate(packetSize);
+		netOut = ByteBuffer.allocate(packetSize).flip();
+		appIn = ByteBuffer
+				.allocate(engine.getSession().getApplicationBufferSize())
+				.flip();
+	}
+
+	/**
+	 * Performs as much of the handshake as possible. Messages of the server
+	 * are sent together, once the server has to wait for the client, since
+	 * small writes of the single messages would each wait for the client to
+	 * acknowledge the previous one.
+	 *
+	 * @return             <code>true</code> if the handshake is complete,
+	 *                     <code>false</code> if the connection has to become
+	 *                     readable or writable first, as told by
+	 *                     {@link #isFlushing()}
+	 * @throws IOException if the handshake fails
+	 */
+	boolean handshake() throws IOException {
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				break;
+			case NEED_WRAP:
+				Status status = wrap(NOTHING, 0, 1).getStatus();
+				if (status == Status.CLOSED) {
+					throw new SSLException("Connection was closed.");
+				}
+				if (status == Status.BUFFER_OVERFLOW) {
+					return false;
+				}
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				if (!flush()) {
+					return false;
+				}
+				int progress = unwrap();
+				if (progress == -1 || inboundDone) {
+					throw new EOFException(
+							"Connection was closed during the handshake.");
+				}
+				if (progress == 0) {
+					return false;
+				}
+				break;
+			default:
+				if (!flush()) {
+					return false;
+				}
+				established = true;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the first handshake is complete,
+	 *         <code>false</code> otherwise
+	 */
+	boolean isEstablished() {
+		return established;
+	}
+
+	/**
+	 * Checks whether the encrypted bytes wait for the connection to become
+	 * writable.
+	 *
+	 * @return <code>true</code> if some encrypted bytes are not yet sent,
+	 *         <code>false</code> otherwise
+	 */
+	boolean isFlushing() {
+		return netOut.hasRemaining();
+	}
+
+	/**
+	 * Checks whether reading can produce more bytes without the client
+	 * sending anything, because the bytes it sent before are not yet read.
+	 * The connection does not become readable for such bytes again.
+	 *
+	 * @return <code>true</code> if any received bytes are not yet read,
+	 *         <code>false</code> otherwise
+	 */
+	boolean hasBuffered() {
+		return appIn.hasRemaining() || netIn.position() > 0 && !underflow;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		while (!appIn.hasRemaining()) {
+			if (inboundDone) {
+				return -1;
+			}
+			if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+					&& !handshake()) {
+				return 0;
+			}
+			int progress = unwrap();
+			if (progress != 1) {
+				return progress;
+			}
+		}
+		int read = Math.min(dst.remaining(), appIn.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + read);
+		dst.put(appIn);
+		appIn.limit(limit);
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+				&& !handshake()) {
+			return 0;
+		}
+		// records are sent together, as many as fit into the buffer
+		long written = 0;
+		while (hasRemaining(srcs, offset, length)) {
+			SSLEngineResult result = wrap(srcs, offset, length);
+			if (result.getStatus() == Status.CLOSED) {
+				throw new SSLException("Connection was closed.");
+			}
+			if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+				return written; // previous records wait for the client
+			}
+			written += result.bytesConsumed();
+		}
+		flush();
+		return written;
+	}
+
+	/**
+	 * Sends the encrypted bytes which are not yet sent.
+	 *
+	 * @return             <code>true</code> if all of them were sent,
+	 *                     <code>false</code> if the connection does not
+	 *                     accept any more of them right now
+	 * @throws IOException if unable to send the bytes
+	 */
+	boolean flush() throws IOException {
+		while (netOut.hasRemaining()) {
+			if (out.write(netOut) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Tells the client that the connection is being closed, if the notice can
+	 * be sent without waiting. Underlying channels are left open, and are
+	 * closed by their owner.
+	 */
+	@Override
+	public void close() {
+		if (!open) {
+			return;
+		}
+		open = false;
+		engine.closeOutbound();
+		try {
+			while (flush() && !engine.isOutboundDone()) {
+				if (wrap(NOTHING, 0, 1).bytesProduced() == 0) {
+					break;
+				}
+			}
+		} catch (IOException ignorable) {
+			// client will not be told, which it can survive
+		}
+	}
+
+	/**
+	 * Decrypts the next record sent by the client, reading it from the
+	 * connection if it was not yet received.
+	 *
+	 * @return             1 if the record was decrypted, 0 if the connection
+	 *                     has to become readable first, or -1 if the client
+	 *                     has closed the connection
+	 * @throws IOException if unable to read or decrypt the record
+	 */
+	private int unwrap() throws IOException {
+		if (underflow || netIn.position() == 0) {
+			if (!netIn.hasRemaining()) { // record is larger than expected
+				netIn = enlarge(netIn,
+						engine.getSession().getPacketBufferSize());
+			}
+			int read = in.read(netIn);
+			if (read <= 0) {
+				return read;
+			}
+			underflow = false;
+		}
+
+		netIn.flip();
+		appIn.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+			appIn.flip();
+		}
+		switch (result.getStatus()) {
+		case BUFFER_UNDERFLOW:
+			underflow = true;
+			break;
+		case BUFFER_OVERFLOW:
+			appIn = enlarge(appIn,
+					engine.getSession().getApplicationBufferSize());
+			break;
+		case CLOSED:
+			inboundDone = true;
+			break;
+		default:
+			break;
+		}
+		return 1;
+	}
+
+	/**
+	 * Encrypts as much of the given bytes as fits into a single record, or
+	 * the next message of the handshake, after the encrypted bytes which are
+	 * not yet sent. If they leave no room for the record, they are sent
+	 * first.
+	 *
+	 * @param  srcs        buffers of the bytes
+	 * @param  offset      index of the first buffer
+	 * @param  length      number of buffers
+	 * @return             result of the encryption, whose status is
+	 *                     {@link Status#BUFFER_OVERFLOW} if the bytes which
+	 *                     are not yet sent cannot be sent right now
+	 * @throws IOException if unable to encrypt the bytes
+	 */
+	private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		while (true) {
+			netOut.compact();
+			SSLEngineResult result;
+			try {
+				result = engine.wrap(srcs, offset, length, netOut);
+			} finally {
+				netOut.flip();
+			}
+			if (result.getStatus() != Status.BUFFER_OVERFLOW) {
+				return result;
+			}
+			if (netOut.hasRemaining()) {
+				if (!flush()) {
+					return result;
+				}
+			} else { // even an empty buffer is too small
+				netOut = enlarge(netOut,
+						engine.getSession().getPacketBufferSize());
+			}
+		}
+	}
+
+	/**
+	 * Copies the given buffer into a larger one.
+	 *
+	 * @param  buffer buffer to copy, ready to be read from if it is
+	 *                <code>appIn</code> or <code>netOut</code>, and to be
+	 *                written to otherwise
+	 * @param  size   size which the buffer needs to have free
+	 * @return        the larger buffer, in the same mode
+	 */
+	private ByteBuffer enlarge(ByteBuffer buffer, int size) {
+		ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + size);
+		if (buffer == netIn) {
+			buffer.flip();
+			return larger.put(buffer);
+		}
+		return larger.put(buffer).flip();
+	}
+
+	/**
+	 * Checks whether any of the given buffers has any bytes left.
+	 *
+	 * @param  srcs   buffers to check
+	 * @param  offset index of the first buffer
+	 * @param  length number of buffers
+	 * @return        <code>true</code> if there are bytes left,
+	 *                <code>false</code> otherwise
+	 */
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset,
+			int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
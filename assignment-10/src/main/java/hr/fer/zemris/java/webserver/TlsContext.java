@@ -0,0 +1,118 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Settings of the TLS connections of the HTTPS listener. The certificate of
+ * the server and its private key are loaded from a key store, and every
+ * connection gets its own engine, which uses the configured protocols and
+ * cipher suites.
+ * <p>
+ * Sessions of the clients are kept, so that a client which connects again can
+ * resume its session instead of performing the whole handshake, which saves
+ * most of the work of the handshake.
+ *
+ * @author jankovidakovic
+ *
+ */
+public class TlsContext {
+
+	private SSLContext context; // creates the engines of the connections
+	private String[] protocols; // enabled protocols, or null for the defaults
+	private String[] cipherSuites; // enabled cipher suites in the order of
+									// preference, or null for the defaults
+
+	/**
+	 * Creates the settings, loading the key store.
+	 *
+	 * @param  keyStore                 path of the key store
+	 * @param  keyStoreType             type of the key store, such as
+	 *                                  <code>PKCS12</code>
+	 * @param  password                 password of the key store and of the
+	 *                                  key in it
+	 * @param  protocols                enabled protocols separated by commas,
+	 *                                  or empty for the defaults
+	 * @param  cipherSuites             enabled cipher suites separated by
+	 *                                  commas, in the order of preference, or
+	 *                                  empty for the defaults
+	 * @param  sessionCacheSize         maximum number of kept sessions, or 0
+	 *                                  for no limit
+	 * @param  sessionTimeout           how long a session can be resumed, in
+	 *                                  seconds
+	 * @throws IOException              if unable to read the key store
+	 * @throws GeneralSecurityException if the key store or the key cannot be
+	 *                                  loaded
+	 * @throws IllegalArgumentException if any of the protocols or the cipher
+	 *                                  suites is not supported
+	 */
+	public TlsContext(Path keyStore, String keyStoreType, char[] password,
+			String protocols, String cipherSuites, int sessionCacheSize,
+			int sessionTimeout) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(keyStoreType);
+		try (InputStream is = Files.newInputStream(keyStore)) {
+			store.load(is, password);
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory
+				.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(store, password);
+
+		context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+
+		this.protocols = split(protocols);
+		this.cipherSuites = split(cipherSuites);
+		createEngine(); // unsupported settings are found right away
+	}
+
+	/**
+	 * Creates the engine of a new client connection.
+	 *
+	 * @return the engine, in the server mode
+	 */
+	public SSLEngine createEngine() {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		SSLParameters parameters = engine.getSSLParameters();
+		if (protocols != null) {
+			parameters.setProtocols(protocols);
+		}
+		if (cipherSuites != null) {
+			parameters.setCipherSuites(cipherSuites);
+			parameters.setUseCipherSuitesOrder(true);
+		}
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+
+	/**
+	 * Splits the given list of names separated by commas.
+	 *
+	 * @param  names list of names
+	 * @return       the names, or <code>null</code> if there are none
+	 */
+	private static String[] split(String names) {
+		List<String> split = new ArrayList<String>();
+		for (String name : names.split(",")) {
+			if (!name.isBlank()) {
+				split.add(name.trim());
+			}
+		}
+		return split.isEmpty() ? null : split.toArray(new String[0]);
+	}
+}
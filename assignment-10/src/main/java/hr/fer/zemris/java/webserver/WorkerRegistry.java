@@ -0,0 +1,249 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of workers which can be requested directly by their names, such as
+ * workers requested by the <code>/ext/{name}</code> URLs. Name of the worker
+ * is the simple name of its class, which is looked up in the given package.
+ * <p>
+ * Every worker class is resolved only once, and its constructor is kept as a
+ * method handle. Workers without any instance fields hold no state between
+ * requests, so a single instance of such a worker is shared by all requests.
+ * Workers with instance fields get a new instance for every request.
+ * <p>
+ * Names which do not denote a worker are remembered as well, so repeated
+ * requests for them don't reach the class loader. The number of remembered
+ * unknown names is limited, and the least recently requested ones are
+ * forgotten first.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class WorkerRegistry {
+
+	// type of the constructor handles, once adapted
+	private static final MethodType CONSTRUCTOR_TYPE =
+			MethodType.methodType(IWebWorker.class);
+
+	private String packageName; // package of the worker classes
+	private ClassLoader classLoader; // loader of the worker classes
+
+	// resolved workers, by their names
+	private Map<String, WorkerFactory> workers =
+			new ConcurrentHashMap<String, WorkerFactory>();
+	// names which do not denote a worker, in access order
+	private Map<String, Boolean> unknown;
+
+	/**
+	 * Creates an empty registry of the workers from the given package.
+	 * 
+	 * @param  packageName              package of the worker classes
+	 * @param  classLoader              loader of the worker classes
+	 * @param  maxUnknown               maximum number of remembered names
+	 *                                  which do not denote a worker
+	 * @throws IllegalArgumentException if the maximum number of remembered
+	 *                                  names is negative
+	 */
+	public WorkerRegistry(String packageName, ClassLoader classLoader,
+			int maxUnknown) {
+		if (maxUnknown < 0) {
+			throw new IllegalArgumentException(
+					"Maximum number of unknown names cannot be negative.");
+		}
+		this.packageName = packageName;
+		this.classLoader = classLoader;
+		this.unknown = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Boolean> eldest) {
+				return size() > maxUnknown;
+			}
+		};
+	}
+
+	/**
+	 * Registers the given worker instance under the given name, so that it is
+	 * shared by all requests for that name. Registered workers take
+	 * precedence over the classes of the same name, and can be constructed by
+	 * their owner, so they need no public constructor without arguments.
+	 * 
+	 * @param name   name of the worker
+	 * @param worker worker which processes the requests for the name
+	 */
+	public void register(String name, IWebWorker worker) {
+		workers.put(name, new WorkerFactory(worker));
+		synchronized (unknown) {
+			unknown.remove(name);
+		}
+	}
+
+	/**
+	 * Retrieves the worker with the given name.
+	 * 
+	 * @param  name name of the worker
+	 * @return      the worker, or <code>null</code> if there is no worker with
+	 *              the given name
+	 */
+	public IWebWorker get(String name) {
+		WorkerFactory factory = workers.get(name);
+		if (factory == null) {
+			if (!isValidName(name)) {
+				return null;
+			}
+			synchronized (unknown) {
+				if (unknown.get(name) != null) {
+					return null;
+				}
+			}
+			factory = resolve(name);
+			if (factory == null) {
+				synchronized (unknown) {
+					unknown.put(name, Boolean.TRUE);
+				}
+				return null;
+			}
+			// the same worker may have been resolved by another thread
+			WorkerFactory previous = workers.putIfAbsent(name, factory);
+			if (previous != null) {
+				factory = previous;
+			}
+		}
+		return factory.get();
+	}
+
+	/**
+	 * Resolves the worker class with the given name.
+	 * 
+	 * @param  name name of the worker
+	 * @return      factory of the worker, or <code>null</code> if there is no
+	 *              such worker
+	 */
+	private WorkerFactory resolve(String name) {
+		try {
+			Class<?> workerClass =
+					classLoader.loadClass(packageName + "." + name);
+			if (!IWebWorker.class.isAssignableFrom(workerClass)
+					|| Modifier.isAbstract(workerClass.getModifiers())) {
+				return null;
+			}
+			MethodHandle constructor = MethodHandles.publicLookup()
+					.findConstructor(workerClass,
+							MethodType.methodType(void.class))
+					.asType(CONSTRUCTOR_TYPE);
+			return new WorkerFactory(constructor, isStateless(workerClass));
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		} catch (Throwable e) { // thrown by the constructor
+			System.out.println("Cannot create worker " + name + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether the objects of the given class hold no state, which is
+	 * the case if neither the class nor its superclasses declare any instance
+	 * fields.
+	 * 
+	 * @param  type class to check
+	 * @return      <code>true</code> if the class is stateless,
+	 *              <code>false</code> otherwise
+	 */
+	private static boolean isStateless(Class<?> type) {
+		for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the given name can be the simple name of a class, so
+	 * that names which would reach into other packages are refused.
+	 * 
+	 * @param  name name to check
+	 * @return      <code>true</code> if the name is valid, <code>false</code>
+	 *              otherwise
+	 */
+	private static boolean isValidName(String name) {
+		if (name.isEmpty()
+				|| !Character.isJavaIdentifierStart(name.charAt(0))) {
+			return false;
+		}
+		for (int i = 1; i < name.length(); i++) {
+			if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Source of the instances of a single worker class.
+	 * 
+	 * @author jankovidakovic
+	 *
+	 */
+	private static class WorkerFactory {
+		private MethodHandle constructor; // creates new instances
+		private IWebWorker shared; // instance shared by all requests, or null
+
+		/**
+		 * Creates a new factory.
+		 * 
+		 * @param  constructor constructor of the worker, adapted to return an
+		 *                     {@link IWebWorker}
+		 * @param  stateless   <code>true</code> if a single instance can be
+		 *                     shared, <code>false</code> otherwise
+		 * @throws Throwable   if the constructor fails
+		 */
+		WorkerFactory(MethodHandle constructor, boolean stateless)
+				throws Throwable {
+			this.constructor = constructor;
+			if (stateless) {
+				shared = (IWebWorker) constructor.invokeExact();
+			}
+		}
+
+		/**
+		 * Creates a new factory which always provides the given instance.
+		 * 
+		 * @param shared instance shared by all requests
+		 */
+		WorkerFactory(IWebWorker shared) {
+			this.shared = shared;
+		}
+
+		/**
+		 * Retrieves an instance of the worker.
+		 * 
+		 * @return the shared instance, or a new instance if the worker is not
+		 *         shared
+		 */
+		IWebWorker get() {
+			if (shared != null) {
+				return shared;
+			}
+			try {
+				return (IWebWorker) constructor.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException("Cannot create worker.", e);
+			}
+		}
+	}
+}
@@ -39,6 +39,9 @@ public class CircleWorker implements IWebWorker {
 			context.setStatusCode(200);
 			context.setStatusText("OK");
 			context.write(bos.toByteArray());
+			// the image is complete, so the client doesn't have to wait for
+			// the worker to return
+			context.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,36 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+import hr.fer.zemris.java.webserver.ServerMetrics;
+
+/**
+ * Worker that renders the metrics of the server, in the Prometheus text
+ * exposition format. Worker is bound to the metrics of a single server, so it
+ * is registered by the server itself instead of being configured.
+ * 
+ * @author jankovidakovic
+ *
+ */
+public class MetricsWorker implements IWebWorker {
+
+	private ServerMetrics metrics; // metrics which are rendered
+
+	/**
+	 * Creates a new worker which renders the given metrics.
+	 * 
+	 * @param metrics metrics of the server
+	 */
+	public MetricsWorker(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void processRequest(RequestContext context) throws Exception {
+		context.setMimeType("text/plain; version=0.0.4");
+		context.setStatusCode(200);
+		context.setStatusText("OK");
+		context.write(metrics.export());
+	}
+
+}
@@ -0,0 +1,156 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+class SmartScriptCompilerTest {
+
+	@ParameterizedTest
+	@ValueSource(strings = { "osnovni.smscr", "fibonacci.smscr",
+			"fibonaccih.smscr", "zbrajanje.smscr", "brojPoziva.smscr" })
+	void testBundledScriptsWriteTheSameResult(String script)
+			throws IOException {
+		assertSameResult(
+				Files.readString(Paths.get("webroot/scripts", script)));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			// nested loops, and an inner loop hiding the outer variable
+			"{$FOR i 1 3 1$}{$FOR j 1 2 1$}{$= i j * \" \" $}{$END$}"
+					+ "{$FOR i 7 8 1$}{$= i $}{$END$}{$= i $}|{$END$}",
+			// bounds which are not integer constants
+			"{$FOR x 0.5 2 0.25$}{$= x x 2 / - $};{$END$}"
+					+ "{$FOR y \"1\" \"4\" \"2\"$}{$= y $}{$END$}",
+			// counting down, and a loop that never runs
+			"{$FOR i 3 -3 -2$}{$= i $}{$END$}{$FOR i 3 1 1$}x{$END$}",
+			// stack functions and operators
+			"{$= 1 2 @swap - 3 @dup * 7 2 / 7 2.0 / $}",
+			"{$= \"a\" \"1\" @tparamSet \"a\" \"0\" @tparamGet @dup + \"b\""
+					+ " \"x\" @pparamGet \"b\" \"y\" @pparamSet \"b\" @pparamDel"
+					+ " \"b\" \"z\" @pparamGet $}",
+			"{$= 2 @sin \"0.00\" @decfmt \"text/plain\" @setMimeType $}",
+			// texts outside of ASCII, and an empty echo
+			"Računam {$= $}šumu\r\n{$= \"č\" $}" })
+	void testScriptsWriteTheSameResult(String script) throws IOException {
+		assertSameResult(script);
+	}
+
+	@Test
+	void testLoopVariableIsTextUntilTheFirstStep() {
+		// sine of a string fails, but the sine of a number does not
+		String script = "{$FOR i 1 3 1$}{$= i @sin $}{$END$}";
+		assertTrue(compile(script) instanceof CompiledTemplate);
+		assertThrows(RuntimeException.class,
+				() -> execute(compile(script), new HashMap<>()));
+		assertThrows(RuntimeException.class,
+				() -> execute(interpreted(script), new HashMap<>()));
+	}
+
+	@Test
+	void testTextIsEncodedWithTheEncodingOfTheContext() throws IOException {
+		String script = "Računam {$= \"šumu\" $}";
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(os, null, null, null);
+		rc.setEncoding("ISO-8859-2");
+		compile(script).execute(rc);
+
+		String response = new String(os.toByteArray(),
+				StandardCharsets.ISO_8859_1);
+		String content = response.substring(response.indexOf("\r\n\r\n") + 4);
+		assertEquals("Računam šumu", new String(
+				content.getBytes(StandardCharsets.ISO_8859_1), "ISO-8859-2"));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "{$= 1 @unknown $}", "{$= i $}",
+			"{$FOR i 1 2 1$}{$END$}{$= i $}", "{$= + $}", "{$= 1 @decfmt $}" })
+	void testScriptsThatFailTheInterpreterAreInterpreted(String script) {
+		Template template = compile(script);
+		assertFalse(template instanceof CompiledTemplate);
+		assertThrows(RuntimeException.class,
+				() -> execute(template, new HashMap<>()));
+	}
+
+	@Test
+	void testUnreachableFailureIsNotReported() throws IOException {
+		String script = "{$FOR i 2 1 1$}{$= j $}{$END$}done";
+		assertEquals("done", content(execute(compile(script),
+				new HashMap<>())));
+	}
+
+	/**
+	 * Checks that the compiled and the interpreted script write the same
+	 * response and leave the same persistent parameters.
+	 * 
+	 * @param  script      source of the script
+	 * @throws IOException never
+	 */
+	private static void assertSameResult(String script) throws IOException {
+		Template compiled = compile(script);
+		assertTrue(compiled instanceof CompiledTemplate);
+
+		Map<String, String> compiledParameters = new HashMap<>();
+		Map<String, String> interpretedParameters = new HashMap<>();
+		compiledParameters.put("brojPoziva", "3");
+		interpretedParameters.put("brojPoziva", "3");
+
+		assertEquals(execute(interpreted(script), interpretedParameters),
+				execute(compiled, compiledParameters));
+		assertEquals(interpretedParameters, compiledParameters);
+	}
+
+	private static Template compile(String script) {
+		return SmartScriptCompiler.compile(parse(script));
+	}
+
+	private static Template interpreted(String script) {
+		DocumentNode document = parse(script);
+		return context -> new SmartScriptEngine(document, context).execute();
+	}
+
+	private static DocumentNode parse(String script) {
+		return new SmartScriptParser(script).getDocumentNode();
+	}
+
+	/**
+	 * Executes the template with request parameters <code>a=20</code> and
+	 * <code>b=22</code>.
+	 * 
+	 * @param  template             template to execute
+	 * @param  persistentParameters persistent parameters of the request
+	 * @return                      the whole response
+	 */
+	private static String execute(Template template,
+			Map<String, String> persistentParameters) {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put("a", "20");
+		parameters.put("b", "22");
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		template.execute(
+				new RequestContext(os, parameters, persistentParameters, null));
+		return new String(os.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String content(String response) {
+		return response.substring(response.indexOf("\r\n\r\n") + 4);
+	}
+}
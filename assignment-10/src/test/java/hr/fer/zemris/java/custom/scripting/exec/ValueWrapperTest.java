@@ -4,6 +4,14 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.jupiter.api.Test;
 
 class ValueWrapperTest {
@@ -78,4 +86,59 @@ class ValueWrapperTest {
 		assertTrue(v1.getValue() instanceof Integer);
 	}
 
+	@Test
+	void testConcurrentOperationsDoNotInterfere() throws Exception {
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		try {
+			for (int t = 0; t < threads; t++) {
+				int seed = t + 1;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < 20000; i++) {
+							checkOperations(seed, i);
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> result : results) {
+				result.get(); // rethrows the failed assertion
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Performs operations whose operands depend on the given numbers, and
+	 * checks their results.
+	 * 
+	 * @param seed number of the thread
+	 * @param i    number of the iteration
+	 */
+	private static void checkOperations(int seed, int i) {
+		ValueWrapper v = new ValueWrapper(Integer.valueOf(seed));
+		v.add(Integer.toString(i));
+		v.multiply(Integer.valueOf(3));
+		assertEquals(Integer.valueOf((seed + i) * 3), v.getValue());
+		v.subtract("0.5");
+		v.divide(Double.valueOf(2.0));
+		assertEquals(Double.valueOf(((seed + i) * 3 - 0.5) / 2.0),
+				v.getValue());
+
+		ValueWrapper counter = new ValueWrapper(null);
+		int steps = 0;
+		while (counter.numCompare(Integer.toString(seed)) < 0) {
+			counter.add("1");
+			steps++;
+		}
+		assertEquals(seed, steps);
+		assertEquals(Integer.valueOf(seed), counter.getValue());
+	}
 }
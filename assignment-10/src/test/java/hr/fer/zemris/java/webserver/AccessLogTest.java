@@ -0,0 +1,71 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+class AccessLogTest {
+
+	private static final int RECORDS = 20;
+
+	@Test
+	void testRecordsAreWrittenWhenRotationFails() throws Exception {
+		Path directory = Files.createTempDirectory("logs");
+		Path file = directory.resolve("access.log");
+		// a non-empty directory in place of the rotated file cannot be
+		// deleted or replaced
+		Files.createDirectories(directory.resolve("access.log.1/blocked"));
+		try {
+			AccessLog log = new AccessLog(file, 64, 100, 1);
+			for (int i = 0; i < RECORDS; i++) {
+				log.log("GET", "/page" + i, 200, 10, 1000, null);
+				awaitLines(file, i + 1); // every record in its own batch
+			}
+			log.close();
+
+			List<String> lines = Files.readAllLines(file);
+			assertEquals(RECORDS, lines.size());
+			for (int i = 0; i < RECORDS; i++) {
+				assertTrue(lines.get(i)
+						.contains("\"path\":\"/page" + i + "\""));
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Waits until the log file has at least the given number of lines.
+	 *
+	 * @param  file      the log file
+	 * @param  lines     number of lines
+	 * @throws Exception if the lines are not written in time
+	 */
+	private static void awaitLines(Path file, int lines) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!Files.exists(file)
+				|| Files.readAllLines(file).size() < lines) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Log was not written.");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : (Iterable<Path>) paths
+					.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}
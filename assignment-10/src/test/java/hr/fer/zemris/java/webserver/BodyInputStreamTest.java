@@ -0,0 +1,173 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BodyInputStreamTest {
+
+	// bytes of the next request, which follow the body
+	private static final String NEXT = "GET / HTTP/1.1\r\n\r\n";
+
+	@Test
+	void testBodyOfKnownLengthLeavesTheNextRequest() throws IOException {
+		InputStream source = source("hello" + NEXT);
+		BodyInputStream body = new BodyInputStream(source, 5, 100, null);
+
+		assertEquals("hello", read(body));
+		assertTrue(body.isFinished());
+		assertEquals(-1, body.read());
+		assertEquals(NEXT, read(source));
+	}
+
+	@Test
+	void testChunksAreDecoded() throws IOException {
+		InputStream source = source("4\r\nWiki\r\n"
+				+ "5;name=value;other\r\npedia\r\n"
+				+ "E \r\n in\r\n\r\nchunks.\r\n"
+				+ "0\r\nX-Trailer: 1\r\nY-Trailer: 2\r\n\r\n" + NEXT);
+		BodyInputStream body = new BodyInputStream(source, -1, 100, null);
+
+		assertEquals("Wikipedia in\r\n\r\nchunks.", read(body));
+		assertTrue(body.isFinished());
+		assertEquals(NEXT, read(source));
+	}
+
+	@Test
+	void testChunkLinesMayEndWithLineFeedAlone() throws IOException {
+		InputStream source = source("3\nabc\n0\n\n" + NEXT);
+		BodyInputStream body = new BodyInputStream(source, -1, 100, null);
+
+		assertEquals("abc", read(body));
+		assertEquals(NEXT, read(source));
+	}
+
+	@Test
+	void testSingleBytesAreRead() throws IOException {
+		BodyInputStream body =
+				new BodyInputStream(source("2\r\nÿa\r\n0\r\n\r\n"), -1, 100,
+						null);
+		assertEquals(0xff, body.read());
+		assertEquals('a', body.read());
+		assertEquals(-1, body.read());
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "x\r\nabc\r\n0\r\n\r\n", "\r\nabc\r\n0\r\n\r\n",
+			"-3\r\nabc\r\n0\r\n\r\n", "+3\r\nabc\r\n0\r\n\r\n",
+			"1000000000000000\r\n", "3\r\nabcX\r\n0\r\n\r\n",
+			"3\r\nabc0\r\n\r\n" })
+	void testMalformedChunksAreRefused(String chunks) {
+		assertStatus(400, new BodyInputStream(source(chunks), -1,
+				Long.MAX_VALUE, null));
+	}
+
+	@Test
+	void testLongChunkLinesAreRefused() {
+		String extension = ";" + "x".repeat(5000);
+		assertStatus(400, new BodyInputStream(
+				source("3" + extension + "\r\nabc\r\n0\r\n\r\n"), -1, 100,
+				null));
+		assertStatus(400, new BodyInputStream(
+				source("3\r\nabc\r\n0\r\nX-Trailer: " + extension + "\r\n\r\n"),
+				-1, 100, null));
+	}
+
+	@Test
+	void testBodyOverMaxSizeIsRefused() throws IOException {
+		BodyInputStream body = new BodyInputStream(
+				source("8\r\n12345678\r\n8\r\n12345678\r\n0\r\n\r\n"), -1, 16,
+				null);
+		assertEquals("1234567812345678", read(body));
+
+		body = new BodyInputStream(
+				source("8\r\n12345678\r\n9\r\n123456789\r\n0\r\n\r\n"), -1, 16,
+				null);
+		byte[] buffer = new byte[8];
+		assertEquals(8, body.read(buffer, 0, buffer.length));
+		assertStatus(413, body);
+	}
+
+	@Test
+	void testTruncatedBodyIsRefused() {
+		BodyInputStream body =
+				new BodyInputStream(source("hel"), 5, 100, null);
+		assertThrows(EOFException.class, () -> read(body));
+		BodyInputStream chunked =
+				new BodyInputStream(source("5\r\nhel"), -1, 100, null);
+		assertThrows(EOFException.class, () -> read(chunked));
+	}
+
+	@Test
+	void testContinueIsSentOnlyOnFirstRead() throws IOException {
+		ByteArrayOutputStream interim = new ByteArrayOutputStream();
+		BodyInputStream body =
+				new BodyInputStream(source("hello"), 5, 100, interim);
+		assertEquals(0, interim.size());
+
+		assertEquals(0, body.read(new byte[4], 0, 0));
+		assertEquals(0, interim.size());
+
+		assertEquals('h', body.read());
+		assertEquals("HTTP/1.1 100 Continue\r\n\r\n",
+				interim.toString(StandardCharsets.US_ASCII));
+		assertEquals("ello", read(body));
+		assertEquals("HTTP/1.1 100 Continue\r\n\r\n",
+				interim.toString(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	void testBodyWhichWasNotAllowedIsNotDiscarded() {
+		ByteArrayOutputStream interim = new ByteArrayOutputStream();
+		InputStream source = source("hello");
+		BodyInputStream body = new BodyInputStream(source, 5, 100, interim);
+
+		assertFalse(body.discard());
+		assertEquals(0, interim.size());
+
+		body = new BodyInputStream(source, 5, 100, null);
+		assertTrue(body.discard());
+		assertTrue(body.isFinished());
+	}
+
+	private static InputStream source(String text) {
+		return new ByteArrayInputStream(
+				text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Reads the rest of the stream in small pieces.
+	 *
+	 * @param  is          stream to read
+	 * @return             the bytes read, decoded as ISO-8859-1
+	 * @throws IOException if unable to read the stream
+	 */
+	private static String read(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buffer = new byte[3];
+		int read;
+		while ((read = is.read(buffer, 0, buffer.length)) != -1) {
+			os.write(buffer, 0, read);
+		}
+		return os.toString(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void assertStatus(int status, BodyInputStream body) {
+		HttpParseException e =
+				assertThrows(HttpParseException.class, () -> read(body));
+		assertEquals(status, e.getStatusCode());
+	}
+}
@@ -0,0 +1,98 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ByteRangeTest {
+
+	private static final long SIZE = 1000;
+
+	@Test
+	void testClosedRange() {
+		assertRanges("0-499", "bytes=0-499");
+		assertRanges("500-999", "bytes=500-5000");
+		assertRanges("7-7", " Bytes=7-7 ");
+		assertEquals("bytes 0-499/1000",
+				ByteRange.parse("bytes=0-499", SIZE).get(0)
+						.toContentRange(SIZE));
+		assertEquals(500, ByteRange.parse("bytes=0-499", SIZE).get(0)
+				.getLength());
+	}
+
+	@Test
+	void testSuffixRange() {
+		assertRanges("500-999", "bytes=-500");
+		assertRanges("0-999", "bytes=-5000");
+		assertRanges("", "bytes=-0");
+	}
+
+	@Test
+	void testOpenRange() {
+		assertRanges("500-999", "bytes=500-");
+		assertRanges("999-999", "bytes=999-");
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "bytes=500-499", "items=0-499", "bytes=500",
+			"bytes=a-b", "bytes=-", "bytes=+1-2", "bytes=1--2", "bytes=,0-1",
+			"bytes=" })
+	void testMalformedHeaderIsIgnored(String header) {
+		assertNull(ByteRange.parse(header, SIZE));
+	}
+
+	@Test
+	void testOverlappingAndAdjacentRangesAreMerged() {
+		assertRanges("0-199", "bytes=0-99,50-199");
+		assertRanges("0-199", "bytes=100-199,0-99");
+		assertRanges("0-99,101-199", "bytes=101-199,0-99");
+		assertRanges("0-999", "bytes=-100,0-950,900-");
+		assertRanges("10-20,30-40", "bytes=30-40, 10-20, 12-15");
+	}
+
+	@Test
+	void testTooManyRangesAreIgnored() {
+		StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < 16; i++) {
+			header.append(',').append(2 * i).append('-').append(2 * i);
+		}
+		assertEquals(16, ByteRange.parse(header.toString(), SIZE).size());
+		header.append(",100-100");
+		assertNull(ByteRange.parse(header.toString(), SIZE));
+	}
+
+	@Test
+	void testUnsatisfiableRangesAreLeftOut() {
+		assertRanges("", "bytes=1000-1999");
+		assertRanges("", "bytes=1000-");
+		assertRanges("0-9", "bytes=5000-6000,0-9");
+	}
+
+	@Test
+	void testZeroLengthFile() {
+		assertEquals(List.of(), ByteRange.parse("bytes=0-", 0));
+		assertEquals(List.of(), ByteRange.parse("bytes=-500", 0));
+		assertEquals(List.of(), ByteRange.parse("bytes=0-0", 0));
+	}
+
+	/**
+	 * Checks that the header is resolved into the given ranges, against a
+	 * file of {@link #SIZE} bytes.
+	 *
+	 * @param expected ranges as <code>first-last</code>, separated by commas,
+	 *                 or an empty string if none are expected
+	 * @param header   value of the Range header
+	 */
+	private static void assertRanges(String expected, String header) {
+		List<ByteRange> ranges = ByteRange.parse(header, SIZE);
+		assertEquals(expected,
+				ranges.stream().map(r -> r.getStart() + "-" + r.getEnd())
+						.collect(Collectors.joining(",")));
+	}
+}
@@ -0,0 +1,76 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class FormDecoderTest {
+
+	// every escape is valid, invalid, or left unfinished
+	private static final String FORM =
+			"name=J%C5%BEivko+Ani%c4%87&empty=&flag&&a%3Db=%26%25"
+					+ "&bad=%zz%4g%&short=%4&end=100%";
+
+	@Test
+	void testParametersAreDecoded() {
+		Map<String, String> parameters = decode(FORM, FORM.length());
+
+		assertEquals(7, parameters.size());
+		assertEquals("Jživko Anić", parameters.get("name"));
+		assertEquals("", parameters.get("empty"));
+		assertEquals("", parameters.get("flag"));
+		assertEquals("&%", parameters.get("a=b"));
+		assertEquals("%zz%4g%", parameters.get("bad"));
+		assertEquals("%4", parameters.get("short"));
+		assertEquals("100%", parameters.get("end"));
+	}
+
+	@Test
+	void testFormSplitAnywhereIsDecodedTheSame() {
+		Map<String, String> expected = decode(FORM, FORM.length());
+		for (int split = 0; split <= FORM.length(); split++) {
+			assertEquals(expected, decode(FORM, split),
+					"Split at " + split + ".");
+		}
+	}
+
+	@ParameterizedTest
+	@CsvSource({ "a=%4, a, %4", "a=%, a, %", "a=%%41, a, %A",
+			"a=%4%41, a, %4A", "a=%+, a, '% '", "%=1, %, 1" })
+	void testInvalidEscapesAreKept(String form, String name, String value) {
+		assertEquals(Map.of(name, value), decode(form, form.length()));
+	}
+
+	@Test
+	void testStreamIsDecoded() throws IOException {
+		Map<String, String> parameters = new HashMap<>();
+		FormDecoder.decode(new ByteArrayInputStream(
+				FORM.getBytes(StandardCharsets.ISO_8859_1)), parameters);
+		assertEquals(decode(FORM, FORM.length()), parameters);
+	}
+
+	/**
+	 * Decodes the form, fed to the decoder in two parts.
+	 *
+	 * @param  form  the encoded form
+	 * @param  split index at which the form is split
+	 * @return       decoded parameters
+	 */
+	private static Map<String, String> decode(String form, int split) {
+		byte[] data = form.getBytes(StandardCharsets.ISO_8859_1);
+		Map<String, String> parameters = new HashMap<>();
+		FormDecoder decoder = new FormDecoder(parameters);
+		decoder.feed(data, 0, split);
+		decoder.feed(data, split, data.length);
+		decoder.finish();
+		return parameters;
+	}
+}
@@ -0,0 +1,192 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class HttpRequestParserTest {
+
+	private final HttpRequestParser parser = new HttpRequestParser(1024, 8);
+
+	@Test
+	void testRequestIsParsed() {
+		HttpRequest request = parse("GET /index.html HTTP/1.1\r\n"
+				+ "Host: www.localhost.com:5721\r\n"
+				+ "Accept-Encoding:gzip\t\r\n"
+				+ "X-Long: first\r\n"
+				+ "  second\r\n"
+				+ "accept: text/html\r\n"
+				+ "ACCEPT: */*\r\n\r\n");
+
+		assertEquals("GET", request.getMethod());
+		assertEquals("/index.html", request.getPath());
+		assertEquals("HTTP/1.1", request.getVersion());
+		assertEquals("www.localhost.com", request.getHost());
+		assertEquals("gzip", request.getHeader("accept-encoding"));
+		assertEquals("first second", request.getHeader("X-Long"));
+		assertEquals("text/html, */*", request.getHeader("Accept"));
+		assertNull(request.getSid());
+	}
+
+	@Test
+	void testLinesMayEndWithLineFeedAlone() {
+		HttpRequest request = parse("GET / HTTP/1.0\nHost: localhost\n\n");
+		assertEquals("HTTP/1.0", request.getVersion());
+		assertEquals("localhost", request.getHost());
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "GET /index.html\r\n\r\n",
+			"GET /index.html \r\n\r\n", "GET  /index.html HTTP/1.1\r\n\r\n",
+			" /index.html HTTP/1.1\r\n\r\n",
+			"GET /index.html HTTP/1.1 x\r\n\r\n", "\r\n\r\n",
+			"GET / HTTP/1.1\r\nHost localhost\r\n\r\n",
+			"GET / HTTP/1.1\r\n: localhost\r\n\r\n",
+			"GET / HTTP/1.1\r\n folded: first\r\n\r\n" })
+	void testMalformedHeaderIsRefused(String header) {
+		assertStatus(400, header);
+	}
+
+	@Test
+	void testHeaderOverMaxSizeIsRefused() {
+		HttpRequestParser parser = new HttpRequestParser(64, 8);
+		String line = "GET / HTTP/1.1\r\nX-Padding: ";
+		String fits = line + "x".repeat(64 - line.length() - 4) + "\r\n\r\n";
+		assertEquals("x".repeat(64 - line.length() - 4),
+				parse(parser, fits).getHeader("x-padding"));
+
+		HttpParseException e = assertThrows(HttpParseException.class,
+				() -> parse(parser, line + "x".repeat(64 - line.length() - 3)
+						+ "\r\n\r\n"));
+		assertEquals(431, e.getStatusCode());
+	}
+
+	@Test
+	void testHeaderOverMaxLinesIsRefused() {
+		HttpRequestParser parser = new HttpRequestParser(1024, 2);
+		// folded lines are not counted
+		parse(parser, "GET / HTTP/1.1\r\nA: 1\r\n 2\r\nB: 3\r\n\r\n");
+
+		HttpParseException e = assertThrows(HttpParseException.class,
+				() -> parse(parser,
+						"GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n"));
+		assertEquals(431, e.getStatusCode());
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "\r\n", "\n" })
+	void testHeaderEndIsFoundWhenSplitAcrossReads(String newLine) {
+		byte[] data = bytes("GET /index.html HTTP/1.1" + newLine
+				+ "Host: localhost" + newLine + newLine);
+		for (int split = 1; split < data.length; split++) {
+			// as the server does - bytes received before are not searched
+			// again, but the line break may have started in them
+			assertEquals(-1, HttpRequestParser.findHeaderEnd(data, 0, split));
+			assertEquals(data.length, HttpRequestParser.findHeaderEnd(data,
+					Math.max(0, split - 3), data.length));
+		}
+		assertEquals("/index.html",
+				parser.parse(data, 0, data.length).getPath());
+	}
+
+	@Test
+	void testPipelinedRequestsAreLeftInTheBuffer() {
+		String first = "POST /first HTTP/1.1\r\nContent-Length: 4\r\n\r\n";
+		String second = "GET /second HTTP/1.1\r\n\r\n";
+		String third = "GET /thi";
+		byte[] data = bytes(first + "body" + second + third);
+
+		int firstEnd = HttpRequestParser.findHeaderEnd(data, 0, data.length);
+		assertEquals(first.length(), firstEnd);
+		assertEquals("/first", parser.parse(data, 0, firstEnd).getPath());
+
+		// the server reads the body, and the next request follows it
+		int secondStart = firstEnd + 4;
+		int secondEnd = HttpRequestParser.findHeaderEnd(data, secondStart,
+				data.length);
+		assertEquals(secondStart + second.length(), secondEnd);
+		assertEquals("/second",
+				parser.parse(data, secondStart, secondEnd).getPath());
+
+		// the incomplete third request is not consumed
+		assertEquals(-1, HttpRequestParser.findHeaderEnd(data, secondEnd,
+				data.length));
+		assertEquals(third, new String(data, secondEnd,
+				data.length - secondEnd, StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	void testSessionIdIsParsedFromCookies() {
+		assertEquals("abc", sid("Cookie: sid=abc"));
+		assertEquals("xyz", sid("Cookie: a=1; sid=\"xyz\" ; b=2"));
+		assertEquals("", sid("Cookie: sid="));
+		assertEquals("\"", sid("Cookie: sid=\""));
+		assertNull(sid("Cookie: xsid=1; sidx=2; SID=3"));
+		// repeated fields are joined as a single list of cookies
+		assertEquals("s2", sid("Cookie: a=1\r\nCookie: sid=s2"));
+		assertEquals("a=1; sid=s2",
+				parse("GET / HTTP/1.1\r\nCookie: a=1\r\nCookie: sid=s2\r\n\r\n")
+						.getHeader("cookie"));
+	}
+
+	@Test
+	void testHostIsParsedWithoutThePort() {
+		assertEquals("[::1]", parse("GET / HTTP/1.1\r\nHost: [::1]:80\r\n\r\n")
+				.getHost());
+		assertNull(parse("GET / HTTP/1.1\r\nHost: :80\r\n\r\n").getHost());
+		assertNull(parse("GET / HTTP/1.1\r\n\r\n").getHost());
+	}
+
+	@Test
+	void testQueryIsDecoded() {
+		HttpRequest request = parse("GET /calc?a=1&b=&c&&d=x+y%20z&e=%zz"
+				+ "&f=%C4%8D&g=a=b&h=%4 HTTP/1.1\r\n\r\n");
+		Map<String, String> parameters = request.getParameters();
+
+		assertEquals("/calc", request.getPath());
+		assertEquals(8, parameters.size());
+		assertEquals("1", parameters.get("a"));
+		assertEquals("", parameters.get("b"));
+		assertEquals("", parameters.get("c"));
+		assertEquals("x y z", parameters.get("d"));
+		assertEquals("%zz", parameters.get("e"));
+		assertEquals("č", parameters.get("f"));
+		assertEquals("a=b", parameters.get("g"));
+		assertEquals("%4", parameters.get("h"));
+
+		request = parse("GET /calc? HTTP/1.1\r\n\r\n");
+		assertEquals("/calc", request.getPath());
+		assertEquals(0, request.getParameters().size());
+	}
+
+	private HttpRequest parse(String header) {
+		return parse(parser, header);
+	}
+
+	private static HttpRequest parse(HttpRequestParser parser,
+			String header) {
+		byte[] data = bytes(header);
+		return parser.parse(data, 0, data.length);
+	}
+
+	private String sid(String cookies) {
+		return parse("GET / HTTP/1.1\r\n" + cookies + "\r\n\r\n").getSid();
+	}
+
+	private void assertStatus(int status, String header) {
+		HttpParseException e =
+				assertThrows(HttpParseException.class, () -> parse(header));
+		assertEquals(status, e.getStatusCode());
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,100 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class NioResponseTest {
+
+	// more than the response keeps in memory
+	private static final int RESPONSE_SIZE = 4 * 1024 * 1024;
+
+	@Test
+	void testLargeResponseIsAvailableBeforeItIsFlushed() throws IOException {
+		AtomicInteger flushes = new AtomicInteger();
+		NioResponse response = new NioResponse(flushes::incrementAndGet);
+		byte[] data = new byte[1024];
+		for (int i = 0; i < 64; i++) {
+			response.write(data, 0, data.length);
+		}
+
+		assertTrue(flushes.get() > 0);
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		assertFalse(response.writeTo(Channels.newChannel(client)));
+		assertTrue(client.size() > 0);
+	}
+
+	@Test
+	void testGeneratingWaitsForTheClient() throws Exception {
+		NioResponse response = new NioResponse(() -> {
+		});
+		CompletableFuture<Void> generator = generate(response);
+
+		// nothing is read, so the generator must stop well before the end
+		Thread.sleep(200);
+		assertFalse(generator.isDone());
+
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		WritableByteChannel channel = Channels.newChannel(client);
+		while (!generator.isDone()) {
+			response.writeTo(channel);
+			Thread.sleep(1);
+		}
+		generator.get();
+		response.complete();
+		assertTrue(response.writeTo(channel));
+		assertEquals(RESPONSE_SIZE, client.size());
+	}
+
+	@Test
+	void testClosingStopsTheWaitingGenerator() throws Exception {
+		NioResponse response = new NioResponse(() -> {
+		});
+		CompletableFuture<Void> generator = generate(response);
+		Thread.sleep(200);
+		assertFalse(generator.isDone());
+
+		response.close();
+		try {
+			generator.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			return;
+		}
+		throw new AssertionError("Generator was not stopped.");
+	}
+
+	/**
+	 * Writes {@link #RESPONSE_SIZE} bytes to the response in another thread,
+	 * without flushing it.
+	 * 
+	 * @param  response response to write to
+	 * @return          completed once everything was written
+	 */
+	private static CompletableFuture<Void> generate(NioResponse response) {
+		CompletableFuture<Void> generator = new CompletableFuture<>();
+		new Thread(() -> {
+			byte[] data = new byte[1024];
+			try {
+				for (int i = 0; i < RESPONSE_SIZE / data.length; i++) {
+					response.write(data, 0, data.length);
+				}
+				generator.complete(null);
+			} catch (IOException e) {
+				generator.completeExceptionally(e);
+			}
+		}).start();
+		return generator;
+	}
+}
@@ -0,0 +1,93 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import hr.fer.zemris.java.webserver.ServerMetrics.Rejection;
+import hr.fer.zemris.java.webserver.TestServer.Response;
+
+class OverloadTest {
+
+	// how long the slow worker takes to respond, in milliseconds
+	private static final int SLOW_WORKER_DELAY = 200;
+	private static final int WORKER_THREADS = 2;
+	private static final int WORK_QUEUE_SIZE = 2;
+	private static final int MAX_CONNECTIONS = 6;
+	private static final int CLIENTS = 40;
+
+	@ParameterizedTest
+	@ValueSource(strings = { "blocking", "nio" })
+	void testOverloadIsRefused(String mode) throws Exception {
+		Path workersConfig = Files.createTempFile("workers", ".properties");
+		Files.writeString(workersConfig,
+				"/slow = " + SlowWorker.class.getName() + "\n");
+		Properties config = TestServer.config();
+		config.setProperty("server.mode", mode);
+		config.setProperty("server.workers", workersConfig.toString());
+		config.setProperty("server.workerThreads",
+				Integer.toString(WORKER_THREADS));
+		config.setProperty("server.workQueueSize",
+				Integer.toString(WORK_QUEUE_SIZE));
+		config.setProperty("server.maxConnections",
+				Integer.toString(MAX_CONNECTIONS));
+
+		SmartHttpServer server = TestServer.start(config);
+		try {
+			// all clients send their request at once, far more than the
+			// server can handle in time
+			Response[] responses = new Response[CLIENTS];
+			CountDownLatch start = new CountDownLatch(1);
+			CountDownLatch done = new CountDownLatch(CLIENTS);
+			for (int i = 0; i < CLIENTS; i++) {
+				int client = i;
+				new Thread(() -> {
+					try {
+						start.await();
+						responses[client] = TestServer.request(server,
+								"/slow?ms=" + SLOW_WORKER_DELAY);
+					} catch (Exception e) {
+						responses[client] = null;
+					}
+					done.countDown();
+				}).start();
+			}
+			start.countDown();
+			done.await();
+
+			List<Response> served = new ArrayList<Response>();
+			List<Response> refused = new ArrayList<Response>();
+			for (Response response : responses) {
+				assertTrue(response != null, "Every client gets a response.");
+				if (response.status == 503) {
+					assertTrue(response.header.contains("Retry-After: "));
+					refused.add(response);
+				} else {
+					assertEquals(200, response.status);
+					assertEquals("Finally done.", response.body);
+					served.add(response);
+				}
+			}
+			assertTrue(served.size() >= WORKER_THREADS);
+			assertTrue(refused.size() > 0);
+
+			ServerMetrics metrics = server.getMetrics();
+			assertEquals(refused.size(),
+					metrics.getRejected(Rejection.MAX_CONNECTIONS)
+							+ metrics.getRejected(Rejection.QUEUE_FULL));
+			assertEquals(0, metrics.getRejected(Rejection.RATE_LIMITED));
+		} finally {
+			server.stop();
+			Files.delete(workersConfig);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class PrivatePathTest {
+
+	private static SmartHttpServer server;
+
+	@BeforeAll
+	static void startServer() throws IOException {
+		server = TestServer.start(TestServer.config());
+	}
+
+	@AfterAll
+	static void stopServer() {
+		server.stop();
+	}
+
+	@ParameterizedTest
+	@CsvSource({ "/private/pages/home.smscr, 404",
+			"/./private/pages/home.smscr, 404",
+			"/x/../private/pages/home.smscr, 404",
+			"//private/pages/home.smscr, 404",
+			"/private/./pages/../pages/calc.smscr, 404",
+			"/../webroot/index.html, 403", "/./index.html, 200",
+			"/images/../index.html, 200" })
+	void testPrivateFilesCannotBeRequested(String path, int status)
+			throws IOException {
+		assertEquals(status, TestServer.request(server, path).status);
+	}
+}
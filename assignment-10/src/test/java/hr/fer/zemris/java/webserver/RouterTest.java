@@ -0,0 +1,38 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class RouterTest {
+
+	@ParameterizedTest
+	@CsvSource({ "/index.html, /index.html", "/, /", "'', /",
+			"/./private/a, /private/a", "/x/../private/a, /private/a",
+			"//private//a, /private/a", "/private/./a/., /private/a/",
+			"/a/b/.., /a/", "/a/.hidden, /a/.hidden", "/a/..b, /a/..b",
+			"private/a, /private/a" })
+	void testNormalize(String path, String normalized) {
+		assertEquals(normalized, Router.normalize(path));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "/..", "/../webroot/index.html", "/a/../../b" })
+	void testNormalizeAboveRoot(String path) {
+		assertNull(Router.normalize(path));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "/private/pages/home.smscr",
+			"/./private/pages/home.smscr", "/x/../private/pages/home.smscr",
+			"//private/pages/home.smscr" })
+	void testDotSegmentsDoNotLeadAroundRoutes(String path) {
+		Router<String> router = new Router<String>();
+		router.add("/**", "file");
+		router.add("/private/**", "private");
+		assertEquals("private", router.route(Router.normalize(path)));
+	}
+}
@@ -0,0 +1,89 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.custom.scripting.exec.Template;
+
+class ScriptCacheTest {
+
+	private static final int THREADS = 16;
+
+	@Test
+	void testScriptIsCompiledOnceForConcurrentRequests() throws Exception {
+		Path script = Files.createTempFile("script", ".smscr");
+		Files.writeString(script,
+				"{$FOR i 1 10 1$}Line {$= i $}\r\n{$END$}");
+		ScriptCache cache = new ScriptCache(8, true);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Template> templates = getConcurrently(cache, script, pool);
+			assertEquals(1, cache.getMisses());
+			for (Template template : templates) {
+				assertSame(templates.get(0), template);
+			}
+
+			// the modified script is loaded once again
+			Files.writeString(script, "{$= \"changed\" $}");
+			Files.setLastModifiedTime(script, FileTime.fromMillis(
+					System.currentTimeMillis() + 10_000));
+			templates = getConcurrently(cache, script, pool);
+			assertEquals(2, cache.getMisses());
+			for (Template template : templates) {
+				assertSame(templates.get(0), template);
+			}
+		} finally {
+			pool.shutdown();
+			Files.delete(script);
+		}
+	}
+
+	@Test
+	void testFailedScriptIsLoadedAgain() throws Exception {
+		Path script = Files.createTempFile("script", ".smscr");
+		Files.writeString(script, "{$FOR i 1 10 1$}never ended");
+		ScriptCache cache = new ScriptCache(8, true);
+		try {
+			assertThrows(RuntimeException.class, () -> cache.get(script));
+			assertThrows(RuntimeException.class, () -> cache.get(script));
+			assertEquals(2, cache.getMisses());
+			assertEquals(0, cache.size());
+		} finally {
+			Files.delete(script);
+		}
+	}
+
+	private static List<Template> getConcurrently(ScriptCache cache,
+			Path script, ExecutorService pool) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Template>> futures = new ArrayList<Future<Template>>();
+		for (int i = 0; i < THREADS; i++) {
+			Callable<Template> task = () -> {
+				start.await();
+				return cache.get(script);
+			};
+			futures.add(pool.submit(task));
+		}
+		start.countDown();
+
+		List<Template> templates = new ArrayList<Template>();
+		for (Future<Template> future : futures) {
+			templates.add(future.get());
+		}
+		return templates;
+	}
+}
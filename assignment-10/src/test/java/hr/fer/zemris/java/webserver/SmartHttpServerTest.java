@@ -0,0 +1,137 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class SmartHttpServerTest {
+
+	@ParameterizedTest
+	@ValueSource(strings = { "blocking", "nio" })
+	void testServerAcceptsConnectionsOnceStarted(String mode)
+			throws IOException {
+		Properties config = TestServer.config();
+		config.setProperty("server.mode", mode);
+		SmartHttpServer server = TestServer.start(config);
+		try {
+			assertEquals(200, TestServer.request(server, "/index.html").status);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "blocking", "nio" })
+	void testPipelinedAndSplitRequestsAreServed(String mode)
+			throws IOException {
+		Properties config = TestServer.config();
+		config.setProperty("server.mode", mode);
+		SmartHttpServer server = TestServer.start(config);
+		try {
+			// the second request arrives along with the first one, and its
+			// header is split in the middle of the line break which ends it
+			String responses = TestServer.exchange(server,
+					"GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+							+ "GET /missing.html HTTP/1.1\r\nHost: loc",
+					"alhost\r\nConnection: close\r\n\r",
+					"\n");
+			String[] statuses = responses.split("HTTP/1.1 ");
+			assertEquals(3, statuses.length, responses);
+			assertTrue(statuses[1].startsWith("200 "));
+			assertTrue(statuses[2].startsWith("404 "));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "blocking", "nio" })
+	void testBodyOverMaxSizeIsRefused(String mode) throws IOException {
+		Properties config = TestServer.config();
+		config.setProperty("server.mode", mode);
+		config.setProperty("server.maxBodySize", "16");
+		SmartHttpServer server = TestServer.start(config);
+		try {
+			String response = TestServer.exchange(server,
+					"POST /index.html HTTP/1.1\r\nContent-Length: 17\r\n"
+							+ "Expect: 100-continue\r\n\r\n");
+			assertTrue(response.startsWith("HTTP/1.1 413 "), response);
+
+			response = TestServer.exchange(server,
+					"POST /calc HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+							+ "Content-Type: application/x-www-form-urlencoded"
+							+ "\r\n\r\n",
+					"10\r\n0123456789abcdef\r\n1\r\nx\r\n0\r\n\r\n");
+			assertTrue(response.startsWith("HTTP/1.1 413 "), response);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testRangesOfFilesAreServed() throws IOException {
+		SmartHttpServer server = TestServer.start(TestServer.config());
+		try {
+			String partial = TestServer.exchange(server,
+					"GET /sample.txt HTTP/1.1\r\nRange: bytes=0-3\r\n"
+							+ "Connection: close\r\n\r\n");
+			assertTrue(partial.startsWith("HTTP/1.1 206 "), partial);
+			assertTrue(partial.contains("Content-Range: bytes 0-3/"));
+
+			String unsatisfiable = TestServer.exchange(server,
+					"GET /sample.txt HTTP/1.1\r\nRange: bytes=100000-\r\n"
+							+ "Connection: close\r\n\r\n");
+			assertTrue(unsatisfiable.startsWith("HTTP/1.1 416 "),
+					unsatisfiable);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testScriptCacheIsExported() throws IOException {
+		SmartHttpServer server = TestServer.start(TestServer.config());
+		try {
+			for (int i = 0; i < 3; i++) {
+				assertEquals(200, TestServer.request(server,
+						"/scripts/osnovni.smscr").status);
+			}
+			String metrics = TestServer.request(server, "/ext/Metrics").body;
+			assertTrue(metrics.contains(
+					"# TYPE smarthttp_script_cache_hits_total counter\n"
+							+ "smarthttp_script_cache_hits_total 2\n"),
+					metrics);
+			assertTrue(metrics.contains(
+					"# TYPE smarthttp_script_cache_misses_total counter\n"
+							+ "smarthttp_script_cache_misses_total 1\n"),
+					metrics);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "blocking", "nio" })
+	void testTakenPortIsReported(String mode) throws IOException {
+		SmartHttpServer first = TestServer.start(TestServer.config());
+		try {
+			Properties config = TestServer.config();
+			config.setProperty("server.mode", mode);
+			config.setProperty("server.port",
+					Integer.toString(first.getPort()));
+			SmartHttpServer second = new SmartHttpServer(config);
+			assertThrows(IOException.class, second::start);
+			// stopping a server which was never started does nothing
+			second.stop();
+		} finally {
+			first.stop();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * Worker which takes a while to respond, simulating a worker that waits for
+ * some external resource. The delay is given in milliseconds by the
+ * <code>ms</code> parameter of the request, and is 100 ms by default.
+ *
+ * @author jankovidakovic
+ *
+ */
+public class SlowWorker implements IWebWorker {
+
+	@Override
+	public void processRequest(RequestContext context) throws Exception {
+		String delay = context.getParameter("ms");
+		Thread.sleep(delay == null ? 100 : Long.parseLong(delay));
+		context.setMimeType("text/plain");
+		context.write("Finally done.");
+	}
+}
@@ -0,0 +1,140 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Helpers of the tests and the load drivers which run a whole server and send
+ * requests to it.
+ *
+ * @author jankovidakovic
+ *
+ */
+final class TestServer {
+
+	private TestServer() {
+	}
+
+	/**
+	 * Loads the configuration of the server from
+	 * <code>src/main/resources/server.properties</code>, changed so that the
+	 * server listens on any free port and keeps no access log.
+	 *
+	 * @return             the configuration
+	 * @throws IOException if unable to read the configuration
+	 */
+	static Properties config() throws IOException {
+		Properties config = new Properties();
+		try (InputStream is = Files.newInputStream(
+				Paths.get("src/main/resources/server.properties"))) {
+			config.load(is);
+		}
+		config.setProperty("server.port", "0");
+		config.setProperty("server.accessLog", "");
+		return config;
+	}
+
+	/**
+	 * Creates a server with the given configuration and starts it.
+	 *
+	 * @param  config      configuration of the server
+	 * @return             the server, which already accepts connections
+	 * @throws IOException if unable to start the server
+	 */
+	static SmartHttpServer start(Properties config) throws IOException {
+		SmartHttpServer server = new SmartHttpServer(config);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Sends a single GET request over its own connection, and reads the
+	 * whole response.
+	 *
+	 * @param  server      server to send the request to
+	 * @param  path        requested path
+	 * @return             the response
+	 * @throws IOException if the request fails
+	 */
+	static Response request(SmartHttpServer server, String path)
+			throws IOException {
+		String text = exchange(server, "GET " + path + " HTTP/1.1\r\n"
+				+ "Host: localhost\r\nConnection: close\r\n\r\n");
+		int end = text.indexOf("\r\n\r\n");
+		return new Response(Integer.parseInt(text.split(" ", 3)[1]),
+				text.substring(0, end), text.substring(end + 4));
+	}
+
+	/**
+	 * Sends the given parts of the requests over a new connection, each part
+	 * flushed on its own after a short pause, and reads everything the
+	 * server sends back until it closes the connection.
+	 *
+	 * @param  server      server to send the requests to
+	 * @param  parts       parts of the requests, encoded as ISO-8859-1
+	 * @return             the responses, decoded as ISO-8859-1
+	 * @throws IOException if the requests fail
+	 */
+	static String exchange(SmartHttpServer server, String... parts)
+			throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.connect(
+					new InetSocketAddress("127.0.0.1", server.getPort()));
+			socket.setSoTimeout(10000);
+			socket.setTcpNoDelay(true);
+			OutputStream os = socket.getOutputStream();
+			for (int i = 0; i < parts.length; i++) {
+				if (i > 0) {
+					pause();
+				}
+				os.write(parts[i].getBytes(StandardCharsets.ISO_8859_1));
+				os.flush();
+			}
+			return new String(socket.getInputStream().readAllBytes(),
+					StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Waits long enough for the server to read the bytes sent so far.
+	 */
+	private static void pause() {
+		try {
+			Thread.sleep(50);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Response of the server.
+	 *
+	 * @author jankovidakovic
+	 *
+	 */
+	static class Response {
+		final int status; // status code
+		final String header; // header, without the empty line
+		final String body; // body, decoded as ISO-8859-1
+
+		/**
+		 * Creates a new response.
+		 *
+		 * @param status status code
+		 * @param header header, without the empty line
+		 * @param body   body, decoded as ISO-8859-1
+		 */
+		Response(int status, String header, String body) {
+			this.status = status;
+			this.header = header;
+			this.body = body;
+		}
+	}
+}